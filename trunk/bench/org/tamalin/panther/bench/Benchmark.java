@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.bench;
+
+import java.io.File;
+
+/**
+ * The Benchmark class is one operation that BenchmarkRunner times over and over.  Each thread of a run gets its
+ * own instance, which is set up once with the payload and algorithm of the run before any timing starts, so
+ * that run() only does the work being measured.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public abstract class Benchmark
+{
+    /**
+     * Creates a Benchmark.
+     *
+     * @param name          the name the benchmark is chosen by
+     * @param algorithmKind what its algorithm names: NONE, CIPHER or DIGEST
+     */
+    protected Benchmark(String name, int algorithmKind)
+    {
+        this.name = name;
+        this.algorithmKind = algorithmKind;
+    }
+
+    /**
+     * Prepares the benchmark.  Anything that is not part of the operation, such as writing an input file or
+     * deriving a key, belongs here.
+     *
+     * @param payload   the data each operation works on, which must not be changed
+     * @param algorithm the cipher or digest algorithm, or null if the benchmark has none
+     * @param dir       an empty directory the benchmark may keep files in
+     * @throws Exception the benchmark could not be prepared
+     */
+    public abstract void setUp(byte[] payload, String algorithm, File dir) throws Exception;
+
+    /**
+     * Performs the operation once.
+     *
+     * @throws Exception the operation failed, which ends the run
+     */
+    public abstract void run() throws Exception;
+
+    /**
+     * Cleans up after the benchmark.  The directory given to setUp() is deleted afterwards in any case.
+     *
+     * @throws Exception the benchmark could not be cleaned up
+     */
+    public void tearDown() throws Exception
+    {
+    }
+
+    /**
+     * Keeps the result of an operation, so the compiler can't decide the operation is unused and remove it.
+     *
+     * @param result the result
+     */
+    protected static void consume(Object result)
+    {
+        sink = result;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getAlgorithmKind()
+    {
+        return algorithmKind;
+    }
+
+    /**
+     * The benchmark has no algorithm.
+     */
+    public static final int NONE = 0;
+    /**
+     * The benchmark's algorithm is a cipher, such as AES.
+     */
+    public static final int CIPHER = 1;
+    /**
+     * The benchmark's algorithm is a message digest, such as SHA-256.
+     */
+    public static final int DIGEST = 2;
+
+    private static volatile Object sink;
+
+    private final String name;
+    private final int algorithmKind;
+}
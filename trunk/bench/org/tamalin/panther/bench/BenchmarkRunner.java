@@ -0,0 +1,555 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The BenchmarkRunner class times Panther's benchmarks, for every combination of the payload sizes, algorithms
+ * and thread counts it is given, and prints a table of throughput and allocation rates.  Each combination is
+ * run in fresh JVMs, so the numbers don't depend on what was run before it; within a JVM the benchmark is
+ * run for a number of warmup iterations, which are thrown away, and then for the measured iterations.
+ * <p>
+ * Every thread runs the operation over and over on its own Benchmark instance until the iteration is over, so
+ * the throughput of a run with several threads is the sum of all of them.  The payload is generated from a
+ * fixed seed, so every run works on the same data.  Allocation is counted on the benchmark threads only; work
+ * an operation hands to another pool, as the tree hash does, is not included.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class BenchmarkRunner
+{
+    /**
+     * Parses the options.
+     *
+     * @param args the command line arguments
+     * @throws IllegalArgumentException the arguments are invalid
+     */
+    BenchmarkRunner(String[] args)
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (arg.equals("-h") || arg.equals("--help"))
+                help = true;
+            else if (arg.equals("-b") || arg.equals("--benchmarks"))
+                benchmarks = list(value(args, ++i, arg));
+            else if (arg.equals("-s") || arg.equals("--sizes"))
+                sizes = sizes(value(args, ++i, arg));
+            else if (arg.equals("-c") || arg.equals("--ciphers"))
+                ciphers = list(value(args, ++i, arg));
+            else if (arg.equals("-d") || arg.equals("--digests"))
+                digests = list(value(args, ++i, arg));
+            else if (arg.equals("-t") || arg.equals("--threads"))
+                threads = numbers(value(args, ++i, arg), arg);
+            else if (arg.equals("-w") || arg.equals("--warmup"))
+                warmup = number(value(args, ++i, arg), arg, 0);
+            else if (arg.equals("-i") || arg.equals("--iterations"))
+                iterations = number(value(args, ++i, arg), arg, 1);
+            else if (arg.equals("--time"))
+                iterationTime = number(value(args, ++i, arg), arg, 1);
+            else if (arg.equals("-f") || arg.equals("--forks"))
+                forks = number(value(args, ++i, arg), arg, 0);
+            else if (arg.equals("--seed"))
+                seed = Long.parseLong(value(args, ++i, arg));
+            else if (arg.equals("--dir"))
+                dir = new File(value(args, ++i, arg));
+            else if (arg.equals("--child"))
+                child = true;
+            else
+                throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+
+        /* Check the names now rather than after the other benchmarks have run. */
+        for (String name : benchmarks)
+            Benchmarks.create(name);
+    }
+
+    public static void main(String[] args)
+    {
+        /* Keep keys in the cache for the whole run, so that no iteration pays for deriving one again. */
+        if (System.getProperty("panther.keycache.lifetime") == null)
+            System.setProperty("panther.keycache.lifetime", String.valueOf(24 * 60 * 60 * 1000L));
+
+        BenchmarkRunner runner;
+        try
+        {
+            runner = new BenchmarkRunner(args);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            System.err.println("panther-bench: " + ex.getMessage());
+            printUsage(System.err);
+            System.exit(1);
+            return;
+        }
+
+        if (runner.help)
+        {
+            printUsage(System.out);
+            System.exit(0);
+        }
+        System.exit(runner.run());
+    }
+
+    /**
+     * Runs every combination of benchmark, algorithm, size and thread count.
+     *
+     * @return the exit status: 0 if every benchmark ran, 2 if any failed
+     */
+    int run()
+    {
+        if (!child)
+        {
+            System.out.printf("%s %s, %d forks, %d warmup and %d measured iterations of %d ms%n%n", System.getProperty("java.vm.name"),
+                    System.getProperty("java.version"), forks, warmup, iterations, iterationTime);
+            System.out.printf(ROW_FORMAT, "Benchmark", "Algorithm", "Size", "Threads", "MB/s", "+/-", "ops/s", "Alloc MB/s", "Alloc B/op");
+        }
+
+        int status = 0;
+        for (String name : benchmarks)
+        {
+            int kind = Benchmarks.create(name).getAlgorithmKind();
+            String[] algorithms = kind == Benchmark.CIPHER ? ciphers : kind == Benchmark.DIGEST ? digests : new String[]{null};
+            for (String algorithm : algorithms)
+            {
+                for (int size : sizes)
+                {
+                    for (int threadCount : threads)
+                    {
+                        try
+                        {
+                            if (child)
+                            {
+                                for (Sample sample : measure(name, algorithm, size, threadCount))
+                                    System.out.println(SAMPLE + sample);
+                            }
+                            else
+                            {
+                                List<Sample> samples = forks == 0 ? measure(name, algorithm, size, threadCount) : fork(name, kind, algorithm, size, threadCount);
+                                printRow(name, algorithm, size, threadCount, samples);
+                            }
+                        }
+                        catch (Exception ex)
+                        {
+                            System.err.println("panther-bench: " + name + " failed: " + ex);
+                            status = 2;
+                        }
+                    }
+                }
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Runs one combination in this JVM.
+     */
+    private List<Sample> measure(String name, String algorithm, int size, int threadCount) throws Exception
+    {
+        byte[] payload = payload(size, seed);
+        File root = Files.createTempDirectory(dir.toPath(), "panther-bench").toFile();
+        Benchmark[] instances = new Benchmark[threadCount];
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        try
+        {
+            for (int i = 0; i < threadCount; i++)
+            {
+                File instanceDir = new File(root, String.valueOf(i));
+                if (!instanceDir.mkdir())
+                    throw new IOException("Unable to create " + instanceDir);
+                instances[i] = Benchmarks.create(name);
+                instances[i].setUp(payload, algorithm, instanceDir);
+            }
+
+            for (int i = 0; i < warmup; i++)
+                iteration(instances, pool, size);
+
+            List<Sample> samples = new ArrayList<Sample>();
+            for (int i = 0; i < iterations; i++)
+                samples.add(iteration(instances, pool, size));
+            return samples;
+        }
+        finally
+        {
+            pool.shutdownNow();
+            for (Benchmark instance : instances)
+            {
+                try
+                {
+                    if (instance != null)
+                        instance.tearDown();
+                }
+                catch (Exception ex)
+                {
+                    System.err.println("panther-bench: " + name + " could not be cleaned up: " + ex);
+                }
+            }
+            delete(root);
+        }
+    }
+
+    /**
+     * Runs the operation on every thread until the iteration time is up.
+     */
+    private Sample iteration(Benchmark[] instances, ExecutorService pool, int size) throws Exception
+    {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+        for (final Benchmark instance : instances)
+        {
+            results.add(pool.submit(new Callable<long[]>()
+            {
+                public long[] call() throws Exception
+                {
+                    long thread = Thread.currentThread().getId();
+                    long allocated = allocatedBytes(thread);
+                    long start = System.nanoTime();
+                    long operations = 0;
+                    do
+                    {
+                        instance.run();
+                        operations++;
+                    }
+                    while (!stop.get());
+                    long time = System.nanoTime() - start;
+                    return new long[]{operations, time, allocated < 0 ? -1 : allocatedBytes(thread) - allocated};
+                }
+            }));
+        }
+
+        Thread.sleep(iterationTime);
+        stop.set(true);
+
+        /* Add up the rate of each thread, since they didn't start or stop at quite the same time. */
+        Sample sample = new Sample();
+        long operations = 0;
+        long allocated = 0;
+        for (Future<long[]> result : results)
+        {
+            long[] r;
+            try
+            {
+                r = result.get();
+            }
+            catch (ExecutionException ex)
+            {
+                throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+            }
+
+            double seconds = r[1] / 1e9;
+            sample.opsPerSecond += r[0] / seconds;
+            operations += r[0];
+            if (r[2] < 0 || allocated < 0)
+                allocated = -1;
+            else
+            {
+                sample.allocatedPerSecond += r[2] / seconds;
+                allocated += r[2];
+            }
+        }
+        sample.bytesPerSecond = sample.opsPerSecond * size;
+        if (allocated < 0)
+        {
+            sample.allocatedPerSecond = Double.NaN;
+            sample.allocatedPerOp = Double.NaN;
+        }
+        else
+            sample.allocatedPerOp = (double) allocated / operations;
+        return sample;
+    }
+
+    /**
+     * Runs one combination in fresh JVMs, with the same JVM options as this one, and collects the samples they
+     * print.
+     */
+    private List<Sample> fork(String name, int kind, String algorithm, int size, int threadCount) throws IOException, InterruptedException
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), BenchmarkRunner.class.getName(), "--child",
+                "-b", name, "-s", String.valueOf(size), "-t", String.valueOf(threadCount), "-w", String.valueOf(warmup),
+                "-i", String.valueOf(iterations), "--time", String.valueOf(iterationTime), "--seed", String.valueOf(seed),
+                "--dir", dir.getPath()));
+        if (kind == Benchmark.CIPHER)
+            command.addAll(Arrays.asList("-c", algorithm));
+        else if (kind == Benchmark.DIGEST)
+            command.addAll(Arrays.asList("-d", algorithm));
+
+        List<Sample> samples = new ArrayList<Sample>();
+        for (int i = 0; i < forks; i++)
+        {
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Process process = builder.start();
+            BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            try
+            {
+                String line;
+                while ((line = in.readLine()) != null)
+                {
+                    if (line.startsWith(SAMPLE))
+                        samples.add(Sample.parse(line.substring(SAMPLE.length())));
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            int status = process.waitFor();
+            if (status != 0)
+                throw new IOException("The forked JVM exited with status " + status);
+        }
+        return samples;
+    }
+
+    private static void printRow(String name, String algorithm, int size, int threadCount, List<Sample> samples)
+    {
+        double[] mbPerSecond = new double[samples.size()];
+        double opsPerSecond = 0;
+        double allocatedPerSecond = 0;
+        double allocatedPerOp = 0;
+        for (int i = 0; i < samples.size(); i++)
+        {
+            Sample sample = samples.get(i);
+            mbPerSecond[i] = sample.bytesPerSecond / 1e6;
+            opsPerSecond += sample.opsPerSecond / samples.size();
+            allocatedPerSecond += sample.allocatedPerSecond / 1e6 / samples.size();
+            allocatedPerOp += sample.allocatedPerOp / samples.size();
+        }
+
+        double mean = 0;
+        for (double x : mbPerSecond)
+            mean += x / mbPerSecond.length;
+        double variance = 0;
+        for (double x : mbPerSecond)
+            variance += (x - mean) * (x - mean);
+        double deviation = mbPerSecond.length > 1 ? Math.sqrt(variance / (mbPerSecond.length - 1)) : 0;
+
+        System.out.printf(ROW_FORMAT, name, algorithm == null ? "-" : algorithm, formatSize(size), threadCount,
+                String.format("%.1f", mean), String.format("%.1f", deviation), String.format("%.1f", opsPerSecond),
+                Double.isNaN(allocatedPerSecond) ? "n/a" : String.format("%.1f", allocatedPerSecond),
+                Double.isNaN(allocatedPerOp) ? "n/a" : String.format("%.0f", allocatedPerOp));
+    }
+
+    /**
+     * Generates text that looks enough like a document to be opened and shown as one: lines of lower case
+     * words.  The same seed always gives the same text.
+     */
+    static byte[] payload(int size, long seed)
+    {
+        Random random = new Random(seed);
+        byte[] payload = new byte[size];
+        int column = 0;
+        for (int i = 0; i < size; i++)
+        {
+            int r = random.nextInt(64);
+            if (column >= 60 && r < 4)
+            {
+                payload[i] = '\n';
+                column = 0;
+                continue;
+            }
+            payload[i] = r < 10 ? (byte) ' ' : (byte) ('a' + r % 26);
+            column++;
+        }
+        return payload;
+    }
+
+    private static long allocatedBytes(long thread)
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+        if (!allocations.isThreadAllocatedMemorySupported())
+            return -1;
+        if (!allocations.isThreadAllocatedMemoryEnabled())
+            allocations.setThreadAllocatedMemoryEnabled(true);
+        return allocations.getThreadAllocatedBytes(thread);
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    private static String value(String[] args, int i, String option)
+    {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    private static int number(String value, String option, int minimum)
+    {
+        try
+        {
+            int n = Integer.parseInt(value);
+            if (n >= minimum)
+                return n;
+        }
+        catch (NumberFormatException ex)
+        {
+            /* Reported below. */
+        }
+        throw new IllegalArgumentException("The value of " + option + " must be a number of at least " + minimum + ": " + value);
+    }
+
+    private static String[] list(String value)
+    {
+        return value.split(",");
+    }
+
+    private static int[] numbers(String value, String option)
+    {
+        String[] items = list(value);
+        int[] numbers = new int[items.length];
+        for (int i = 0; i < items.length; i++)
+            numbers[i] = number(items[i], option, 1);
+        return numbers;
+    }
+
+    /**
+     * Parses a list of sizes, each in bytes or with a K or M suffix.
+     */
+    private static int[] sizes(String value)
+    {
+        String[] items = list(value);
+        int[] sizes = new int[items.length];
+        for (int i = 0; i < items.length; i++)
+        {
+            String item = items[i].toUpperCase(Locale.ROOT);
+            int unit = 1;
+            if (item.endsWith("K"))
+                unit = 1024;
+            else if (item.endsWith("M"))
+                unit = 1024 * 1024;
+            if (unit > 1)
+                item = item.substring(0, item.length() - 1);
+
+            long size = (long) number(item, "--sizes", 1) * unit;
+            if (size > Integer.MAX_VALUE - 1024 * 1024)
+                throw new IllegalArgumentException("Payload too large: " + items[i]);
+            sizes[i] = (int) size;
+        }
+        return sizes;
+    }
+
+    private static String formatSize(int size)
+    {
+        if (size % (1024 * 1024) == 0)
+            return size / (1024 * 1024) + "M";
+        if (size % 1024 == 0)
+            return size / 1024 + "K";
+        return String.valueOf(size);
+    }
+
+    private static void printUsage(PrintStream out)
+    {
+        out.println("Usage: java org.tamalin.panther.bench.BenchmarkRunner [options]");
+        out.println("\n-b\t--benchmarks NAMES\tThe benchmarks to run, separated by commas (default: all of them):");
+        for (String name : Benchmarks.NAMES)
+            out.println("\t\t\t\t  " + name);
+        out.println("-s\t--sizes SIZES\t\tPayload sizes in bytes, or with a K or M suffix (default: 4K,1M,16M).");
+        out.println("-c\t--ciphers NAMES\t\tCipher algorithms for the cipher and stream benchmarks (default: AES).");
+        out.println("-d\t--digests NAMES\t\tDigest algorithms for the fingerprint benchmarks (default: SHA-1,SHA-256).");
+        out.println("-t\t--threads COUNTS\tNumbers of threads running the benchmark at once (default: 1).");
+        out.println("-w\t--warmup N\t\tIterations run before measuring (default: 3).");
+        out.println("-i\t--iterations N\t\tIterations measured (default: 5).");
+        out.println("\t--time MS\t\tThe length of each iteration in milliseconds (default: 1000).");
+        out.println("-f\t--forks N\t\tFresh JVMs each combination is run in; 0 runs everything in this JVM (default: 1).");
+        out.println("\t--seed N\t\tThe seed the payload is generated from (default: 2011).");
+        out.println("\t--dir DIR\t\tWhere the file benchmarks keep their files (default: the temporary directory).");
+    }
+
+    /**
+     * The measurements of one iteration.
+     */
+    private static class Sample
+    {
+        static Sample parse(String line)
+        {
+            String[] fields = line.trim().split(" ");
+            Sample sample = new Sample();
+            sample.bytesPerSecond = Double.parseDouble(fields[0]);
+            sample.opsPerSecond = Double.parseDouble(fields[1]);
+            sample.allocatedPerSecond = Double.parseDouble(fields[2]);
+            sample.allocatedPerOp = Double.parseDouble(fields[3]);
+            return sample;
+        }
+
+        @Override
+        public String toString()
+        {
+            return bytesPerSecond + " " + opsPerSecond + " " + allocatedPerSecond + " " + allocatedPerOp;
+        }
+
+        double bytesPerSecond;
+        double opsPerSecond;
+        double allocatedPerSecond;
+        double allocatedPerOp;
+    }
+
+    /**
+     * Marks the lines a forked JVM prints its samples on.
+     */
+    private static final String SAMPLE = "@sample ";
+    private static final String ROW_FORMAT = "%-22s %-9s %6s %7s %10s %8s %12s %11s %12s%n";
+
+    private String[] benchmarks = Benchmarks.NAMES;
+    private int[] sizes = {4 * 1024, 1024 * 1024, 16 * 1024 * 1024};
+    private String[] ciphers = {"AES"};
+    private String[] digests = {"SHA-1", "SHA-256"};
+    private int[] threads = {1};
+    private int warmup = 3;
+    private int iterations = 5;
+    private int iterationTime = 1000;
+    private int forks = 1;
+    private long seed = 2011;
+    private File dir = new File(System.getProperty("java.io.tmpdir"));
+    private boolean child = false;
+    private boolean help = false;
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.bench;
+
+import org.tamalin.panther.crypt.CipherEngine;
+import org.tamalin.panther.crypt.FileDigester;
+import org.tamalin.panther.crypt.KeyDerivation;
+import org.tamalin.panther.crypt.PBKDF2KeyDerivation;
+import org.tamalin.panther.crypt.StreamCipherEngine;
+import org.tamalin.panther.crypt.TreeDigester;
+import org.tamalin.panther.file.FileOpener;
+import org.tamalin.panther.file.FileSaveRunnable;
+import org.tamalin.panther.text.PieceTableDocument;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * The Benchmarks class holds the benchmarks BenchmarkRunner knows by name.  They cover the paths a change is
+ * most likely to slow down: encrypting and decrypting in memory, as a stream and as files, fingerprinting text, files and
+ * documents, and opening and saving files.  Each does exactly what Panther does for the same task.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class Benchmarks
+{
+    private Benchmarks()
+    {
+    }
+
+    /**
+     * Creates a new instance of a benchmark.
+     *
+     * @param name the name of the benchmark, one of NAMES
+     * @return the benchmark
+     * @throws IllegalArgumentException there is no benchmark by that name
+     */
+    public static Benchmark create(String name)
+    {
+        if (name.equals("cipher.encrypt"))
+            return new CipherBenchmark(name, Cipher.ENCRYPT_MODE);
+        if (name.equals("cipher.decrypt"))
+            return new CipherBenchmark(name, Cipher.DECRYPT_MODE);
+        if (name.equals("stream.encrypt"))
+            return new StreamBenchmark(name, Cipher.ENCRYPT_MODE);
+        if (name.equals("stream.decrypt"))
+            return new StreamBenchmark(name, Cipher.DECRYPT_MODE);
+        if (name.equals("file.encrypt"))
+            return new FileCipherBenchmark(name, Cipher.ENCRYPT_MODE, false);
+        if (name.equals("file.decrypt"))
+            return new FileCipherBenchmark(name, Cipher.DECRYPT_MODE, false);
+        if (name.equals("parallel.encrypt"))
+            return new FileCipherBenchmark(name, Cipher.ENCRYPT_MODE, true);
+        if (name.equals("parallel.decrypt"))
+            return new FileCipherBenchmark(name, Cipher.DECRYPT_MODE, true);
+        if (name.equals("fingerprint"))
+            return new FingerprintBenchmark(name);
+        if (name.equals("fingerprint.document"))
+            return new DocumentFingerprintBenchmark(name);
+        if (name.equals("fingerprint.file"))
+            return new FileFingerprintBenchmark(name, false);
+        if (name.equals("fingerprint.tree"))
+            return new FileFingerprintBenchmark(name, true);
+        if (name.equals("file.open"))
+            return new OpenBenchmark(name);
+        if (name.equals("file.save"))
+            return new SaveBenchmark(name);
+        throw new IllegalArgumentException("Unknown benchmark: " + name);
+    }
+
+    /**
+     * Returns the key derivation shared by the cipher benchmarks.  Its key is derived once and then found in
+     * the KeyCache, as it is when Panther encrypts with the same password again, so the benchmarks measure the
+     * cipher rather than the key derivation.
+     */
+    private static synchronized KeyDerivation getKeyDerivation(String algorithm) throws GeneralSecurityException
+    {
+        if (keyDerivation == null)
+            keyDerivation = new PBKDF2KeyDerivation(PBKDF2KeyDerivation.DEFAULT_ITERATIONS);
+        keyDerivation.makeKey(PASSWORD.clone(), algorithm);
+        return keyDerivation;
+    }
+
+    private static File writeFile(File dir, byte[] payload) throws IOException
+    {
+        File file = new File(dir, "payload.txt");
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(payload);
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * CipherEngine on an array, as the text area is encrypted and decrypted.
+     */
+    private static class CipherBenchmark extends Benchmark
+    {
+        CipherBenchmark(String name, int mode)
+        {
+            super(name, CIPHER);
+            this.mode = mode;
+        }
+
+        public void setUp(byte[] payload, String algorithm, File dir) throws Exception
+        {
+            this.algorithm = algorithm;
+            derivation = getKeyDerivation(algorithm);
+            input = payload;
+            if (mode == Cipher.DECRYPT_MODE)
+            {
+                CipherEngine engine = new CipherEngine(algorithm);
+                engine.init(payload, Cipher.ENCRYPT_MODE, PASSWORD.clone(), null);
+                engine.setKeyDerivation(derivation);
+                input = engine.process();
+            }
+        }
+
+        public void run() throws Exception
+        {
+            CipherEngine engine = new CipherEngine(algorithm);
+            engine.init(input, mode, PASSWORD.clone(), null);
+            engine.setKeyDerivation(derivation);
+            consume(engine.process());
+        }
+
+        private final int mode;
+        private String algorithm;
+        private KeyDerivation derivation;
+        private byte[] input;
+    }
+
+    /**
+     * StreamCipherEngine from one stream to another, as files and pipes are encrypted and decrypted.  The
+     * output is thrown away, so only the cipher and the container format are measured.
+     */
+    private static class StreamBenchmark extends Benchmark
+    {
+        StreamBenchmark(String name, int mode)
+        {
+            super(name, CIPHER);
+            this.mode = mode;
+        }
+
+        public void setUp(byte[] payload, String algorithm, File dir) throws Exception
+        {
+            this.algorithm = algorithm;
+            derivation = getKeyDerivation(algorithm);
+            input = payload;
+            if (mode == Cipher.DECRYPT_MODE)
+            {
+                ByteArrayOutputStream encrypted = new ByteArrayOutputStream(payload.length + 1024);
+                StreamCipherEngine engine = new StreamCipherEngine(algorithm);
+                engine.init(Cipher.ENCRYPT_MODE, PASSWORD.clone(), null);
+                engine.setKeyDerivation(derivation);
+                engine.process(new ByteArrayInputStream(payload), encrypted, payload.length);
+                engine.clearPassword();
+                input = encrypted.toByteArray();
+            }
+        }
+
+        public void run() throws Exception
+        {
+            StreamCipherEngine engine = new StreamCipherEngine(algorithm);
+            engine.init(mode, PASSWORD.clone(), null);
+            engine.setKeyDerivation(derivation);
+            try
+            {
+                engine.process(new ByteArrayInputStream(input), discard, input.length);
+            }
+            finally
+            {
+                engine.clearPassword();
+            }
+        }
+
+        private final int mode;
+        private final OutputStream discard = new OutputStream()
+        {
+            public void write(int b)
+            {
+            }
+
+            public void write(byte[] b, int off, int len)
+            {
+            }
+        };
+        private String algorithm;
+        private KeyDerivation derivation;
+        private byte[] input;
+    }
+
+    /**
+     * StreamCipherEngine from one file to another, either by one thread or split between several, as the batch
+     * mode encrypts and decrypts files.  Files smaller than StreamCipherEngine.PARALLEL_THRESHOLD are never
+     * split.  Every output file is forced to disk, so this measures the disk as much as the cipher.
+     */
+    private static class FileCipherBenchmark extends Benchmark
+    {
+        FileCipherBenchmark(String name, int mode, boolean parallel)
+        {
+            super(name, CIPHER);
+            this.mode = mode;
+            this.parallel = parallel;
+        }
+
+        public void setUp(byte[] payload, String algorithm, File dir) throws Exception
+        {
+            this.algorithm = algorithm;
+            derivation = getKeyDerivation(algorithm);
+            input = writeFile(dir, payload);
+            output = new File(dir, "payload.out");
+            if (mode == Cipher.DECRYPT_MODE)
+            {
+                File encrypted = new File(dir, "payload.pnt");
+                StreamCipherEngine engine = new StreamCipherEngine(algorithm);
+                engine.init(Cipher.ENCRYPT_MODE, PASSWORD.clone(), null);
+                engine.setKeyDerivation(derivation);
+                engine.process(input, encrypted);
+                engine.clearPassword();
+                input = encrypted;
+            }
+        }
+
+        public void run() throws Exception
+        {
+            StreamCipherEngine engine = new StreamCipherEngine(algorithm);
+            engine.init(mode, PASSWORD.clone(), null);
+            engine.setKeyDerivation(derivation);
+            engine.setParallel(parallel);
+            try
+            {
+                engine.process(input, output);
+            }
+            finally
+            {
+                engine.clearPassword();
+            }
+        }
+
+        private final int mode;
+        private final boolean parallel;
+        private String algorithm;
+        private KeyDerivation derivation;
+        private File input;
+        private File output;
+    }
+
+    /**
+     * A digest of an array in one call, the baseline for the other fingerprint benchmarks.
+     */
+    private static class FingerprintBenchmark extends Benchmark
+    {
+        FingerprintBenchmark(String name)
+        {
+            super(name, DIGEST);
+        }
+
+        public void setUp(byte[] payload, String algorithm, File dir) throws Exception
+        {
+            this.payload = payload;
+            this.algorithm = algorithm;
+        }
+
+        public void run() throws Exception
+        {
+            consume(MessageDigest.getInstance(algorithm).digest(payload));
+        }
+
+        private byte[] payload;
+        private String algorithm;
+    }
+
+    /**
+     * A digest of the text area's document, streamed out of the piece table as the fingerprint of the text is.
+     */
+    private static class DocumentFingerprintBenchmark extends Benchmark
+    {
+        DocumentFingerprintBenchmark(String name)
+        {
+            super(name, DIGEST);
+        }
+
+        public void setUp(byte[] payload, String algorithm, File dir) throws Exception
+        {
+            digester = new FileDigester(algorithm);
+            document = new PieceTableDocument();
+            document.append(new String(payload, UTF8));
+        }
+
+        public void run() throws Exception
+        {
+            consume(digester.digest(document.getInputStream(UTF8)));
+        }
+
+        private FileDigester digester;
+        private PieceTableDocument document;
+    }
+
+    /**
+     * A digest of a file, either plain or as a tree hash.
+     */
+    private static class FileFingerprintBenchmark extends Benchmark
+    {
+        FileFingerprintBenchmark(String name, boolean tree)
+        {
+            super(name, DIGEST);
+            this.tree = tree;
+        }
+
+        public void setUp(byte[] payload, String algorithm, File dir) throws Exception
+        {
+            file = writeFile(dir, payload);
+            if (tree)
+                treeDigester = new TreeDigester(algorithm);
+            else
+                digester = new FileDigester(algorithm);
+        }
+
+        public void run() throws Exception
+        {
+            if (tree)
+                consume(treeDigester.digest(file, null));
+            else
+                consume(digester.digest(file));
+        }
+
+        private final boolean tree;
+        private File file;
+        private FileDigester digester;
+        private TreeDigester treeDigester;
+    }
+
+    /**
+     * FileOpener decoding a file into a new document, as the open action does.
+     */
+    private static class OpenBenchmark extends Benchmark
+    {
+        OpenBenchmark(String name)
+        {
+            super(name, NONE);
+        }
+
+        public void setUp(byte[] payload, String algorithm, File dir) throws Exception
+        {
+            file = writeFile(dir, payload);
+        }
+
+        public void run() throws Exception
+        {
+            PieceTableDocument document = new PieceTableDocument();
+            new FileOpener(file).open(document, null);
+            consume(document);
+        }
+
+        private File file;
+    }
+
+    /**
+     * FileSaveRunnable replacing a file, as the save action does.  Every save is forced to disk, so this
+     * measures the disk as much as the code.
+     */
+    private static class SaveBenchmark extends Benchmark
+    {
+        SaveBenchmark(String name)
+        {
+            super(name, NONE);
+        }
+
+        public void setUp(byte[] payload, String algorithm, File dir) throws Exception
+        {
+            this.payload = payload;
+            file = writeFile(dir, payload);
+        }
+
+        public void run() throws Exception
+        {
+            new FileSaveRunnable(payload, file).save();
+        }
+
+        private byte[] payload;
+        private File file;
+    }
+
+    /**
+     * The names of every benchmark, in the order they are run.
+     */
+    public static final String[] NAMES = {"cipher.encrypt", "cipher.decrypt", "stream.encrypt", "stream.decrypt",
+            "file.encrypt", "file.decrypt", "parallel.encrypt", "parallel.decrypt", "fingerprint", "fingerprint.document", "fingerprint.file", "fingerprint.tree", "file.open", "file.save"};
+
+    private static final char[] PASSWORD = "benchmark password".toCharArray();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static KeyDerivation keyDerivation;
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.bench;
+
+import org.tamalin.panther.Startup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The StartupBenchmark class measures how long Panther takes to show its window, from the launch of the JVM to
+ * the first paint.  Each run starts Panther in a fresh JVM with the panther.startup.probe property set, which
+ * makes it print the time of the first paint and exit, and with a home directory of its own, so every run is
+ * a first launch with no preferences.
+ * <p>
+ * Given an archive file, the runs are repeated with that class data sharing archive.  If the file doesn't exist
+ * yet, a training run creates it first, with every class loaded up to the first paint.  The median of the last
+ * set of runs is compared with the target, if there is one, and the exit status says whether it was met, so the
+ * benchmark can guard the startup time in a build.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class StartupBenchmark
+{
+    /**
+     * Parses the options.
+     *
+     * @param args the command line arguments
+     * @throws IllegalArgumentException the arguments are invalid
+     */
+    StartupBenchmark(String[] args)
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (arg.equals("-h") || arg.equals("--help"))
+                help = true;
+            else if (arg.equals("-n") || arg.equals("--runs"))
+                runs = number(value(args, ++i, arg), arg, 1);
+            else if (arg.equals("-w") || arg.equals("--warmup"))
+                warmup = number(value(args, ++i, arg), arg, 0);
+            else if (arg.equals("--target"))
+                target = number(value(args, ++i, arg), arg, 1);
+            else if (arg.equals("--archive"))
+                archive = new File(value(args, ++i, arg));
+            else if (arg.equals("-J"))
+                jvmOptions.add(value(args, ++i, arg));
+            else if (arg.equals("-cp") || arg.equals("--classpath"))
+                classPath = value(args, ++i, arg);
+            else
+                throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        StartupBenchmark benchmark;
+        try
+        {
+            benchmark = new StartupBenchmark(args);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            System.err.println("panther-startup: " + ex.getMessage());
+            printUsage(System.err);
+            System.exit(1);
+            return;
+        }
+
+        if (benchmark.help)
+        {
+            printUsage(System.out);
+            System.exit(0);
+        }
+
+        try
+        {
+            System.exit(benchmark.run());
+        }
+        catch (Exception ex)
+        {
+            System.err.println("panther-startup: " + ex.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Runs Panther without the archive, then with it if one was given, and prints the times to first paint.
+     *
+     * @return the exit status: 0 if the target was met or there is none, 3 if it was missed
+     * @throws IOException          Panther could not be started, or didn't paint its window
+     * @throws InterruptedException the benchmark was interrupted
+     */
+    int run() throws IOException, InterruptedException
+    {
+        System.out.printf("%s %s, %d warmup and %d measured runs%n%n", System.getProperty("java.vm.name"),
+                System.getProperty("java.version"), warmup, runs);
+        System.out.printf(ROW_FORMAT, "Configuration", "Runs", "Min ms", "Median ms", "Max ms");
+
+        long median = measure("default", new ArrayList<String>());
+        if (archive != null)
+        {
+            /* Class data sharing only archives classes loaded from JAR files. */
+            for (String entry : classPath.split(File.pathSeparator))
+            {
+                if (new File(entry).isDirectory())
+                    throw new IOException("An archive needs Panther in a JAR file, not in " + entry);
+            }
+
+            if (!archive.exists())
+            {
+                System.out.println("Training " + archive + "...");
+                probe(Arrays.asList("-XX:ArchiveClassesAtExit=" + archive.getPath()));
+                if (!archive.exists())
+                    throw new IOException("The JVM did not create " + archive);
+            }
+            median = measure("archive", Arrays.asList("-XX:SharedArchiveFile=" + archive.getPath()));
+        }
+
+        if (target > 0)
+        {
+            boolean met = median <= target;
+            System.out.printf("%nMedian %d ms %s the target of %d ms.%n", median, met ? "meets" : "misses", target);
+            if (!met)
+                return 3;
+        }
+        return 0;
+    }
+
+    /**
+     * Launches Panther the given number of times with the extra options, and prints a row of the results.
+     *
+     * @return the median time to first paint
+     */
+    private long measure(String configuration, List<String> options) throws IOException, InterruptedException
+    {
+        for (int i = 0; i < warmup; i++)
+            probe(options);
+
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++)
+            times[i] = probe(options);
+        Arrays.sort(times);
+
+        long median = times[runs / 2];
+        System.out.printf(ROW_FORMAT, configuration, runs, times[0], median, times[runs - 1]);
+        return median;
+    }
+
+    /**
+     * Launches Panther once, and returns the time to first paint it reports.
+     */
+    private long probe(List<String> options) throws IOException, InterruptedException
+    {
+        File home = Files.createTempDirectory("panther-startup").toFile();
+        try
+        {
+            List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(jvmOptions);
+            command.addAll(options);
+            command.addAll(Arrays.asList("-Dpanther.startup.probe=true", "-Duser.home=" + home.getPath(), "-cp", classPath,
+                    "org.tamalin.panther.Main"));
+
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectErrorStream(true);
+            Process process = builder.start();
+            long time = -1;
+            StringBuilder output = new StringBuilder();
+            BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            try
+            {
+                String line;
+                while ((line = in.readLine()) != null)
+                {
+                    if (line.startsWith(Startup.PROBE_PREFIX))
+                        time = Long.parseLong(line.substring(Startup.PROBE_PREFIX.length()).trim());
+                    else
+                        output.append(line).append('\n');
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            int status = process.waitFor();
+            if (time < 0)
+                throw new IOException("Panther exited with status " + status + " before painting its window:\n" + output);
+            return time;
+        }
+        finally
+        {
+            delete(home);
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    private static String value(String[] args, int i, String option)
+    {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    private static int number(String value, String option, int minimum)
+    {
+        try
+        {
+            int n = Integer.parseInt(value);
+            if (n >= minimum)
+                return n;
+        }
+        catch (NumberFormatException ex)
+        {
+            /* Reported below. */
+        }
+        throw new IllegalArgumentException("The value of " + option + " must be a number of at least " + minimum + ": " + value);
+    }
+
+    private static void printUsage(PrintStream out)
+    {
+        out.println("Usage: java org.tamalin.panther.bench.StartupBenchmark [options]");
+        out.println("\n-n\t--runs N\t\tLaunches measured in each configuration (default: 10).");
+        out.println("-w\t--warmup N\t\tLaunches run first and thrown away (default: 1).");
+        out.println("\t--target MS\t\tThe median time to first paint to meet; the exit status is 3 if it is missed.");
+        out.println("\t--archive FILE\t\tAlso launch with this class data sharing archive, training it first if missing.");
+        out.println("-J\tOPTION\t\t\tAn option for the launched JVMs; may be repeated.");
+        out.println("-cp\t--classpath PATH\tThe class path Panther is launched from (default: this one).");
+    }
+
+    private static final String ROW_FORMAT = "%-14s %5s %8s %10s %8s%n";
+
+    private int runs = 10;
+    private int warmup = 1;
+    private int target = 0;
+    private File archive = null;
+    private List<String> jvmOptions = new ArrayList<String>();
+    private String classPath = System.getProperty("java.class.path");
+    private boolean help = false;
+}
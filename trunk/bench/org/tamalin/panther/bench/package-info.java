@@ -0,0 +1,23 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+/**
+ * The org.tamalin.panther.bench package holds the benchmarks for Panther's encryption, fingerprinting and file
+ * paths, and the runner that times them.  It is kept out of the main source tree, so it is never part of the
+ * program itself.
+ */
+
+package org.tamalin.panther.bench;
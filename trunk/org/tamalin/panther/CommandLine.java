@@ -0,0 +1,861 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther;
+
+import org.tamalin.panther.crypt.AsyncCipher;
+import org.tamalin.panther.crypt.AuthenticationException;
+import org.tamalin.panther.crypt.CorruptDataException;
+import org.tamalin.panther.crypt.CryptoException;
+import org.tamalin.panther.crypt.DirectoryCipher;
+import org.tamalin.panther.crypt.FileDigester;
+import org.tamalin.panther.crypt.FingerprintCache;
+import org.tamalin.panther.crypt.FingerprintFormatter;
+import org.tamalin.panther.crypt.KeyDerivation;
+import org.tamalin.panther.crypt.PBKDF2KeyDerivation;
+import org.tamalin.panther.crypt.ScryptKeyDerivation;
+import org.tamalin.panther.crypt.TreeDigester;
+import org.tamalin.panther.file.AtomicFile;
+
+import javax.crypto.Cipher;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * The CommandLine class runs Panther without a window, so it can be used from scripts, pipes and cron jobs.
+ * It understands three commands: encrypt, decrypt and fingerprint.  Each reads the files named on the
+ * command line, or standard input if there are none, and writes to the file given with -o, or standard output.
+ * <p>
+ * Nothing in this class touches AWT or Swing, so batch mode starts quickly and works on machines without a display.
+ * Encryption uses the key derivation saved in the preferences file, unless one is given on the command line.
+ * <p>
+ * A command may also be run on behalf of another process, as the Daemon does; it is then given that process's
+ * working directory, standard streams and password instead of this one's.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class CommandLine
+{
+    /**
+     * Parses the command and its options.
+     *
+     * @param args      the command line arguments, starting with the command
+     * @param directory the directory relative file names are resolved against, or null for the working directory
+     * @throws IllegalArgumentException the arguments are invalid
+     */
+    CommandLine(String[] args, File directory)
+    {
+        this.directory = directory;
+        command = args[0];
+        for (int i = 1; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (arg.equals("-h") || arg.equals("--help"))
+                help = true;
+            else if (arg.equals("-o") || arg.equals("--output"))
+                output = resolve(value(args, ++i, arg));
+            else if (arg.equals("-p") || arg.equals("--password-file"))
+                passwordFile = resolve(value(args, ++i, arg));
+            else if (arg.equals("-e") || arg.equals("--password-env"))
+                passwordVariable = value(args, ++i, arg);
+            else if (arg.equals("-k") || arg.equals("--kdf"))
+                keyDerivationName = keyDerivationName(value(args, ++i, arg));
+            else if (arg.equals("-c") || arg.equals("--cost"))
+                keyDerivationCost = number(value(args, ++i, arg), arg);
+            else if (arg.equals("-a") || arg.equals("--algorithm"))
+                digestAlgorithm = value(args, ++i, arg);
+            else if (arg.equals("-m") || arg.equals("--mapped"))
+                memoryMapped = true;
+            else if (arg.equals("-f") || arg.equals("--format"))
+                formatter = formatter(value(args, ++i, arg));
+            else if (arg.equals("-t") || arg.equals("--tree"))
+                treeHash = true;
+            else if (arg.equals("-l") || arg.equals("--leaf-size"))
+                leafSize = number(value(args, ++i, arg), arg);
+            else if (arg.equals("--no-cache"))
+                useCache = false;
+            else if (arg.equals("-r") || arg.equals("--recursive"))
+                recursive = true;
+            else if (arg.equals("-j") || arg.equals("--jobs"))
+                jobs = number(value(args, ++i, arg), arg);
+            else if (arg.equals("-v") || arg.equals("--verbose"))
+                verbose = true;
+            else if (arg.equals("--"))
+            {
+                inputs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            }
+            else if (arg.startsWith("-") && !arg.equals("-"))
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            else
+                inputs.add(arg);
+        }
+
+        if (!command.equals(FINGERPRINT) && inputs.size() > 1)
+            throw new IllegalArgumentException("Only one input may be " + command + "ed at a time.");
+        if (command.equals(FINGERPRINT) && output != null)
+            throw new IllegalArgumentException("Fingerprints are always written to standard output.");
+        if (recursive && (inputs.size() != 1 || output == null))
+            throw new IllegalArgumentException("A recursive " + command + " needs an input directory and an output directory (-o).");
+
+        /* Without -k, the cost is for the function in the preferences file, and is checked once that is read. */
+        if (keyDerivationCost != 0 && keyDerivationName != null)
+            checkCost(keyDerivationName, keyDerivationCost);
+    }
+
+    /**
+     * Tells whether an argument names a batch mode command.
+     *
+     * @param arg the first command line argument
+     * @return true if the argument is a command
+     */
+    public static boolean isCommand(String arg)
+    {
+        return arg.equals(ENCRYPT) || arg.equals(DECRYPT) || arg.equals(FINGERPRINT);
+    }
+
+    /**
+     * Runs a command.
+     *
+     * @param args the command line arguments, starting with the command
+     * @return the exit status: 0 on success, 1 for bad arguments, 2 if the command failed, and 3 if decryption
+     *         was refused because the password is wrong or the data has been altered
+     */
+    public static int run(String[] args)
+    {
+        return run(args, null, null, new FileInputStream(FileDescriptor.in), new FileOutputStream(FileDescriptor.out), System.err);
+    }
+
+    /**
+     * Runs a command for another process.  If it is verbose, what is logged while running the command, on
+     * its own thread or in the background tasks it starts, goes to its standard error, and this process's logging is otherwise left alone.
+     *
+     * @param args      the command line arguments, starting with the command
+     * @param directory the directory relative file names are resolved against, or null for the working directory
+     * @param password  the password, which is overwritten afterwards, or null to read it as the options say
+     * @param in        standard input
+     * @param out       standard output
+     * @param err       standard error
+     * @return the exit status, as for run(String[])
+     */
+    static int run(String[] args, File directory, char[] password, InputStream in, OutputStream out, PrintStream err)
+    {
+        CommandLine commandLine;
+        try
+        {
+            commandLine = new CommandLine(args, directory);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            err.println("panther: " + ex.getMessage());
+            printUsage(err, args[0]);
+            return EXIT_USAGE;
+        }
+
+        if (commandLine.help)
+        {
+            PrintStream usage = new PrintStream(out, true);
+            printUsage(usage, args[0]);
+            usage.flush();
+            return EXIT_OK;
+        }
+
+        commandLine.password = password;
+        commandLine.stdin = in;
+        commandLine.stdout = out;
+        commandLine.stderr = err;
+        commandLine.out = new BufferedWriter(new OutputStreamWriter(out));
+        if (!commandLine.verbose)
+            return commandLine.run();
+        if (directory == null)
+        {
+            logger.setLevel(Level.ALL);
+            return commandLine.run();
+        }
+
+        LogContext previous = LogContext.enter();
+        Handler handler = new CommandLogHandler(err);
+        addCommandLogHandler(handler);
+        try
+        {
+            return commandLine.run();
+        }
+        finally
+        {
+            removeCommandLogHandler(handler);
+            LogContext.exit(previous);
+        }
+    }
+
+    /**
+     * Adds the handler of a verbose command run for another process.  The logger lets everything through
+     * while there are any, and goes back to its own level when the last one is removed.
+     */
+    private static synchronized void addCommandLogHandler(Handler handler)
+    {
+        if (verboseCommands++ == 0)
+        {
+            savedLevel = logger.getLevel();
+            logger.setLevel(Level.ALL);
+        }
+        logger.addHandler(handler);
+    }
+
+    private static synchronized void removeCommandLogHandler(Handler handler)
+    {
+        logger.removeHandler(handler);
+        if (--verboseCommands == 0)
+            logger.setLevel(savedLevel);
+    }
+
+    /**
+     * Runs the parsed command, reporting any failure on standard error.
+     */
+    int run()
+    {
+        try
+        {
+            boolean costGiven = keyDerivationCost != 0;
+            loadPreferences();
+            if (costGiven)
+            {
+                try
+                {
+                    checkCost(keyDerivationName != null ? keyDerivationName : PBKDF2KeyDerivation.NAME, keyDerivationCost);
+                }
+                catch (IllegalArgumentException ex)
+                {
+                    stderr.println("panther: " + ex.getMessage());
+                    return EXIT_USAGE;
+                }
+            }
+
+            if (command.equals(FINGERPRINT))
+                fingerprint();
+            else
+                process(command.equals(ENCRYPT) ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE);
+            return EXIT_OK;
+        }
+        catch (AuthenticationException ex)
+        {
+            logger.log(Level.FINE, "Container failed authentication.", ex);
+            stderr.println("panther: decryption failed: the password is wrong, or the data has been altered");
+            return EXIT_DENIED;
+        }
+        catch (CorruptDataException ex)
+        {
+            logger.log(Level.FINE, "Data is damaged.", ex);
+            stderr.println("panther: the input is invalid (" + ex.getMessage() + ")");
+            return EXIT_FAILURE;
+        }
+        catch (CryptoException ex)
+        {
+            logger.log(Level.FINE, "Unable to process the data.", ex);
+            stderr.println("panther: the data could not be processed: " + ex.getMessage());
+            return EXIT_FAILURE;
+        }
+        catch (GeneralSecurityException ex)
+        {
+            logger.log(Level.FINE, "Security error.", ex);
+            stderr.println("panther: " + ex.getMessage());
+            return EXIT_FAILURE;
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.FINE, "Input/Output Error", ex);
+            stderr.println("panther: " + ex.getMessage());
+            return EXIT_FAILURE;
+        }
+        catch (RuntimeException ex)
+        {
+            /* A bug, or input nothing above expected; it is still reported as a failure rather than a trace. */
+            logger.log(Level.FINE, "Unexpected failure.", ex);
+            stderr.println("panther: " + ex);
+            return EXIT_FAILURE;
+        }
+    }
+
+    /**
+     * Encrypts or decrypts the input into the output.
+     */
+    private void process(int mode) throws CryptoException, IOException, GeneralSecurityException
+    {
+        File input = inputs.isEmpty() || inputs.get(0).equals("-") ? null : resolve(inputs.get(0));
+        if (recursive)
+        {
+            processTree(mode, input);
+            return;
+        }
+        if (input != null && input.isDirectory())
+            throw new IOException(input + " is a directory; use --recursive to process the files in it.");
+        if (input != null && !input.isFile())
+            throw new FileNotFoundException(input + ": No such file");
+
+        char[] pw = readPassword(mode == Cipher.ENCRYPT_MODE);
+        AsyncCipher cipher = new AsyncCipher();
+        if (mode == Cipher.ENCRYPT_MODE)
+            cipher.setKeyDerivation(getKeyDerivation());
+        cipher.setMemoryMapped(memoryMapped);
+
+        try
+        {
+            if (input != null && output != null)
+            {
+                cipher.process(input, output, mode, pw, null).join();
+                return;
+            }
+
+            InputStream in = input != null ? new FileInputStream(input) : stdin;
+
+            /* An output file is only replaced once the whole result is on disk. */
+            AtomicFile target = output != null ? new AtomicFile(output) : null;
+            try
+            {
+                OutputStream out = target != null ? target.openStream() : new BufferedOutputStream(stdout, BUFFER_SIZE);
+                cipher.process(in, out, mode, pw, null).join();
+                out.close();
+                if (target != null)
+                    target.commit();
+            }
+            finally
+            {
+                in.close();
+                if (target != null)
+                    target.abort();
+            }
+        }
+        catch (CompletionException ex)
+        {
+            rethrow(ex.getCause());
+        }
+        finally
+        {
+            Arrays.fill(pw, '\0');
+        }
+    }
+
+    /**
+     * Encrypts or decrypts every file in a directory tree, then reports the overall throughput on standard error.
+     */
+    private void processTree(int mode, File input) throws IOException, GeneralSecurityException
+    {
+        if (input == null || !input.isDirectory())
+            throw new IOException(input + " is not a directory.");
+
+        char[] pw = readPassword(mode == Cipher.ENCRYPT_MODE);
+        DirectoryCipher cipher = new DirectoryCipher(input, output, mode, pw);
+        if (mode == Cipher.ENCRYPT_MODE)
+            cipher.setKeyDerivation(getKeyDerivation());
+        cipher.setMemoryMapped(memoryMapped);
+        if (jobs > 0)
+            cipher.setParallelism(jobs);
+        cipher.process();
+
+        double seconds = cipher.getElapsedTime() / 1e9;
+        stderr.printf("%s %d files (%.1f MB) in %.2f s: %.1f MB/s%n", mode == Cipher.ENCRYPT_MODE ? "Encrypted" : "Decrypted",
+                cipher.getFileCount(), cipher.getByteCount() / 1e6, seconds, cipher.getThroughput() / 1e6);
+
+        List<String> failures = cipher.getFailures();
+        if (!failures.isEmpty())
+        {
+            for (String failure : failures)
+                stderr.println("panther: " + failure);
+            throw new IOException(failures.size() + " files could not be processed.");
+        }
+    }
+
+    /**
+     * Prints the message digest of each input, in the same layout as the sha*sum tools.  When several algorithms
+     * are given, each input is read once, and one tagged line is printed per algorithm, as with BSD md5.
+     */
+    private void fingerprint() throws IOException, NoSuchAlgorithmException
+    {
+        String[] algorithms = (digestAlgorithm != null ? digestAlgorithm : DEFAULT_DIGEST_ALGORITHM).split(",");
+        FingerprintCache cache = useCache ? new FingerprintCache(Main.getFingerprintCacheFile(), FingerprintCache.DEFAULT_CAPACITY) : null;
+        try
+        {
+            if (treeHash)
+                treeFingerprint(algorithms, cache);
+            else
+                fingerprint(algorithms, cache);
+        }
+        finally
+        {
+            out.flush();
+            if (cache != null)
+                saveCache(cache);
+        }
+    }
+
+    private void fingerprint(String[] algorithms, FingerprintCache cache) throws IOException, NoSuchAlgorithmException
+    {
+
+        FileDigester digester = new FileDigester(algorithms, FileDigester.DEFAULT_BUFFER_SIZE);
+        digester.setParallel(algorithms.length > 1 && Runtime.getRuntime().availableProcessors() > 1);
+        List<String> names = inputs.isEmpty() ? Arrays.asList("-") : inputs;
+
+        for (String name : names)
+        {
+            Map<String, byte[]> fingerprints;
+            if (name.equals("-"))
+                fingerprints = digester.digestAll(stdin);
+            else if (cache != null)
+                fingerprints = cache.digestAll(resolve(name), digester, null);
+            else
+                fingerprints = digester.digestAll(resolve(name), null);
+
+            if (algorithms.length == 1)
+                printFingerprint(null, name, fingerprints.get(algorithms[0]));
+            else
+            {
+                for (Map.Entry<String, byte[]> fingerprint : fingerprints.entrySet())
+                    printFingerprint(fingerprint.getKey(), name, fingerprint.getValue());
+            }
+        }
+    }
+
+    /**
+     * Prints the Merkle tree hash of each input file.  The lines are always tagged with the tree hash name,
+     * so they can't be mistaken for plain digests.
+     */
+    private void treeFingerprint(String[] algorithms, FingerprintCache cache) throws IOException, NoSuchAlgorithmException
+    {
+        if (inputs.isEmpty() || inputs.contains("-"))
+            throw new IOException("Tree hashes can only be computed for files, not standard input.");
+
+        TreeDigester[] digesters = new TreeDigester[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++)
+            digesters[i] = new TreeDigester(algorithms[i], leafSize > 0 ? leafSize : TreeDigester.DEFAULT_LEAF_SIZE);
+
+        for (String name : inputs)
+        {
+            File file = resolve(name);
+            for (TreeDigester digester : digesters)
+            {
+                byte[] fingerprint = cache != null ? cache.get(file, digester.getName()) : null;
+                if (fingerprint == null)
+                {
+                    long length = file.length();
+                    long modified = file.lastModified();
+                    fingerprint = digester.digest(file, null);
+                    if (cache != null)
+                        cache.put(file, digester.getName(), length, modified, fingerprint);
+                }
+                printFingerprint(digester.getName(), name, fingerprint);
+            }
+        }
+    }
+
+    /**
+     * Prints one fingerprint line, either untagged as "fingerprint  name", or tagged as "algorithm (name) = fingerprint".
+     * The fingerprint is formatted into a reused array, so printing thousands of them creates no garbage.
+     */
+    private void printFingerprint(String tag, String name, byte[] fingerprint) throws IOException
+    {
+        int length = formatter.length(fingerprint.length);
+        if (text.length < length)
+            text = new char[length];
+        formatter.format(fingerprint, text, 0);
+
+        if (tag != null)
+        {
+            out.write(tag);
+            out.write(" (");
+            out.write(name);
+            out.write(") = ");
+            out.write(text, 0, length);
+        }
+        else
+        {
+            out.write(text, 0, length);
+            out.write("  ");
+            out.write(name);
+        }
+        out.newLine();
+        out.flush();
+    }
+
+    /**
+     * Saves the fingerprint cache.  Failing to is not worth failing the command for.
+     */
+    private static void saveCache(FingerprintCache cache)
+    {
+        try
+        {
+            cache.save();
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.WARNING, "Unable to save the fingerprint cache.", ex);
+        }
+    }
+
+    /**
+     * Reads the password from the password file, the environment, or the console, in that order of preference,
+     * unless it was given with the command.
+     */
+    private char[] readPassword(boolean confirm) throws IOException
+    {
+        if (password != null)
+            return password;
+
+        if (passwordFile != null)
+            return readPasswordFile(passwordFile);
+
+        if (passwordVariable != null)
+        {
+            String value = System.getenv(passwordVariable);
+            if (value == null)
+                throw new IOException("The environment variable " + passwordVariable + " is not set.");
+            return value.toCharArray();
+        }
+
+        return readConsolePassword(confirm);
+    }
+
+    /**
+     * Reads a password from the console, asking for it twice if it must be confirmed.
+     *
+     * @param confirm whether to ask for the password again
+     * @return the password
+     * @throws IOException there is no console, nothing was entered, or the passwords don't match
+     */
+    static char[] readConsolePassword(boolean confirm) throws IOException
+    {
+        Console console = System.console();
+        if (console == null)
+            throw new IOException("No console to read the password from; use --password-file or --password-env.");
+
+        char[] pw = console.readPassword("Password: ");
+        if (pw == null)
+            throw new EOFException("No password was entered.");
+        if (confirm)
+        {
+            char[] again = console.readPassword("Confirm password: ");
+            boolean matches = again != null && Arrays.equals(pw, again);
+            if (again != null)
+                Arrays.fill(again, '\0');
+            if (!matches)
+            {
+                Arrays.fill(pw, '\0');
+                throw new IOException("The passwords do not match.");
+            }
+        }
+        return pw;
+    }
+
+    /**
+     * Reads the first line of a file as a password, overwriting the bytes read once they are decoded.
+     */
+    private static char[] readPasswordFile(File file) throws IOException
+    {
+        byte[] bytes = new byte[(int) Math.min(file.length(), MAX_PASSWORD_FILE)];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(bytes);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        CharBuffer chars = UTF8.decode(ByteBuffer.wrap(bytes));
+        Arrays.fill(bytes, (byte) 0);
+
+        int end = 0;
+        while (end < chars.limit() && chars.get(end) != '\n' && chars.get(end) != '\r')
+            end++;
+
+        char[] pw = new char[end];
+        chars.get(pw);
+        Arrays.fill(chars.array(), '\0');
+        return pw;
+    }
+
+    /**
+     * Reads the key derivation and digest algorithm the GUI saved, for any not given on the command line.
+     */
+    private void loadPreferences()
+    {
+        File file = Main.getPreferencesFile();
+        if (!file.exists())
+            return;
+
+        Properties properties = new Properties();
+        try
+        {
+            InputStream in = new FileInputStream(file);
+            try
+            {
+                properties.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.WARNING, "Properties file was unreadable.", ex);
+            return;
+        }
+
+        if (digestAlgorithm == null)
+            digestAlgorithm = properties.getProperty("digest_algorithm");
+
+        String savedName = properties.getProperty("kdf", PBKDF2KeyDerivation.NAME);
+        if (keyDerivationName == null || keyDerivationName.equals(savedName))
+        {
+            keyDerivationName = savedName;
+            if (keyDerivationCost == 0)
+                keyDerivationCost = Integer.parseInt(properties.getProperty("kdf_cost", "0"));
+        }
+    }
+
+    /**
+     * Returns the key derivation to encrypt with.  A function with no cost from either the command line or
+     * the preferences file gets its default cost.
+     */
+    private KeyDerivation getKeyDerivation() throws NoSuchAlgorithmException
+    {
+        String name = keyDerivationName != null ? keyDerivationName : PBKDF2KeyDerivation.NAME;
+        int cost = keyDerivationCost;
+        if (cost == 0)
+            cost = name.equals(ScryptKeyDerivation.NAME) ? ScryptKeyDerivation.DEFAULT_LOG_N : PBKDF2KeyDerivation.DEFAULT_ITERATIONS;
+        return KeyDerivation.getInstance(name, cost);
+    }
+
+    /**
+     * Throws the failure of an asynchronous operation as itself.
+     */
+    private static void rethrow(Throwable cause) throws CryptoException, IOException, GeneralSecurityException
+    {
+        if (cause instanceof CryptoException)
+            throw (CryptoException) cause;
+        if (cause instanceof IOException)
+            throw (IOException) cause;
+        if (cause instanceof GeneralSecurityException)
+            throw (GeneralSecurityException) cause;
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        throw new IOException(cause);
+    }
+
+    /**
+     * Returns the file a name on the command line refers to.
+     */
+    private File resolve(String name)
+    {
+        File file = new File(name);
+        if (directory == null || file.isAbsolute())
+            return file;
+        return new File(directory, name);
+    }
+
+    /**
+     * Checks that a cost given on the command line is within what the key derivation function allows.
+     *
+     * @throws IllegalArgumentException the cost is out of range
+     */
+    private static void checkCost(String name, int cost)
+    {
+        int minimum = PBKDF2KeyDerivation.MINIMUM_ITERATIONS;
+        int maximum = PBKDF2KeyDerivation.MAXIMUM_ITERATIONS;
+        if (name.equals(ScryptKeyDerivation.NAME))
+        {
+            minimum = ScryptKeyDerivation.MINIMUM_LOG_N;
+            maximum = ScryptKeyDerivation.MAXIMUM_LOG_N;
+        }
+        if (cost < minimum || cost > maximum)
+            throw new IllegalArgumentException("The cost of " + name + " must be from " + minimum + " to " + maximum + ": " + cost);
+    }
+
+    private static String keyDerivationName(String name)
+    {
+        if (name.equalsIgnoreCase("pbkdf2") || name.equals(PBKDF2KeyDerivation.NAME))
+            return PBKDF2KeyDerivation.NAME;
+        if (name.equalsIgnoreCase(ScryptKeyDerivation.NAME))
+            return ScryptKeyDerivation.NAME;
+        throw new IllegalArgumentException("Unknown key derivation function: " + name);
+    }
+
+    private static String value(String[] args, int i, String option)
+    {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    private static int number(String value, String option)
+    {
+        try
+        {
+            int n = Integer.parseInt(value);
+            if (n > 0)
+                return n;
+        }
+        catch (NumberFormatException ex)
+        {
+            /* Reported below. */
+        }
+        throw new IllegalArgumentException("The value of " + option + " must be a positive number: " + value);
+    }
+
+    private static FingerprintFormatter formatter(String layout)
+    {
+        if (layout.equalsIgnoreCase("plain"))
+            return new FingerprintFormatter(FingerprintFormatter.PLAIN, false);
+        if (layout.equalsIgnoreCase("colon"))
+            return new FingerprintFormatter(FingerprintFormatter.COLON, true);
+        if (layout.equalsIgnoreCase("base64"))
+            return new FingerprintFormatter(FingerprintFormatter.BASE64, false);
+        throw new IllegalArgumentException("Unknown fingerprint format: " + layout);
+    }
+
+    private static void printUsage(PrintStream out, String command)
+    {
+        if (command.equals(FINGERPRINT))
+        {
+            out.println("Usage: panther fingerprint [options] [file...]");
+            out.println("\n-a\t--algorithm NAMES\tThe digest algorithm, such as SHA-256, or a comma separated list");
+            out.println("\t\t\t\tof algorithms, which are all computed in one pass over each file.");
+            out.println("-t\t--tree\t\t\tCompute a Merkle tree hash, hashing the leaves of each file on every");
+            out.println("\t\t\t\tprocessor.  This is not the plain digest, and is labelled as such.");
+            out.println("-l\t--leaf-size N\t\tThe number of bytes in each tree hash leaf (default: 1048576).");
+            out.println("-f\t--format FORMAT\t\tHow fingerprints are written: plain (the default), colon or base64.");
+            out.println("\t--no-cache\t\tDon't use or update the cache of fingerprints of unchanged files.");
+        }
+        else
+        {
+            out.println("Usage: panther " + command + " [options] [file]");
+            out.println("\n-o\t--output FILE\t\tWrite to FILE instead of standard output.");
+            out.println("-p\t--password-file FILE\tRead the password from the first line of FILE.");
+            out.println("-e\t--password-env NAME\tRead the password from the environment variable NAME.");
+            if (command.equals(ENCRYPT))
+            {
+                out.println("-k\t--kdf NAME\t\tThe key derivation function: pbkdf2 or scrypt.");
+                out.println("-c\t--cost N\t\tThe iterations (pbkdf2, " + PBKDF2KeyDerivation.MINIMUM_ITERATIONS + " to " + PBKDF2KeyDerivation.MAXIMUM_ITERATIONS + ") or log2 of the work factor (scrypt, " + ScryptKeyDerivation.MINIMUM_LOG_N + " to " + ScryptKeyDerivation.MAXIMUM_LOG_N + ").");
+            }
+            out.println("-m\t--mapped\t\tUse memory mapped I/O when both input and output are files.");
+            out.println("-r\t--recursive\t\tProcess every file in the input directory into the output directory.");
+            out.println("-j\t--jobs N\t\tProcess N files at a time when recursive (default: one per processor).");
+        }
+        out.println("-v\t--verbose\t\tOutput detailed runtime information.");
+        out.println("-h\t--help\t\t\tPrint this help message.");
+        out.println("\nWith no file, or when the file is -, standard input is read.");
+    }
+
+    /**
+     * Writes what is logged in one command's LogContext to that command's standard error.
+     */
+    private static class CommandLogHandler extends Handler
+    {
+        CommandLogHandler(PrintStream err)
+        {
+            this.err = err;
+            context = LogContext.current();
+            setFormatter(new SimpleFormatter());
+            setLevel(Level.ALL);
+        }
+
+        public void publish(LogRecord record)
+        {
+            if (LogContext.current() == context && isLoggable(record))
+                err.print(getFormatter().format(record));
+        }
+
+        public void flush()
+        {
+            err.flush();
+        }
+
+        public void close()
+        {
+            flush();
+        }
+
+        private final PrintStream err;
+        private final LogContext context;
+    }
+
+    public static final String ENCRYPT = "encrypt";
+    public static final String DECRYPT = "decrypt";
+    public static final String FINGERPRINT = "fingerprint";
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_USAGE = 1;
+    public static final int EXIT_FAILURE = 2;
+    public static final int EXIT_DENIED = 3;
+
+    /**
+     * The digest algorithm used when neither the command line nor the preferences file names one, which
+     * is the same as the default in the main window.
+     */
+    static final String DEFAULT_DIGEST_ALGORITHM = "SHA-1";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Only this much of a password file is read; the password is on its first line.
+     */
+    private static final int MAX_PASSWORD_FILE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Logger logger = Logger.getLogger("org.tamalin.panther");
+    private static int verboseCommands = 0;
+    private static Level savedLevel;
+
+    private final String command;
+    private final List<String> inputs = new ArrayList<String>();
+    private File output;
+    private File passwordFile;
+    private String passwordVariable;
+    private String keyDerivationName;
+    private int keyDerivationCost = 0;
+    private String digestAlgorithm;
+    private boolean memoryMapped = false;
+    private boolean treeHash = false;
+    private int leafSize = 0;
+    private boolean useCache = true;
+    private FingerprintFormatter formatter = new FingerprintFormatter(FingerprintFormatter.PLAIN, false);
+    private char[] text = new char[0];
+    private final File directory;
+    private char[] password;
+    private InputStream stdin;
+    private OutputStream stdout;
+    private PrintStream stderr;
+    private BufferedWriter out;
+    private boolean recursive = false;
+    private int jobs = 0;
+    private boolean verbose = false;
+    private boolean help = false;
+}
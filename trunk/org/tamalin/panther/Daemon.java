@@ -0,0 +1,521 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The Daemon class keeps Panther running in the background, so that commands sent to it by DaemonClient don't
+ * pay for starting a JVM, loading the cryptography provider and compiling the cipher before doing any work.
+ * The ciphers, the worker threads and the key cache stay warm between commands, so decrypting the same file
+ * again doesn't even derive its key again.
+ * <p>
+ * The daemon listens on a Unix domain socket, which only the user who started it may connect to.  Each
+ * connection carries one command, which is run by CommandLine exactly as it would be in batch mode, but with
+ * the client's working directory, standard streams and password.  The client sends the command line and then
+ * its standard input, as frames of an int length and that many bytes, ending with an empty frame; the daemon
+ * sends back frames of a type byte, an int length and the bytes of standard output or standard error, and
+ * finally the exit status.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class Daemon
+{
+    /**
+     * Parses the options.
+     *
+     * @param args the command line arguments, starting with "daemon"
+     * @throws IllegalArgumentException the arguments are invalid
+     */
+    Daemon(String[] args)
+    {
+        for (int i = 1; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (arg.equals("-h") || arg.equals("--help"))
+                help = true;
+            else if (arg.equals("-s") || arg.equals("--socket"))
+                socketFile = new File(value(args, ++i, arg));
+            else if (arg.equals("-v") || arg.equals("--verbose"))
+                logger.setLevel(Level.ALL);
+            else
+                throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+    }
+
+    /**
+     * Runs the daemon until the process is killed.
+     *
+     * @param args the command line arguments, starting with "daemon"
+     * @return the exit status: 1 for bad arguments, and 2 if the daemon could not listen on its socket
+     */
+    public static int run(String[] args)
+    {
+        Daemon daemon;
+        try
+        {
+            daemon = new Daemon(args);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            System.err.println("panther: " + ex.getMessage());
+            printUsage(System.err);
+            return CommandLine.EXIT_USAGE;
+        }
+
+        if (daemon.help)
+        {
+            printUsage(System.out);
+            return CommandLine.EXIT_OK;
+        }
+
+        try
+        {
+            daemon.serve();
+            return CommandLine.EXIT_OK;
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.FINE, "Unable to listen on " + daemon.socketFile, ex);
+            System.err.println("panther: unable to listen on " + daemon.socketFile + ": " + ex.getMessage());
+            return CommandLine.EXIT_FAILURE;
+        }
+    }
+
+    /**
+     * Returns the socket the daemon listens on unless told otherwise, next to the preferences file.
+     *
+     * @return the socket file
+     */
+    static File getDefaultSocketFile()
+    {
+        return new File(Main.getPreferencesFile().getPath() + ".socket");
+    }
+
+    /**
+     * Listens on the socket, running the commands on a limited number of worker threads.  When they are all
+     * busy and enough connections are already waiting for one, the next connection is run on the listening
+     * thread, so no more are accepted until it is done.  The limits can be set with the
+     * panther.daemon.threads and panther.daemon.queue system properties.
+     */
+    private void serve() throws IOException
+    {
+        final Path path = socketFile.toPath();
+        if (Files.exists(path))
+        {
+            if (isListening(path))
+                throw new IOException("another daemon is already listening there.");
+
+            /* Left behind by a daemon that was killed. */
+            Files.delete(path);
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try
+        {
+            server.bind(UnixDomainSocketAddress.of(path));
+            restrict(path);
+            owner = Files.getOwner(path);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    socketFile.delete();
+                }
+            }, "panther-daemon-cleanup"));
+
+            Startup.warmUpCrypto(CommandLine.DEFAULT_DIGEST_ALGORITHM);
+            PantherMetrics.register();
+            System.err.println("panther: listening on " + path);
+
+            int threads = Integer.getInteger("panther.daemon.threads", DEFAULT_THREADS);
+            int queue = Integer.getInteger("panther.daemon.queue", DEFAULT_QUEUE);
+            TaskExecutor executor = new TaskExecutor("panther-daemon", threads, queue, false);
+            while (true)
+            {
+                final SocketChannel channel = server.accept();
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        handle(channel);
+                    }
+                });
+            }
+        }
+        finally
+        {
+            server.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Runs the command sent on one connection, and closes it.
+     */
+    private void handle(SocketChannel channel)
+    {
+        try
+        {
+            try
+            {
+                if (!isOwner(channel))
+                {
+                    logger.log(Level.WARNING, "Refused a connection from another user.");
+                    return;
+                }
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new ChannelInputStream(channel), BUFFER_SIZE));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new ChannelOutputStream(channel), BUFFER_SIZE));
+                if (in.readInt() != MAGIC)
+                {
+                    logger.log(Level.WARNING, "Refused a connection that isn't from a Panther client.");
+                    return;
+                }
+
+                /* Both counts come from the client, so they are checked before anything is allocated. */
+                File directory = new File(in.readUTF());
+                int count = in.readInt();
+                if (count < 1 || count > MAX_ARGUMENTS)
+                {
+                    logger.log(Level.WARNING, "Refused a command with " + count + " arguments.");
+                    return;
+                }
+                String[] args = new String[count];
+                for (int i = 0; i < args.length; i++)
+                    args[i] = in.readUTF();
+                char[] password = null;
+                int length = in.readInt();
+                if (length < -1 || length > MAX_PASSWORD_LENGTH)
+                {
+                    logger.log(Level.WARNING, "Refused a command with a password of " + length + " characters.");
+                    return;
+                }
+                if (length >= 0)
+                {
+                    password = new char[length];
+                    for (int i = 0; i < length; i++)
+                        password[i] = in.readChar();
+                }
+
+                logger.log(Level.FINE, "Running " + args[0] + " in " + directory + ".");
+                FrameOutputStream stdout = new FrameOutputStream(out, STDOUT);
+                PrintStream stderr = new PrintStream(new FrameOutputStream(out, STDERR), true);
+                int status;
+                try
+                {
+                    status = CommandLine.run(args, directory, password, new FrameInputStream(in), stdout, stderr);
+                }
+                finally
+                {
+                    if (password != null)
+                        Arrays.fill(password, '\0');
+                }
+
+                stdout.flush();
+                stderr.flush();
+                synchronized (out)
+                {
+                    out.writeByte(EXIT);
+                    out.writeInt(status);
+                    out.flush();
+                }
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.WARNING, "Lost the connection to a client.", ex);
+        }
+        catch (RuntimeException ex)
+        {
+            logger.log(Level.SEVERE, "A command failed unexpectedly.", ex);
+        }
+    }
+
+    /**
+     * Tells whether the peer of a connection is the user the daemon runs as.  Where the platform can't tell,
+     * the permissions of the socket file are relied on instead.
+     */
+    private boolean isOwner(SocketChannel channel) throws IOException
+    {
+        try
+        {
+            UnixDomainPrincipal peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            return peer.user().equals(owner);
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Makes the socket file readable and writable by its owner only, where the file system has permissions.
+     */
+    private static void restrict(Path path) throws IOException
+    {
+        try
+        {
+            Files.setPosixFilePermissions(path, EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            /* The socket is in the user's home directory, which is protected by the system. */
+        }
+    }
+
+    private static boolean isListening(Path path)
+    {
+        try
+        {
+            SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+            return true;
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+    }
+
+    private static String value(String[] args, int i, String option)
+    {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    private static void printUsage(PrintStream out)
+    {
+        out.println("Usage: panther daemon [options]");
+        out.println("\n-s\t--socket FILE\t\tListen on FILE (default: " + getDefaultSocketFile() + ").");
+        out.println("-v\t--verbose\t\tOutput detailed runtime information.");
+        out.println("-h\t--help\t\t\tPrint this help message.");
+        out.println("\nCommands are sent to the daemon with 'panther client <command> [options] [files]'.");
+    }
+
+    /**
+     * Reads from a blocking channel.  The streams Channels makes lock the channel for every read and write, so
+     * one thread couldn't read while another writes; these don't.
+     */
+    static class ChannelInputStream extends InputStream
+    {
+        ChannelInputStream(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        private final SocketChannel channel;
+    }
+
+    /**
+     * Writes to a blocking channel, without locking it against reads.
+     */
+    static class ChannelOutputStream extends OutputStream
+    {
+        ChannelOutputStream(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+
+        private final SocketChannel channel;
+    }
+
+    /**
+     * Reads the client's standard input out of the frames it is sent in.  Closing the stream does nothing, since
+     * the connection is still needed for the output.
+     */
+    private static class FrameInputStream extends InputStream
+    {
+        FrameInputStream(DataInputStream in)
+        {
+            this.in = in;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public synchronized int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+            while (remaining == 0)
+            {
+                if (ended)
+                    return -1;
+                remaining = in.readInt();
+                ended = remaining == 0;
+            }
+
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0)
+                throw new EOFException("The client disconnected in the middle of its input.");
+            remaining -= n;
+            return n;
+        }
+
+        public void close()
+        {
+        }
+
+        private final DataInputStream in;
+        private int remaining = 0;
+        private boolean ended = false;
+    }
+
+    /**
+     * Writes one of the client's output streams as frames.  Several streams, and several threads, share the
+     * connection, so each frame is written whole.  Closing the stream only flushes it.
+     */
+    private static class FrameOutputStream extends OutputStream
+    {
+        FrameOutputStream(DataOutputStream out, int type)
+        {
+            this.out = out;
+            this.type = type;
+        }
+
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return;
+            synchronized (out)
+            {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        public void flush() throws IOException
+        {
+            synchronized (out)
+            {
+                out.flush();
+            }
+        }
+
+        public void close() throws IOException
+        {
+            flush();
+        }
+
+        private final DataOutputStream out;
+        private final int type;
+    }
+
+    public static final String DAEMON = "daemon";
+
+    /**
+     * The first int of every request, so that anything else connecting to the socket is turned away.
+     */
+    static final int MAGIC = 0x504e5401;
+    /**
+     * A frame of standard output.
+     */
+    static final int STDOUT = 1;
+    /**
+     * A frame of standard error.
+     */
+    static final int STDERR = 2;
+    /**
+     * The exit status of the command, which is the last thing sent.
+     */
+    static final int EXIT = 3;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The number of commands run at once, and the number of connections that may wait for a thread.  A command
+     * can spend most of its time waiting for the client's standard input, so there are more threads than
+     * processors.
+     */
+    static final int DEFAULT_THREADS = 16;
+    static final int DEFAULT_QUEUE = 64;
+
+    /**
+     * The most arguments and the longest password a command may be sent with.
+     */
+    static final int MAX_ARGUMENTS = 1024;
+    static final int MAX_PASSWORD_LENGTH = 8192;
+    private static final Logger logger = Logger.getLogger("org.tamalin.panther");
+
+    private File socketFile = getDefaultSocketFile();
+    private UserPrincipal owner;
+    private boolean help = false;
+}
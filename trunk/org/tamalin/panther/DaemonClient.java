@@ -0,0 +1,265 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The DaemonClient class sends a batch mode command to a running Daemon, and passes on its output and exit
+ * status, so that a script gets the same results as from batch mode without the startup time.  It does as
+ * little as it can itself: only a password that the daemon can't read, from the console or from this
+ * process's environment, is read here and sent with the command.
+ * <p>
+ * If no daemon is listening, the command is run in this process instead, so scripts work either way.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class DaemonClient
+{
+    private DaemonClient()
+    {
+    }
+
+    /**
+     * Runs a command in the daemon.
+     *
+     * @param args the command line arguments: "client", optionally --socket and a file, then the command
+     * @return the exit status of the command, as for CommandLine.run(), or 2 if the connection to the daemon
+     *         was lost
+     */
+    public static int run(String[] args)
+    {
+        File socketFile = Daemon.getDefaultSocketFile();
+        int start = 1;
+        if (args.length > 2 && (args[1].equals("-s") || args[1].equals("--socket")))
+        {
+            socketFile = new File(args[2]);
+            start = 3;
+        }
+        if (args.length > start && (args[start].equals("-h") || args[start].equals("--help")))
+        {
+            printUsage(System.out);
+            return CommandLine.EXIT_OK;
+        }
+        if (args.length <= start || !CommandLine.isCommand(args[start]))
+        {
+            System.err.println("panther: the client needs an encrypt, decrypt or fingerprint command.");
+            printUsage(System.err);
+            return CommandLine.EXIT_USAGE;
+        }
+        String[] command = Arrays.copyOfRange(args, start, args.length);
+
+        SocketChannel channel;
+        try
+        {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile.toPath()));
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.FINE, "No daemon is listening on " + socketFile + "; running the command here.", ex);
+            return CommandLine.run(command);
+        }
+
+        try
+        {
+            char[] password;
+            try
+            {
+                password = readPassword(command);
+            }
+            catch (IOException ex)
+            {
+                System.err.println("panther: " + ex.getMessage());
+                return CommandLine.EXIT_FAILURE;
+            }
+            if (command.length > Daemon.MAX_ARGUMENTS || (password != null && password.length > Daemon.MAX_PASSWORD_LENGTH))
+            {
+                System.err.println("panther: the command or password is too long to send to the daemon.");
+                return CommandLine.EXIT_USAGE;
+            }
+            return send(channel, command, password);
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.FINE, "Lost the connection to the daemon.", ex);
+            System.err.println("panther: lost the connection to the daemon: " + ex.getMessage());
+            return CommandLine.EXIT_FAILURE;
+        }
+        finally
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ex)
+            {
+                /* The command has finished either way. */
+            }
+        }
+    }
+
+    /**
+     * Sends the command, then this process's standard input, and copies the output back until the exit status
+     * arrives.
+     */
+    private static int send(SocketChannel channel, String[] command, char[] password) throws IOException
+    {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new Daemon.ChannelOutputStream(channel), Daemon.BUFFER_SIZE));
+        try
+        {
+            out.writeInt(Daemon.MAGIC);
+            out.writeUTF(new File("").getAbsolutePath());
+            out.writeInt(command.length);
+            for (String arg : command)
+                out.writeUTF(arg);
+            out.writeInt(password != null ? password.length : -1);
+            if (password != null)
+            {
+                for (char c : password)
+                    out.writeChar(c);
+            }
+            out.flush();
+        }
+        finally
+        {
+            if (password != null)
+                Arrays.fill(password, '\0');
+        }
+
+        /* Standard input is only read if the command wants it, so it is sent from a thread that may be left blocked. */
+        Thread input = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                sendInput(out);
+            }
+        }, "panther-client-input");
+        input.setDaemon(true);
+        input.start();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new Daemon.ChannelInputStream(channel), Daemon.BUFFER_SIZE));
+        OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        OutputStream stderr = new FileOutputStream(FileDescriptor.err);
+        byte[] buffer = new byte[Daemon.BUFFER_SIZE];
+        while (true)
+        {
+            int type = in.readByte();
+            if (type == Daemon.EXIT)
+                return in.readInt();
+
+            OutputStream target = type == Daemon.STDERR ? stderr : stdout;
+            int remaining = in.readInt();
+            while (remaining > 0)
+            {
+                int n = Math.min(remaining, buffer.length);
+                in.readFully(buffer, 0, n);
+                target.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    /**
+     * Copies standard input to the daemon in frames, ending with an empty one.
+     */
+    private static void sendInput(DataOutputStream out)
+    {
+        InputStream in = new FileInputStream(FileDescriptor.in);
+        byte[] buffer = new byte[Daemon.BUFFER_SIZE];
+        try
+        {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                out.writeInt(n);
+                out.write(buffer, 0, n);
+                out.flush();
+            }
+            out.writeInt(0);
+            out.flush();
+        }
+        catch (IOException ex)
+        {
+            /* The daemon has finished and closed the connection. */
+        }
+    }
+
+    /**
+     * Reads the password of an encrypt or decrypt command when it comes from the console or the environment.
+     * A password file is left for the daemon to read, since it can.
+     *
+     * @return the password, or null if the daemon reads it or the command doesn't need one
+     */
+    private static char[] readPassword(String[] command) throws IOException
+    {
+        if (command[0].equals(CommandLine.FINGERPRINT))
+            return null;
+
+        String variable = null;
+        for (int i = 1; i < command.length; i++)
+        {
+            String arg = command[i];
+            if (arg.equals("--"))
+                break;
+            if (arg.equals("-h") || arg.equals("--help") || arg.equals("-p") || arg.equals("--password-file"))
+                return null;
+            if ((arg.equals("-e") || arg.equals("--password-env")) && i + 1 < command.length)
+                variable = command[++i];
+            else if (arg.equals("-o") || arg.equals("--output") || arg.equals("-k") || arg.equals("--kdf")
+                    || arg.equals("-c") || arg.equals("--cost") || arg.equals("-j") || arg.equals("--jobs"))
+                i++;
+        }
+
+        if (variable != null)
+        {
+            String value = System.getenv(variable);
+            if (value == null)
+                throw new IOException("The environment variable " + variable + " is not set.");
+            return value.toCharArray();
+        }
+        return CommandLine.readConsolePassword(command[0].equals(CommandLine.ENCRYPT));
+    }
+
+    private static void printUsage(PrintStream out)
+    {
+        out.println("Usage: panther client [--socket FILE] <command> [command options] [files]");
+        out.println("\nRuns an encrypt, decrypt or fingerprint command in the daemon started with 'panther daemon',");
+        out.println("or in this process if no daemon is listening.  Run 'panther <command> --help' for the options.");
+        out.println("\n-s\t--socket FILE\t\tThe daemon's socket (default: " + Daemon.getDefaultSocketFile() + ").");
+    }
+
+    public static final String CLIENT = "client";
+
+    private static final Logger logger = Logger.getLogger("org.tamalin.panther");
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The LogContext class tells apart the commands run at the same time by the daemon, so that what one
+ * command logs can be sent to that command alone.  The context belongs to the thread running the command;
+ * threads it starts inherit it, and the TaskExecutor carries it over to the worker threads running its tasks.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+final class LogContext
+{
+    private LogContext()
+    {
+    }
+
+    /**
+     * Creates a new context and makes it the calling thread's.
+     *
+     * @return the context the calling thread had before, to be passed to exit()
+     */
+    static LogContext enter()
+    {
+        LogContext previous = current.get();
+        current.set(new LogContext());
+        return previous;
+    }
+
+    /**
+     * Gives the calling thread back the context it had before enter() was called.
+     *
+     * @param previous the value returned by enter()
+     */
+    static void exit(LogContext previous)
+    {
+        current.set(previous);
+    }
+
+    /**
+     * Returns the calling thread's context.
+     *
+     * @return the context, or null if the thread is not running a command
+     */
+    static LogContext current()
+    {
+        return current.get();
+    }
+
+    /**
+     * Returns a task that runs with the calling thread's context, whichever thread it is run on.
+     *
+     * @param task the task
+     * @param <T>  the type of the task's result
+     * @return the task, bound to the calling thread's context
+     */
+    static <T> Callable<T> wrap(final Callable<T> task)
+    {
+        final LogContext context = current.get();
+        return new Callable<T>()
+        {
+            public T call() throws Exception
+            {
+                LogContext previous = current.get();
+                current.set(context);
+                try
+                {
+                    return task.call();
+                }
+                finally
+                {
+                    current.set(previous);
+                }
+            }
+        };
+    }
+
+    private static final InheritableThreadLocal<LogContext> current = new InheritableThreadLocal<LogContext>();
+}
@@ -18,7 +18,9 @@ package org.tamalin.panther;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.File;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This is the main class where the program starts.  It contains the main method and parses
@@ -41,12 +43,28 @@ public class Main
     public static void main(String[] args)
     {
         // Set default logging threshold to Level.WARNING
-        Panther.getLogger().setLevel(Level.WARNING);
+        logger.setLevel(Level.WARNING);
 
         /* Parse the command line arguments, if there are any. */
         if (args.length > 0)
         {
-            if (args[0].equals("-h") || args[0].equals("--help") || args[0].equals("-a") || args[0].equals("--ayudas") || args[0].equals("--aiuto"))
+            if (CommandLine.isCommand(args[0]))
+            {
+                /* Batch mode runs without a display, so AWT must never be started. */
+                System.setProperty("java.awt.headless", "true");
+                System.exit(CommandLine.run(args));
+            }
+            else if (args[0].equals(Daemon.DAEMON))
+            {
+                System.setProperty("java.awt.headless", "true");
+                System.exit(Daemon.run(args));
+            }
+            else if (args[0].equals(DaemonClient.CLIENT))
+            {
+                System.setProperty("java.awt.headless", "true");
+                System.exit(DaemonClient.run(args));
+            }
+            else if (args[0].equals("-h") || args[0].equals("--help") || args[0].equals("-a") || args[0].equals("--ayudas") || args[0].equals("--aiuto"))
             {
                 /* Print command line help. */
                 printHelp();
@@ -58,7 +76,7 @@ public class Main
             }
             else if(args[0].equals("-v") || args[0].equals("--verbose"))
             {
-                Panther.getLogger().setLevel(Level.ALL);
+                logger.setLevel(Level.ALL);
             }
             else
             {
@@ -71,7 +89,7 @@ public class Main
         /* -------------MAC OS X ONLY-------------- */
         if (System.getProperty("os.name").equals("Mac OS X"))
         {
-            Panther.getLogger().log(Level.INFO, "Setting Mac OS X Program Name");
+            logger.log(Level.INFO, "Setting Mac OS X Program Name");
             System.setProperty("com.apple.mrj.application.apple.menu.about.name", "Panther");
         }
 
@@ -81,7 +99,7 @@ public class Main
         {
             public void run()
             {
-                Panther.getLogger().log(Level.INFO, "Initializing and showing main window.");
+                logger.log(Level.INFO, "Initializing and showing main window.");
                 Panther m = new Panther();
                 m.setVisible(true);
                 if(System.getProperty("os.name").equals("Mac OS X"))
@@ -97,11 +115,47 @@ public class Main
 
     }
 
+    /**
+     * Returns the file the program preferences are saved in.
+     *
+     * @return the preferences file
+     */
+    static File getPreferencesFile()
+    {
+        String home = System.getProperty("user.home");
+        String path = null;
+        if(System.getProperty("os.name").equals("Mac OS X"))
+            path = home + "/Library/Preferences/org.tamalin.panther";
+        else
+            path = home + "/.panther";
+
+        return new File(path);
+    }
+
+    /**
+     * Returns the file the fingerprint cache is kept in, next to the preferences file.
+     *
+     * @return the fingerprint cache file
+     */
+    static File getFingerprintCacheFile()
+    {
+        return new File(getPreferencesFile().getPath() + ".fingerprints");
+    }
+
     private static void printHelp()
     {
         System.out.println("Usage: panther [options]");
+        System.out.println("       panther <command> [command options] [files]");
         System.out.println("\n-h\t--help\tPrint this help message.");
         System.out.println("-V\t--version\t Print the program version.");
         System.out.println("-v\t--verbose\tOutput detailed runtime information.");
+        System.out.println("\nCommands run without a window.  Run 'panther <command> --help' for their options.");
+        System.out.println("encrypt\t\tEncrypt a file or standard input.");
+        System.out.println("decrypt\t\tDecrypt a file or standard input.");
+        System.out.println("fingerprint\tPrint the message digest of files or standard input.");
+        System.out.println("daemon\t\tKeep running in the background, serving commands sent by the client.");
+        System.out.println("client\t\tRun a command in the daemon: panther client <command> [options] [files].");
     }
+
+    private static final Logger logger = Logger.getLogger("org.tamalin.panther");
 }
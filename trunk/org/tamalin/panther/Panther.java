@@ -15,24 +15,46 @@
  */
 package org.tamalin.panther;
 
-import org.tamalin.panther.crypt.CipherEngine;
+import org.tamalin.panther.crypt.AsyncCipher;
+import org.tamalin.panther.crypt.AuthenticationException;
+import org.tamalin.panther.crypt.CorruptDataException;
+import org.tamalin.panther.crypt.FileDigester;
+import org.tamalin.panther.crypt.FingerprintCache;
+import org.tamalin.panther.crypt.FingerprintFormatter;
+import org.tamalin.panther.crypt.KeyCache;
+import org.tamalin.panther.crypt.KeyDerivation;
+import org.tamalin.panther.crypt.PBKDF2KeyDerivation;
+import org.tamalin.panther.file.AtomicFile;
+import org.tamalin.panther.file.FileOpener;
 import org.tamalin.panther.file.FileSaveRunnable;
+import org.tamalin.panther.text.PagedText;
+import org.tamalin.panther.text.PagedTextView;
+import org.tamalin.panther.text.PieceTableDocument;
 
 import com.sun.awt.AWTUtilities;
 import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
 import javax.swing.*;
+import javax.swing.text.Document;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.security.*;
-import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.Properties;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.*;
 
 /**
@@ -42,7 +64,7 @@ import java.util.logging.*;
  * @author Quytelda K. Gaiwin
  * @since 1.0
  */
-public class Panther extends JFrame implements Updatable
+public class Panther extends JFrame
 {
     /**
      * Creates the main window of the application, and loads all the related properties.
@@ -116,73 +138,17 @@ public class Panther extends JFrame implements Updatable
             this.setSize(width, height);
             this.setLocation(x, y);
             hideOpacity = Float.parseFloat(properties.getProperty("hidden_opacity"));
+            memoryMapped = Boolean.parseBoolean(properties.getProperty("mapped_io"));
+            keyDerivationName = properties.getProperty("kdf", PBKDF2KeyDerivation.NAME);
+            keyDerivationCost = Integer.parseInt(properties.getProperty("kdf_cost", "0"));
         }
 
-
-        /* Try to instantiate a CipherEngine with the AES algorithm. */
-        try
-        {
-            cipherRunnable = new CipherEngine("AES");
-        }
-        catch (NoSuchAlgorithmException ex)
-        {
-            logger.log(Level.SEVERE, "Algorithm Not Found", ex);
-        }
-        catch (NoSuchPaddingException ex)
-        {
-            logger.log(Level.SEVERE, "Padding Error", ex);
-        }
-
-
         /*####################
          *#  Event Handlers  #
          *####################*/
-        save.addActionListener(new ActionListener()
-        {
-            public void actionPerformed(ActionEvent evt)
-            {
-                /* Make sure the JFileChooser is initialized. */
-                if (fileChooser == null)
-                {
-                    fileChooser = new JFileChooser();
-                }
+        save.addActionListener(saveListener);
 
-                /* Open the JFileChooser, and wait for confirmation. */
-                int confirmed = fileChooser.showSaveDialog(Panther.this);
-
-                /* If the dialog was canceled, exit the method. */
-                if (confirmed != JFileChooser.APPROVE_OPTION)
-                {
-                    return;
-                }
-
-                /* Get the chosen file. */
-                File file = fileChooser.getSelectedFile();
-
-                /* Save the data to file. */
-                saveBytes(plaintext.getText().getBytes(), file);
-            }
-        });
-
-        ActionListener openActionListener = new ActionListener()
-        {
-            public void actionPerformed(ActionEvent e)
-            {
-                if(fileChooser == null)
-                    fileChooser = new JFileChooser();
-
-                int confirmed = fileChooser.showOpenDialog(Panther.this);
-
-                if(confirmed == JFileChooser.APPROVE_OPTION)
-                {
-                    File file = fileChooser.getSelectedFile();
-                    byte[] b = readFile(file);
-                    plaintext.setText(new String(b));
-                }
-            }
-        };
-        open.addActionListener(openActionListener);
-        openFileItem.addActionListener(openActionListener);
+        open.addActionListener(openListener);
 
         hide.addActionListener(new ActionListener()
         {
@@ -193,15 +159,6 @@ public class Panther extends JFrame implements Updatable
             }
         });
 
-        hideItem.addActionListener(new ActionListener()
-        {
-            public void actionPerformed(ActionEvent ae)
-            {
-                Panther.this.toggleHidden();
-            }
-
-        });
-
         lock.addActionListener(new ActionListener()
         {
             public void actionPerformed(ActionEvent evt)
@@ -234,108 +191,17 @@ public class Panther extends JFrame implements Updatable
             }
         });
 
-        editPreferencesItem.addActionListener(new ActionListener()
-        {
-            public void actionPerformed(ActionEvent e)
-            {
-                showPreferences();
-            }
-        });
-
-        lockItem.addActionListener(new ActionListener()
-        {
-            public void actionPerformed(ActionEvent evt)
-            {
-                Panther.this.setLocked(true);
-            }
-        });
-
-        unlockItem.addActionListener(new ActionListener()
-        {
-            public void actionPerformed(ActionEvent evt)
-            {
-                Panther.this.setLocked(false);
-            }
-        });
-
-        fingerprintItem.addActionListener(new ActionListener()
-        {
-            public void actionPerformed(ActionEvent evt)
-            {
-                byte[] fingerprint;
-                try
-                {
-                    fingerprint = computeFingerprint(plaintext.getText().getBytes());
-
-                    /* Construct a dialog to display the digest. */
-                    JPanel controlPanel = new JPanel();
-                    controlPanel.add(new JLabel(getDigestAlgorithm() + " Fingerprint:"));
-                    JTextField copyField = new JTextField();
-                    copyField.setEditable(false);
-
-                    /* Convert the fingerprint to Hex code. */
-                    StringBuilder hexBuilder = new StringBuilder();
-                    for (int i = 0; i < fingerprint.length; i += 2)
-                    {
-                        String hexComponents = Integer.toHexString(fingerprint[i] & 0xFF).toUpperCase();
-
-                        if (hexComponents.length() == 1)
-                        {
-                            hexComponents = "0".concat(hexComponents);
-                        }
-
-                        hexBuilder.append(hexComponents);
-                        if (i != fingerprint.length - 2)
-                        {
-                            hexBuilder.append(":");
-                        }
-                    }
-
-                    /* Display the dialog. */
-                    copyField.setColumns(hexBuilder.toString().toCharArray().length + 2);
-                    copyField.setText(hexBuilder.toString());
-                    controlPanel.add(copyField);
-                    JOptionPane.showMessageDialog(Panther.this, controlPanel,
-                            "Fingerprint", JOptionPane.INFORMATION_MESSAGE);
-                }
-                catch (NoSuchAlgorithmException ex)
-                {
-                    Panther.this.showError("Unknown Algorithm", "The algorithm " + Panther.this.getDigestAlgorithm() + " was not found");
-                }
-            }
-        });
-
-        this.aboutMenuItem.addActionListener(new ActionListener()
-        {
-            public void actionPerformed(ActionEvent evt)
-            {
-                Panther.this.showAbout();
-            }
-        });
-
-        this.encryptItem.addActionListener(new ActionListener()
-        {
-            public void actionPerformed(ActionEvent evt)
-            {
-                encrypt();
-            }
-        });
-
-        this.decryptItem.addActionListener(new ActionListener()
-        {
-            public void actionPerformed(ActionEvent evt)
-            {
-                decrypt();
-            }
-        });
-
         this.addWindowListener(new WindowAdapter()
         {
             public void windowClosing(WindowEvent e)
             {   
                 try
                 {
-                    cleanUp();
+                    /* A hidden window can be shown again, so only exit cleanly when the program is closing. */
+                    if (getDefaultCloseOperation() == JFrame.HIDE_ON_CLOSE)
+                        saveProperties();
+                    else
+                        cleanUp();
                 }
                 catch(IOException ex)
                 {
@@ -350,36 +216,58 @@ public class Panther extends JFrame implements Updatable
      */
     public void encrypt()
     {
-        /* Create the encryption thread. */
-        byte[] data = plaintext.getText().getBytes();
-        int cipherMode = Cipher.ENCRYPT_MODE;
+        /*
+         * Stream a snapshot of the text through the cipher in the background, so the text is never copied into
+         * a String, then save the result from the event dispatch thread.
+         */
+        InputStream text = openText();
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
         char[] pswd = password.getPassword();
-
-        try
+        asyncCipher.process(text, encrypted, Cipher.ENCRYPT_MODE, pswd, null).thenApply(new Function<Long, byte[]>()
         {
-            cipherRunnable.init(data, cipherMode, pswd, Panther.this);
-        }
-        catch (InvalidKeyException ex)
+            public byte[] apply(Long length)
+            {
+                return encrypted.toByteArray();
+            }
+        }).whenCompleteAsync(new OperationListener<byte[]>(Cipher.ENCRYPT_MODE), eventQueue);
+    }
+
+    /**
+     * This method encrypts or decrypts a file chosen by the user directly into another file.
+     * The file is streamed through the cipher, so it never has to fit in memory.
+     *
+     * @param cipherMode either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     */
+    public void processFile(int cipherMode)
+    {
+        /* Ask for the file to read, then the file to write. */
+        if (getFileChooser().showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
         {
-            logger.log(Level.SEVERE, "Invalid Key Generated", ex);
-            Panther.this.showError("Invalid", "The provided password has generated an invalid encryption key.");
+            return;
         }
-        catch (NoSuchAlgorithmException ex)
+        File input = getFileChooser().getSelectedFile();
+
+        if (getFileChooser().showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
         {
-            logger.log(Level.SEVERE, "Invalid Algorithm", ex);
-            showError("Algorithm not found!", "The encryption algorithm in use was not detected.");
+            return;
         }
-        catch (InvalidKeySpecException ex)
+        File output = getFileChooser().getSelectedFile();
+
+        if (input.equals(output))
         {
-            logger.log(Level.SEVERE, "Invalid Key Specification", ex);
-            showError("Invalid", "The generated encryption key has been reported as invalid.");
+            showError("Invalid File", "The output file must be different from the input file.");
+            return;
         }
 
-        /* Create a thread from the cipherRunnable. */
-        Thread encryptionThread = new Thread(cipherRunnable);
+        char[] pswd = password.getPassword();
 
-        /* Main the thread. */
-        encryptionThread.start();
+        /* Show the progress bar, and process the file in the background. */
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        progressPercent = 0;
+        asyncCipher.setMemoryMapped(memoryMapped);
+        OperationListener<File> listener = new OperationListener<File>(cipherMode);
+        asyncCipher.process(input, output, cipherMode, pswd, listener).whenCompleteAsync(listener, eventQueue);
     }
 
     private void initComponents()
@@ -391,9 +279,12 @@ public class Panther extends JFrame implements Updatable
         tools = new JToolBar(JToolBar.HORIZONTAL);
 
         /* Handle the text components. */
-        plaintext = new JTextArea(20, 55);
+        plaintext = new JTextArea(new PieceTableDocument(), null, 20, 55);
         plaintext.setLineWrap(true);
         password = new JPasswordField(20);
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
 
         /* Then the JButtons and JLabels. */
         encrypt = new JButton(bundle.getString("encrypt"));
@@ -425,18 +316,209 @@ public class Panther extends JFrame implements Updatable
         privacyMenu = new JMenu(bundle.getString("menu.privacy"));
         operationMenu = new JMenu(bundle.getString("menu.operations"));
         helpMenu = new JMenu(bundle.getString("menu.help"));
+    }
+
+    /**
+     * Paints the window.  The first paint ends the part of startup the user waits for; whatever isn't needed to
+     * show the window is finished afterwards, once the paint has reached the screen.
+     *
+     * @param g the graphics context
+     */
+    @Override
+    public void paint(Graphics g)
+    {
+        super.paint(g);
+        if (!painted)
+        {
+            painted = true;
+            Startup.firstPainted();
+            EventQueue.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    finishStartup();
+                }
+            });
+        }
+    }
+
+    /**
+     * Builds the parts of the interface that can't be seen until they are used, and starts warming up the
+     * cryptography and the file chooser in the background.
+     */
+    private void finishStartup()
+    {
+        logger.log(Level.FINE, "Finishing startup.");
+        initMenus();
+        configureKeyDerivation();
+        Startup.warmUp(getDigestAlgorithm(), new Runnable()
+        {
+            public void run()
+            {
+                getFileChooser();
+            }
+        });
+    }
+
+    /**
+     * Creates the menu items, which are only seen once a menu is opened, and adds them to their menus.
+     */
+    private void initMenus()
+    {
+        ResourceBundle bundle = ResourceBundle.getBundle(BUNDLE_PATH, Locale.getDefault());
 
-        /* Now initialize the JMenuItems. */
         openFileItem = new JMenuItem(bundle.getString("menu.file.open"));
         saveFileItem = new JMenuItem(bundle.getString("menu.file.save"));
         editPreferencesItem = new JMenuItem(bundle.getString("menu.edit.preferences"));
         fingerprintItem = new JMenuItem(bundle.getString("menu.privacy.fingerprint"));
+        fingerprintFileItem = new JMenuItem(bundle.getString("menu.privacy.fingerprint_file"));
         encryptItem = new JMenuItem(bundle.getString("menu.privacy.encrypt"));
         decryptItem = new JMenuItem(bundle.getString("menu.privacy.decrypt"));
+        encryptFileItem = new JMenuItem(bundle.getString("menu.privacy.encrypt_file"));
+        decryptFileItem = new JMenuItem(bundle.getString("menu.privacy.decrypt_file"));
         lockItem = new JMenuItem(bundle.getString("menu.operations.lock"));
         unlockItem = new JMenuItem(bundle.getString("menu.operations.unlock"));
         hideItem = new JMenuItem(bundle.getString("menu.operations.hide"));
         aboutMenuItem = new JMenuItem(bundle.getString("menu.help.about"));
+
+        fileMenu.add(this.openFileItem);
+        fileMenu.add(this.saveFileItem);
+        editMenu.add(this.editPreferencesItem);
+        operationMenu.add(this.encryptItem);
+        operationMenu.add(this.decryptItem);
+        operationMenu.add(this.encryptFileItem);
+        operationMenu.add(this.decryptFileItem);
+        operationMenu.add(fingerprintItem);
+        operationMenu.add(fingerprintFileItem);
+        operationMenu.add(this.privacyMenu);
+        privacyMenu.add(this.hideItem);
+        privacyMenu.add(lockItem);
+        privacyMenu.add(unlockItem);
+
+        /* Mac OS X provides the about item in the application menu. */
+        if (!System.getProperty("os.name").equals("Mac OS X"))
+        {
+            helpMenu.add(aboutMenuItem);
+        }
+
+        openFileItem.addActionListener(openListener);
+        saveFileItem.addActionListener(saveListener);
+
+        hideItem.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent ae)
+            {
+                Panther.this.toggleHidden();
+            }
+
+        });
+
+        editPreferencesItem.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent e)
+            {
+                showPreferences();
+            }
+        });
+
+        lockItem.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent evt)
+            {
+                Panther.this.setLocked(true);
+            }
+        });
+
+        unlockItem.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent evt)
+            {
+                Panther.this.setLocked(false);
+            }
+        });
+
+        fingerprintItem.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent evt)
+            {
+                try
+                {
+                    InputStream text = openText();
+                    showFingerprint(getDigestAlgorithm(), new FileDigester(getDigestAlgorithm()).digest(text));
+                }
+                catch (NoSuchAlgorithmException ex)
+                {
+                    Panther.this.showError("Unknown Algorithm", "The algorithm " + Panther.this.getDigestAlgorithm() + " was not found");
+                }
+                catch (IOException ex)
+                {
+                    /* The text is read from memory, so this can't happen. */
+                    logger.log(Level.SEVERE, "Unable to read the text.", ex);
+                }
+            }
+        });
+
+        fingerprintFileItem.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent evt)
+            {
+                fingerprintFile();
+            }
+        });
+
+        this.aboutMenuItem.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent evt)
+            {
+                Panther.this.showAbout();
+            }
+        });
+
+        this.encryptItem.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent evt)
+            {
+                encrypt();
+            }
+        });
+
+        this.decryptItem.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent evt)
+            {
+                decrypt();
+            }
+        });
+
+        this.encryptFileItem.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent evt)
+            {
+                processFile(Cipher.ENCRYPT_MODE);
+            }
+        });
+
+        this.decryptFileItem.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent evt)
+            {
+                processFile(Cipher.DECRYPT_MODE);
+            }
+        });
+    }
+
+    /**
+     * Returns the file chooser, creating it the first time it is needed.
+     *
+     * @return the file chooser
+     */
+    private JFileChooser getFileChooser()
+    {
+        if (fileChooser == null)
+        {
+            fileChooser = new JFileChooser();
+        }
+        return fileChooser;
     }
 
     private void initialize(File file)
@@ -463,14 +545,8 @@ public class Panther extends JFrame implements Updatable
         /* Read the file to be decrypted. */
         File file;
 
-        /* Make sure the JFileChooser is initialized. */
-        if (Panther.this.fileChooser == null)
-        {
-            fileChooser = new JFileChooser();
-        }
-
         /* Show the file chooser and wait for confirmation. */
-        int confirmed = fileChooser.showOpenDialog(Panther.this);
+        int confirmed = getFileChooser().showOpenDialog(Panther.this);
 
         /* If the user canceled the dialog, exit the method. */
         if (confirmed != JFileChooser.APPROVE_OPTION)
@@ -479,93 +555,89 @@ public class Panther extends JFrame implements Updatable
         }
 
         /* Get the selected file. */
-        file = fileChooser.getSelectedFile();
+        file = getFileChooser().getSelectedFile();
 
-        /* Read the contents of the file into a byte array. */
-        FileInputStream fis = null;
-        byte[] data = new byte[(int) file.length()];
-        try
-        {
-            fis = new FileInputStream(file);
-            fis.read(data);
-        }
-        catch (FileNotFoundException ex)
+        /* Read the file, then decrypt it, in the background; the text is shown from the event dispatch thread. */
+        final File selected = file;
+        final char[] pswd = password.getPassword();
+        CompletableFuture.supplyAsync(new Supplier<byte[]>()
         {
-            logger.log(Level.INFO, "File Not Found", ex);
-            showError("File Not Found", "The specified file was not found.");
-        }
-        catch (IOException ex)
-        {
-            logger.log(Level.WARNING, "Input/Output Error", ex);
-            showError("IO Error", "Unable to read the file.  Make sure that you have read permission.");
-        }
-        finally
-        {
-            /* Make sure the stream is closed. */
-            try
+            public byte[] get()
             {
-                if (fis != null)
+                try
+                {
+                    return Files.readAllBytes(selected.toPath());
+                }
+                catch (IOException ex)
                 {
-                    fis.close();
+                    Arrays.fill(pswd, '\0');
+                    throw new CompletionException(ex);
                 }
             }
-            catch (IOException ex)
+        }, TaskExecutor.getDefault()).thenCompose(new Function<byte[], CompletionStage<byte[]>>()
+        {
+            public CompletionStage<byte[]> apply(byte[] data)
             {
-                logger.log(Level.WARNING, "Unable to close file input stream.", ex);
+                return asyncCipher.decrypt(data, pswd);
             }
-        }
-
-        /* Create the decryption thread. */
-        /* The CipherEngine must be initialized correctly before it can be run as a thread. */
-        int cipherMode = Cipher.DECRYPT_MODE;
-        char[] pswd = password.getPassword();
-
-        try
-        {
-            cipherRunnable.init(data, cipherMode, pswd, Panther.this);
-        }
-        catch (InvalidKeyException ex)
-        {
-            showError("Invalid Key", "The provided password has produced an invalid decryption key.");
-        }
-        catch (NoSuchAlgorithmException ex)
-        {
-            showError("Unknown Algorithm", "The current decryption algorithm is not available.");
-        }
-        catch (InvalidKeySpecException ex)
-        {
-            showError("Invalid Key", "The generated encryption key is invalid.");
-        }
-
-        /* Create a thread from the cipherRunnable. */
-        Thread decryptionThread = new Thread(cipherRunnable);
-
-        /* Main the thread. */
-        decryptionThread.start();
+        }).whenCompleteAsync(new OperationListener<byte[]>(Cipher.DECRYPT_MODE), eventQueue);
     }
 
-    public byte[] readFile(File file)
+    /**
+     * Reads a text file into the text area.  The file is decoded on a background thread into a new document,
+     * which replaces the text area's document once it is complete.
+     *
+     * @param file the file to read
+     */
+    public void openFile(final File file)
     {
-        if(!file.exists())
-            return null;
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        progressPercent = 0;
 
-        byte[] bytes = new byte[(int) file.length()];
-        try
+        final PieceTableDocument document = new PieceTableDocument();
+        final Updatable progress = new Updatable()
         {
-            FileInputStream fis = new FileInputStream(file);
-            fis.read(bytes);
-            return bytes;
-        }
-        catch (FileNotFoundException ex)
+            public void updateFromBytes(byte[] data)
+            {
+            }
+
+            public void updateProgress(long processed, long total)
+            {
+                Panther.this.updateProgress(processed, total);
+            }
+        };
+
+        CompletableFuture.supplyAsync(new Supplier<Charset>()
         {
-            logger.log(Level.SEVERE, "Attempting to open file that does not exist!", ex);
-        }
-        catch(IOException ex)
+            public Charset get()
+            {
+                try
+                {
+                    /* The document isn't shown yet, so it can be filled off the event dispatch thread. */
+                    return new FileOpener(file).open(document, progress);
+                }
+                catch (IOException ex)
+                {
+                    throw new CompletionException(ex);
+                }
+            }
+        }, TaskExecutor.getDefault()).whenCompleteAsync(new BiConsumer<Charset, Throwable>()
         {
-            logger.log(Level.SEVERE, "I/O error while reading file.", ex);
-        }
+            public void accept(Charset charset, Throwable failure)
+            {
+                if (failure != null)
+                {
+                    showFailure(failure);
+                    return;
+                }
 
-        return null;
+                logger.log(Level.FINE, "Read " + file + " as " + charset + ".");
+                closeViewer();
+                plaintext.setDocument(document);
+                plaintext.setCaretPosition(0);
+            }
+        }, eventQueue);
     }
 
     /**
@@ -575,12 +647,75 @@ public class Panther extends JFrame implements Updatable
     {
         PreferencesDialog preferencesDialog = new PreferencesDialog(this);
         preferencesDialog.setDefaultDigestAlg(this.getDigestAlgorithm());
+        preferencesDialog.setDefaultMemoryMapped(memoryMapped);
+        preferencesDialog.setDefaultKeyDerivation(keyDerivationName);
         preferencesDialog.setVisible(true);
         if (preferencesDialog.isApproved())
         {
             this.setDigestAlgorithm(preferencesDialog.getChosenDigestAlgorithm());
             hideOpacity = preferencesDialog.getHideOpacity();
+            memoryMapped = preferencesDialog.isMemoryMappedChosen();
+
+            /* A different key derivation function has to be calibrated again. */
+            String chosen = preferencesDialog.getChosenKeyDerivation();
+            if (!chosen.equals(keyDerivationName))
+            {
+                synchronized (this)
+                {
+                    keyDerivationName = chosen;
+                    keyDerivationCost = 0;
+                }
+                configureKeyDerivation();
+            }
+        }
+    }
+
+    /**
+     * Sets up the key derivation used to encrypt new data.  If its cost hasn't been calibrated on this
+     * machine yet, it is calibrated in the background, and the default cost is used in the meantime.
+     */
+    private void configureKeyDerivation()
+    {
+        if (keyDerivationCost > 0)
+        {
+            try
+            {
+                KeyDerivation.setDefault(KeyDerivation.getInstance(keyDerivationName, keyDerivationCost));
+                return;
+            }
+            catch (GeneralSecurityException ex)
+            {
+                logger.log(Level.WARNING, "Unknown key derivation function " + keyDerivationName + "; calibrating again.", ex);
+                keyDerivationName = PBKDF2KeyDerivation.NAME;
+            }
         }
+
+        final String name = keyDerivationName;
+        TaskExecutor.getBackground().execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    KeyDerivation derivation = KeyDerivation.calibrate(name, KEY_DERIVATION_TIME);
+                    logger.log(Level.INFO, "Calibrated " + name + " to a cost of " + derivation.getCost() + ".");
+
+                    synchronized (Panther.this)
+                    {
+                        /* Don't overwrite a different choice made while calibrating. */
+                        if (name.equals(keyDerivationName))
+                        {
+                            keyDerivationCost = derivation.getCost();
+                            KeyDerivation.setDefault(derivation);
+                        }
+                    }
+                }
+                catch (GeneralSecurityException ex)
+                {
+                    logger.log(Level.SEVERE, "Unable to calibrate " + name + ".", ex);
+                }
+            }
+        });
     }
 
     /**
@@ -640,18 +775,28 @@ public class Panther extends JFrame implements Updatable
         if (lock)
         {
             // Lock frame
-            tmpPlaintext = plaintext.getText();
-            plaintext.setText("");
+            /* Set the document aside rather than copying the text out of it. */
+            hiddenDocument = plaintext.getDocument();
+            plaintext.setDocument(new PieceTableDocument());
+            if (viewer != null)
+                plaintextPane.setViewportView(plaintext);
             password.setText("");
 
+            // Forget any keys derived while the frame was unlocked
+            KeyCache cache = KeyCache.getDefault();
+            logger.log(Level.FINE, "Clearing key cache (" + cache.getHits() + " hits, " + cache.getMisses() + " misses).");
+            cache.clear();
+
             // Disable menubar
             mb.setEnabled(false);
         }
         else
         {
             // Unhide plaintext
-            plaintext.setText(tmpPlaintext);
-            tmpPlaintext = null;
+            plaintext.setDocument(hiddenDocument);
+            hiddenDocument = null;
+            if (viewer != null)
+                plaintextPane.setViewportView(viewer);
 
             //Enable menubar
             mb.setEnabled(true);
@@ -666,14 +811,7 @@ public class Panther extends JFrame implements Updatable
 
     private File getPreferencesFile()
     {
-        String home = System.getProperty("user.home");
-        String path = null;
-        if(System.getProperty("os.name").equals("Mac OS X"))
-            path = home + "/Library/Preferences/org.tamalin.panther";
-        else
-            path = home + "/.panther";
-
-        return new File(path);
+        return Main.getPreferencesFile();
     }
 
     public static Logger getLogger()
@@ -695,6 +833,7 @@ public class Panther extends JFrame implements Updatable
         tools.setFloatable(false);
         this.add(tools, BorderLayout.NORTH);
         this.add(centerPanel, BorderLayout.CENTER);
+        this.add(progressBar, BorderLayout.SOUTH);
 
         
 
@@ -751,26 +890,13 @@ public class Panther extends JFrame implements Updatable
         mb.add(operationMenu);
         mb.add(helpMenu);
 
-        fileMenu.add(this.openFileItem);
-        fileMenu.add(this.saveFileItem);
-        editMenu.add(this.editPreferencesItem);
-        operationMenu.add(this.encryptItem);
-        operationMenu.add(this.decryptItem);
-        operationMenu.add(fingerprintItem);
-        operationMenu.add(this.privacyMenu);
-        privacyMenu.add(this.hideItem);
-        privacyMenu.add(lockItem);
-        privacyMenu.add(unlockItem);
-        helpMenu.add(aboutMenuItem);
-
         this.setJMenuBar(mb);
 
         /* ---------- Mac OS X Only ----------- */
-        /* Remove duplicate menu items on Mac OS X;
+        /* Hide duplicate menus on Mac OS X;
          * These items are already provided by the system. */
         if (System.getProperty("os.name").equals("Mac OS X"))
         {
-            helpMenu.remove(aboutMenuItem);
             editMenu.setVisible(false);
         }
 
@@ -831,32 +957,94 @@ public class Panther extends JFrame implements Updatable
     {
         try
         {
-            FileSaveRunnable saveRunnable = new FileSaveRunnable(data, file);
-            Thread saveThread = new Thread(saveRunnable);
-            saveThread.start();
+            save(new FileSaveRunnable(data, file));
         }
-        catch (Exception ex)
+        catch (IOException ex)
         {
             logger.log(Level.WARNING, "Unable to run the save thread.", ex);
         }
     }
 
-    public void updateFromBytes(byte[] data)
+    /**
+     * Saves everything read from a stream to the given file, and closes the stream.
+     *
+     * @param data the stream to write to file
+     * @param file the file to write to
+     */
+    public void saveStream(InputStream data, File file)
     {
-        if (cipherRunnable.getMode() == Cipher.DECRYPT_MODE)
+        try
         {
-            plaintext.setText(new String(data));
+            save(new FileSaveRunnable(data, file));
         }
-        else
+        catch (IOException ex)
+        {
+            logger.log(Level.WARNING, "Unable to run the save thread.", ex);
+        }
+    }
+
+    /**
+     * Saves in the background, and tells the user if the file couldn't be written.
+     */
+    private void save(final FileSaveRunnable saveRunnable)
+    {
+        try
         {
-            /* Make sure the JFileChooser is initialized. */
-            if (fileChooser == null)
+            CompletableFuture.runAsync(new Runnable()
             {
-                fileChooser = new JFileChooser();
-            }
+                public void run()
+                {
+                    try
+                    {
+                        saveRunnable.save();
+                    }
+                    catch (IOException ex)
+                    {
+                        throw new CompletionException(ex);
+                    }
+                }
+            }, TaskExecutor.getDefault()).whenCompleteAsync(new BiConsumer<Void, Throwable>()
+            {
+                public void accept(Void result, Throwable failure)
+                {
+                    if (failure != null)
+                        showFailure(failure);
+                }
+            }, eventQueue);
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.WARNING, "Unable to run the save thread.", ex);
+        }
+    }
 
+    /**
+     * Shows the result of an encryption or decryption operation: decrypted text goes in the text area,
+     * and encrypted data is saved to a file chosen by the user.
+     *
+     * @param cipherMode either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param data       the result of the operation
+     */
+    public void showResult(int cipherMode, byte[] data)
+    {
+        if (cipherMode == Cipher.DECRYPT_MODE)
+        {
+            /* A large result is shown read only by a viewer that only decodes the rows on screen. */
+            Charset charset = Charset.defaultCharset();
+            if (data.length > VIEWER_THRESHOLD && PagedText.supports(charset))
+            {
+                showViewer(new PagedText(data, charset));
+            }
+            else
+            {
+                closeViewer();
+                plaintext.setText(new String(data));
+            }
+        }
+        else
+        {
             /* Open the JFileChooser, and wait for confirmation. */
-            int confirmed = fileChooser.showSaveDialog(this);
+            int confirmed = getFileChooser().showSaveDialog(this);
 
             /* If the file dialog was canceled, exit the method. */
             if (confirmed != JFileChooser.APPROVE_OPTION)
@@ -865,25 +1053,251 @@ public class Panther extends JFrame implements Updatable
             }
 
             /* Get the chosen file. */
-            File file = fileChooser.getSelectedFile();
+            File file = getFileChooser().getSelectedFile();
 
             /* Save the bytes to file. */
             saveBytes(data, file);
         }
     }
 
+    public void updateProgress(final long processed, final long total)
+    {
+        /* Only update the display when the percentage changes, so large files don't flood the event queue. */
+        final int percent = (total <= 0) ? 100 : (int) (processed * 100 / total);
+        if (percent == progressPercent && processed < total)
+        {
+            return;
+        }
+        progressPercent = percent;
+
+        EventQueue.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                progressBar.setValue(percent);
+                if (total <= 0 || processed >= total)
+                {
+                    progressBar.setVisible(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Receives the progress and the outcome of one encryption or decryption operation.  Every operation
+     * gets its own listener, so operations running at the same time can't mix up their results.  The
+     * outcome is delivered on the event dispatch thread.
+     */
+    private class OperationListener<T> implements Updatable, BiConsumer<T, Throwable>
+    {
+        OperationListener(int cipherMode)
+        {
+            this.cipherMode = cipherMode;
+        }
+
+        public void accept(T result, Throwable failure)
+        {
+            if (failure != null)
+                showFailure(failure);
+            else if (result instanceof byte[])
+                showResult(cipherMode, (byte[]) result);
+        }
+
+        public void updateFromBytes(byte[] data)
+        {
+            showResult(cipherMode, data);
+        }
+
+        public void updateProgress(long processed, long total)
+        {
+            Panther.this.updateProgress(processed, total);
+        }
+
+        private final int cipherMode;
+    }
+
+    /**
+     * Tells the user why an encryption or decryption operation failed.
+     *
+     * @param failure the exception the operation failed with
+     */
+    private void showFailure(Throwable failure)
+    {
+        if (failure instanceof CompletionException && failure.getCause() != null)
+            failure = failure.getCause();
+
+        if (failure instanceof AuthenticationException)
+        {
+            logger.log(Level.SEVERE, "Authentication failed.", failure);
+            showError("Decryption Failed", "Decryption failed: Access is denied.");
+        }
+        else if (failure instanceof CorruptDataException)
+        {
+            logger.log(Level.SEVERE, "Data is damaged.", failure);
+            showError("Decryption Failed", "This file is invalid (" + failure.getMessage() + ")!");
+        }
+        else if (failure instanceof IOException)
+        {
+            logger.log(Level.SEVERE, "Input/Output Error", failure);
+            showError("I/O Error", "Unable to process the file.  Make sure that you have permission to read and write the files.");
+        }
+        else
+        {
+            logger.log(Level.SEVERE, "Unable to process the data.", failure);
+            showError("Operation Failed", "The data could not be processed.");
+        }
+    }
+
+    /**
+     * Shows a fingerprint in a dialog, from which it can be copied.
+     *
+     * @param algorithm   the name of the digest algorithm
+     * @param fingerprint the fingerprint
+     */
+    public void showFingerprint(String algorithm, byte[] fingerprint)
+    {
+        /* Construct a dialog to display the digest. */
+        JPanel controlPanel = new JPanel();
+        controlPanel.add(new JLabel(algorithm + " Fingerprint:"));
+        JTextField copyField = new JTextField();
+        copyField.setEditable(false);
+
+        /* Convert the fingerprint to Hex code. */
+        String hex = new FingerprintFormatter(FingerprintFormatter.COLON, true).format(fingerprint);
+
+        /* Display the dialog. */
+        copyField.setColumns(hex.length() + 2);
+        copyField.setText(hex);
+        controlPanel.add(copyField);
+        JOptionPane.showMessageDialog(Panther.this, controlPanel,
+                "Fingerprint", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    /**
+     * Computes the fingerprint of a file chosen by the user.  The file is streamed from disk in the background
+     * rather than loaded into the text area, so files of any size can be fingerprinted.
+     */
+    public void fingerprintFile()
+    {
+        if (getFileChooser().showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+        {
+            return;
+        }
+        final File file = getFileChooser().getSelectedFile();
+
+        final String algorithm = getDigestAlgorithm();
+        final FileDigester digester;
+        try
+        {
+            digester = new FileDigester(algorithm);
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            showError("Unknown Algorithm", "The algorithm " + algorithm + " was not found");
+            return;
+        }
+
+        /* Show the progress bar, and read the file in the background. */
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        progressPercent = 0;
+        final Updatable progress = new Updatable()
+        {
+            public void updateFromBytes(byte[] data)
+            {
+            }
+
+            public void updateProgress(long processed, long total)
+            {
+                Panther.this.updateProgress(processed, total);
+            }
+        };
+        CompletableFuture.supplyAsync(new Supplier<byte[]>()
+        {
+            public byte[] get()
+            {
+                try
+                {
+                    return getFingerprintCache().digestAll(file, digester, progress).get(algorithm);
+                }
+                catch (IOException ex)
+                {
+                    throw new CompletionException(ex);
+                }
+            }
+        }, TaskExecutor.getDefault()).whenCompleteAsync(new BiConsumer<byte[], Throwable>()
+        {
+            public void accept(byte[] fingerprint, Throwable failure)
+            {
+                if (failure != null)
+                    showFailure(failure);
+                else
+                    showFingerprint(algorithm, fingerprint);
+            }
+        }, eventQueue);
+    }
+
+    /**
+     * Returns the cache of file fingerprints, reading it the first time it is needed.
+     */
+    private synchronized FingerprintCache getFingerprintCache()
+    {
+        if (fingerprintCache == null)
+            fingerprintCache = new FingerprintCache(Main.getFingerprintCacheFile(), FingerprintCache.DEFAULT_CAPACITY);
+        return fingerprintCache;
+    }
+
+    /**
+     * Shows a text in the paged viewer in place of the text area, whose text is thrown away.
+     *
+     * @param text the text to show
+     */
+    private void showViewer(PagedText text)
+    {
+        closeViewer();
+        plaintext.setDocument(new PieceTableDocument());
+
+        viewer = new PagedTextView(text);
+        viewer.setFont(plaintext.getFont());
+        viewer.setForeground(plaintext.getForeground());
+        viewer.setBackground(plaintext.getBackground());
+        plaintextPane.setViewportView(viewer);
+        viewer.startIndexing(TaskExecutor.getDefault());
+    }
+
+    /**
+     * Puts the text area back in place of the paged viewer, if it is showing.
+     */
+    private void closeViewer()
+    {
+        if (viewer == null)
+            return;
+
+        viewer.dispose();
+        viewer = null;
+        plaintextPane.setViewportView(plaintext);
+    }
+
+    /**
+     * Opens a stream over a snapshot of the text being shown, encoded as it would be saved.
+     *
+     * @return the stream
+     */
+    private InputStream openText()
+    {
+        if (viewer != null)
+            return new ByteArrayInputStream(viewer.getText().getBytes());
+        return getTextDocument().getInputStream(Charset.defaultCharset());
+    }
+
     /**
-     * Computes the message digest, checksum, or "fingerprint" of a byte array.
+     * Returns the document holding the text in the main text area.
      *
-     * @param data the data to be digested
-     * @return the message digest as a byte array
-     * @throws NoSuchAlgorithmException throws a no such algorithm exception when Panther.getDigestAlgorithm() returns
-     * an algorithm which is not supported or known under the current provider.
+     * @return the document
      */
-    public byte[] computeFingerprint(byte[] data) throws NoSuchAlgorithmException
+    private PieceTableDocument getTextDocument()
     {
-        MessageDigest md = MessageDigest.getInstance(this.getDigestAlgorithm());
-        return md.digest(data);
+        return (PieceTableDocument) plaintext.getDocument();
     }
 
     public void showAbout()
@@ -912,7 +1326,26 @@ public class Panther extends JFrame implements Updatable
         JOptionPane.showMessageDialog(null, message, title, JOptionPane.ERROR_MESSAGE);
     }
 
+    /**
+     * Saves the program properties, then waits for background work such as file saves to finish.
+     * This is called when the program is about to exit.
+     *
+     * @throws IOException the properties file could not be written
+     */
     public void cleanUp() throws IOException
+    {
+        try
+        {
+            saveProperties();
+        }
+        finally
+        {
+            logger.log(Level.INFO, "Waiting for background tasks to finish.");
+            TaskExecutor.getDefault().shutdown(SHUTDOWN_TIMEOUT);
+        }
+    }
+
+    private void saveProperties() throws IOException
     {
         /*##################
          * Save Properties *
@@ -926,7 +1359,30 @@ public class Panther extends JFrame implements Updatable
         properties.setProperty("y", "" + this.getY());
         properties.setProperty("digest_algorithm", this.getDigestAlgorithm());
         properties.setProperty("hidden_opacity", "" + hideOpacity);
-        properties.store(new FileOutputStream(file), "Do not modify this file by hand!");
+        properties.setProperty("mapped_io", "" + memoryMapped);
+        synchronized (this)
+        {
+            properties.setProperty("kdf", keyDerivationName);
+            properties.setProperty("kdf_cost", "" + keyDerivationCost);
+        }
+        AtomicFile target = new AtomicFile(file);
+        try
+        {
+            OutputStream out = target.openStream();
+            properties.store(out, "Do not modify this file by hand!");
+            out.close();
+            target.commit();
+        }
+        finally
+        {
+            target.abort();
+        }
+
+        synchronized (this)
+        {
+            if (fingerprintCache != null)
+                fingerprintCache.save();
+        }
     }
     
     private JPanel centerPanel;
@@ -937,9 +1393,11 @@ public class Panther extends JFrame implements Updatable
     private static JPasswordField password;
     private JLabel passwordLabel;
     private JButton about;
-    private String tmpPlaintext = "";
+    private Document hiddenDocument = null;
+    private PagedTextView viewer = null;
     private boolean hidden = false;
     private JFileChooser fileChooser;
+    private boolean painted = false;
     private JScrollPane plaintextPane;
     private JMenuBar mb;
     private JMenu editMenu;
@@ -948,10 +1406,72 @@ public class Panther extends JFrame implements Updatable
     private JMenu fileMenu, helpMenu;
     private JMenuItem openFileItem, saveFileItem, editPreferencesItem;
     private JMenuItem encryptItem, decryptItem, fingerprintItem, lockItem, unlockItem, hideItem;
+    private JMenuItem encryptFileItem, decryptFileItem, fingerprintFileItem;
+    private JProgressBar progressBar;
+    private volatile int progressPercent;
     private JMenuItem aboutMenuItem;
-    private CipherEngine cipherRunnable;
     private String digestAlgorithm;
     private static float hideOpacity;
+    private boolean memoryMapped = false;
+    private final AsyncCipher asyncCipher = new AsyncCipher();
+    private FingerprintCache fingerprintCache;
+    private final ActionListener saveListener = new ActionListener()
+    {
+        public void actionPerformed(ActionEvent evt)
+        {
+            /* Open the JFileChooser, and wait for confirmation. */
+            int confirmed = getFileChooser().showSaveDialog(Panther.this);
+
+            /* If the dialog was canceled, exit the method. */
+            if (confirmed != JFileChooser.APPROVE_OPTION)
+            {
+                return;
+            }
+
+            /* Get the chosen file. */
+            File file = getFileChooser().getSelectedFile();
+
+            /* Save a snapshot of the text, streamed out of the document. */
+            saveStream(openText(), file);
+        }
+    };
+    private final ActionListener openListener = new ActionListener()
+    {
+        public void actionPerformed(ActionEvent e)
+        {
+            int confirmed = getFileChooser().showOpenDialog(Panther.this);
+
+            if(confirmed == JFileChooser.APPROVE_OPTION)
+            {
+                openFile(getFileChooser().getSelectedFile());
+            }
+        }
+    };
+    /**
+     * Runs tasks on the event dispatch thread, so the results of background operations can update the display.
+     */
+    private static final Executor eventQueue = new Executor()
+    {
+        public void execute(Runnable task)
+        {
+            EventQueue.invokeLater(task);
+        }
+    };
+    private String keyDerivationName = PBKDF2KeyDerivation.NAME;
+    private int keyDerivationCost = 0;
+    /**
+     * The number of milliseconds one key derivation should take on this machine.
+     */
+    private static final long KEY_DERIVATION_TIME = 250;
+    /**
+     * The number of milliseconds to wait for background tasks when the program exits.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 10 * 1000L;
+    /**
+     * Decrypted text larger than this many bytes is shown in the paged viewer rather than the text area.  It can
+     * be set with the panther.viewer.threshold system property.
+     */
+    private static final int VIEWER_THRESHOLD = Integer.getInteger("panther.viewer.threshold", 1024 * 1024);
     /**
      * The Panther version description.
      * The individual release number consists of three
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The PantherMetrics class counts the work Panther does, so that a running instance can be watched in JConsole
+ * or VisualVM.  Every encryption, decryption, fingerprint, open and save is timed from begin() to
+ * Operation.end(), whichever part of the program runs it, and its latency goes into a histogram for its type.
+ * Key derivations are timed too, but as part of the operation they happen in, so they are not counted as
+ * operations of their own.
+ * <p>
+ * Recording an operation costs a few atomic updates, so it is always on.  The shared instance is registered
+ * with the platform MBean server by register(), under the name org.tamalin.panther:type=PantherMetrics.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class PantherMetrics implements PantherMetricsMXBean
+{
+    PantherMetrics()
+    {
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new Histogram();
+    }
+
+    /**
+     * Returns the metrics shared by the whole application.
+     *
+     * @return the shared metrics
+     */
+    public static PantherMetrics getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Registers the shared metrics with the platform MBean server, if they aren't already.  A failure is
+     * logged, since the program works just as well without them.
+     */
+    public static synchronized void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(DEFAULT, name);
+        }
+        catch (JMException ex)
+        {
+            logger.log(Level.WARNING, "Unable to register the metrics MBean.", ex);
+        }
+    }
+
+    /**
+     * Starts timing an operation.  The Operation must be ended, in a finally block, however the operation ends.
+     *
+     * @param type the type of operation: ENCRYPT, DECRYPT, DIGEST, KEY_DERIVATION, OPEN or SAVE
+     * @return the operation
+     */
+    public Operation begin(int type)
+    {
+        if (type != KEY_DERIVATION)
+            inFlight.incrementAndGet();
+        return new Operation(type);
+    }
+
+    public long getOperationsCompleted()
+    {
+        return completed.get();
+    }
+
+    public long getOperationsFailed()
+    {
+        return failed.get();
+    }
+
+    public int getOperationsInFlight()
+    {
+        return inFlight.get();
+    }
+
+    public long getBytesEncrypted()
+    {
+        return bytes.get(ENCRYPT);
+    }
+
+    public long getBytesDecrypted()
+    {
+        return bytes.get(DECRYPT);
+    }
+
+    public long getBytesDigested()
+    {
+        return bytes.get(DIGEST);
+    }
+
+    public long getBytesRead()
+    {
+        return bytes.get(OPEN);
+    }
+
+    public long getBytesWritten()
+    {
+        return bytes.get(SAVE);
+    }
+
+    public synchronized double getThroughput()
+    {
+        /* The current second isn't over, so it is left out. */
+        long now = System.nanoTime() / 1000000000L;
+        long total = 0;
+        for (int i = 0; i < windowSeconds.length; i++)
+        {
+            long age = now - windowSeconds[i];
+            if (age >= 1 && age <= THROUGHPUT_WINDOW)
+                total += windowBytes[i];
+        }
+        return (double) total / THROUGHPUT_WINDOW;
+    }
+
+    public int getExecutorQueueDepth()
+    {
+        return TaskExecutor.getDefault().getQueueDepth();
+    }
+
+    public int getExecutorActiveCount()
+    {
+        return TaskExecutor.getDefault().getActiveCount();
+    }
+
+    public long getTimeToFirstPaint()
+    {
+        return Startup.getFirstPaintMillis();
+    }
+
+    public LatencySummary getEncryptLatency()
+    {
+        return histograms[ENCRYPT].summarize();
+    }
+
+    public LatencySummary getDecryptLatency()
+    {
+        return histograms[DECRYPT].summarize();
+    }
+
+    public LatencySummary getDigestLatency()
+    {
+        return histograms[DIGEST].summarize();
+    }
+
+    public LatencySummary getKeyDerivationLatency()
+    {
+        return histograms[KEY_DERIVATION].summarize();
+    }
+
+    public LatencySummary getOpenLatency()
+    {
+        return histograms[OPEN].summarize();
+    }
+
+    public LatencySummary getSaveLatency()
+    {
+        return histograms[SAVE].summarize();
+    }
+
+    public void resetStatistics()
+    {
+        completed.set(0);
+        failed.set(0);
+        for (int i = 0; i < histograms.length; i++)
+        {
+            bytes.set(i, 0);
+            histograms[i].reset();
+        }
+        synchronized (this)
+        {
+            for (int i = 0; i < windowSeconds.length; i++)
+                windowBytes[i] = 0;
+        }
+    }
+
+    private void finish(int type, long nanos, long count, boolean succeeded)
+    {
+        histograms[type].record(nanos);
+        if (type == KEY_DERIVATION)
+            return;
+
+        inFlight.decrementAndGet();
+        if (!succeeded)
+        {
+            failed.incrementAndGet();
+            return;
+        }
+
+        completed.incrementAndGet();
+        bytes.addAndGet(type, count);
+        if (type == ENCRYPT || type == DECRYPT || type == DIGEST)
+        {
+            synchronized (this)
+            {
+                long second = System.nanoTime() / 1000000000L;
+                int slot = (int) Math.floorMod(second, (long) windowSeconds.length);
+                if (windowSeconds[slot] != second)
+                {
+                    windowSeconds[slot] = second;
+                    windowBytes[slot] = 0;
+                }
+                windowBytes[slot] += count;
+            }
+        }
+    }
+
+    /**
+     * One operation being timed.
+     */
+    public class Operation
+    {
+        private Operation(int type)
+        {
+            this.type = type;
+        }
+
+        /**
+         * Stops timing the operation.  Only the first call counts, so it is safe to end an operation again in a
+         * finally block after ending it on success.
+         *
+         * @param count     the number of bytes processed
+         * @param succeeded true if the operation succeeded
+         */
+        public void end(long count, boolean succeeded)
+        {
+            if (ended)
+                return;
+            ended = true;
+            finish(type, System.nanoTime() - start, count, succeeded);
+        }
+
+        private final int type;
+        private final long start = System.nanoTime();
+        private boolean ended = false;
+    }
+
+    /**
+     * The latency of one type of operation, in milliseconds.  Percentiles are accurate to within an eighth.
+     */
+    public static class LatencySummary
+    {
+        LatencySummary(long count, double mean, double median, double percentile90, double percentile99,
+                       double percentile999, double max)
+        {
+            this.count = count;
+            this.mean = mean;
+            this.median = median;
+            this.percentile90 = percentile90;
+            this.percentile99 = percentile99;
+            this.percentile999 = percentile999;
+            this.max = max;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public double getMean()
+        {
+            return mean;
+        }
+
+        public double getMedian()
+        {
+            return median;
+        }
+
+        public double getPercentile90()
+        {
+            return percentile90;
+        }
+
+        public double getPercentile99()
+        {
+            return percentile99;
+        }
+
+        public double getPercentile999()
+        {
+            return percentile999;
+        }
+
+        public double getMax()
+        {
+            return max;
+        }
+
+        private final long count;
+        private final double mean;
+        private final double median;
+        private final double percentile90;
+        private final double percentile99;
+        private final double percentile999;
+        private final double max;
+    }
+
+    /**
+     * A histogram of latencies in microseconds.  Below 16 each microsecond has its own bucket; above, each
+     * power of two is split into eight buckets, so a few hundred counters cover any latency with the same
+     * relative precision and can be updated without a lock.
+     */
+    static class Histogram
+    {
+        void record(long nanos)
+        {
+            long micros = Math.max(0, nanos / 1000);
+            counts.incrementAndGet(bucket(micros));
+            totalMicros.addAndGet(micros);
+
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros))
+            {
+                /* Another thread raised the maximum first; try again. */
+            }
+        }
+
+        LatencySummary summarize()
+        {
+            long[] snapshot = new long[counts.length()];
+            long count = 0;
+            for (int i = 0; i < snapshot.length; i++)
+            {
+                snapshot[i] = counts.get(i);
+                count += snapshot[i];
+            }
+            if (count == 0)
+                return new LatencySummary(0, 0, 0, 0, 0, 0, 0);
+
+            double max = maxMicros.get() / 1000.0;
+            return new LatencySummary(count, totalMicros.get() / 1000.0 / count, percentile(snapshot, count, 0.5, max),
+                    percentile(snapshot, count, 0.9, max), percentile(snapshot, count, 0.99, max),
+                    percentile(snapshot, count, 0.999, max), max);
+        }
+
+        void reset()
+        {
+            for (int i = 0; i < counts.length(); i++)
+                counts.set(i, 0);
+            totalMicros.set(0);
+            maxMicros.set(0);
+        }
+
+        /**
+         * Returns the upper bound, in milliseconds, of the bucket the value at a fraction of the count is in, but
+         * never more than the largest value recorded.
+         */
+        private static double percentile(long[] snapshot, long count, double fraction, double max)
+        {
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++)
+            {
+                seen += snapshot[i];
+                if (seen >= rank)
+                    return Math.min(upperBound(i) / 1000.0, max);
+            }
+            return max;
+        }
+
+        static int bucket(long micros)
+        {
+            if (micros < LINEAR_BUCKETS)
+                return (int) micros;
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exponent - 3)) & 7;
+            return LINEAR_BUCKETS + (exponent - 4) * 8 + sub;
+        }
+
+        static long upperBound(int bucket)
+        {
+            if (bucket < LINEAR_BUCKETS)
+                return bucket + 1;
+            int exponent = (bucket - LINEAR_BUCKETS) / 8 + 4;
+            int sub = (bucket - LINEAR_BUCKETS) % 8;
+            return (long) (9 + sub) << (exponent - 3);
+        }
+
+        private static final int LINEAR_BUCKETS = 16;
+
+        private final AtomicLongArray counts = new AtomicLongArray(LINEAR_BUCKETS + 60 * 8);
+        private final AtomicLong totalMicros = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+    }
+
+    public static final int ENCRYPT = 0;
+    public static final int DECRYPT = 1;
+    public static final int DIGEST = 2;
+    public static final int KEY_DERIVATION = 3;
+    public static final int OPEN = 4;
+    public static final int SAVE = 5;
+
+    /**
+     * The name the shared metrics are registered under.
+     */
+    public static final String OBJECT_NAME = "org.tamalin.panther:type=PantherMetrics";
+    /**
+     * The number of seconds the throughput is averaged over.
+     */
+    private static final int THROUGHPUT_WINDOW = 10;
+    private static final PantherMetrics DEFAULT = new PantherMetrics();
+    private static final Logger logger = Logger.getLogger("org.tamalin.panther");
+
+    private final Histogram[] histograms = new Histogram[6];
+    private final AtomicLongArray bytes = new AtomicLongArray(6);
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final long[] windowSeconds = new long[THROUGHPUT_WINDOW + 2];
+    private final long[] windowBytes = new long[THROUGHPUT_WINDOW + 2];
+}
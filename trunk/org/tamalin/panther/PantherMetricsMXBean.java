@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther;
+
+/**
+ * The management interface of PantherMetrics, as it is seen in JConsole or VisualVM.  Latencies are in
+ * milliseconds, and every count is since the program started or the statistics were last reset.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public interface PantherMetricsMXBean
+{
+    /**
+     * Returns the number of encryptions, decryptions, fingerprints, opens and saves that have succeeded.
+     *
+     * @return the number of operations
+     */
+    long getOperationsCompleted();
+
+    /**
+     * Returns the number of encryptions, decryptions, fingerprints, opens and saves that have failed.
+     *
+     * @return the number of operations
+     */
+    long getOperationsFailed();
+
+    /**
+     * Returns the number of operations running now.
+     *
+     * @return the number of operations
+     */
+    int getOperationsInFlight();
+
+    long getBytesEncrypted();
+
+    long getBytesDecrypted();
+
+    long getBytesDigested();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    /**
+     * Returns the number of bytes encrypted, decrypted or digested per second by operations that finished in
+     * the last ten seconds.
+     *
+     * @return the throughput in bytes per second
+     */
+    double getThroughput();
+
+    /**
+     * Returns the number of tasks waiting for a worker thread of the shared TaskExecutor.
+     *
+     * @return the queue depth
+     */
+    int getExecutorQueueDepth();
+
+    /**
+     * Returns the number of tasks the shared TaskExecutor is running.
+     *
+     * @return the number of active tasks
+     */
+    int getExecutorActiveCount();
+
+    /**
+     * Returns the number of milliseconds from the launch of the JVM to the first paint of the main window.
+     *
+     * @return the time to first paint, or -1 if there is no window or it hasn't been painted
+     */
+    long getTimeToFirstPaint();
+
+    PantherMetrics.LatencySummary getEncryptLatency();
+
+    PantherMetrics.LatencySummary getDecryptLatency();
+
+    PantherMetrics.LatencySummary getDigestLatency();
+
+    PantherMetrics.LatencySummary getKeyDerivationLatency();
+
+    PantherMetrics.LatencySummary getOpenLatency();
+
+    PantherMetrics.LatencySummary getSaveLatency();
+
+    /**
+     * Sets every count and latency back to zero.
+     */
+    void resetStatistics();
+}
@@ -16,6 +16,9 @@
 
 package org.tamalin.panther;
 
+import org.tamalin.panther.crypt.PBKDF2KeyDerivation;
+import org.tamalin.panther.crypt.ScryptKeyDerivation;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
@@ -50,6 +53,29 @@ public class PreferencesDialog extends JDialog
         }
     }
 
+    public void setDefaultMemoryMapped(boolean mapped)
+    {
+        memoryMappedOption.setSelected(mapped);
+    }
+
+    public void setDefaultKeyDerivation(String name)
+    {
+        if (name.equals(ScryptKeyDerivation.NAME))
+            scryptOption.setSelected(true);
+        else
+            pbkdf2Option.setSelected(true);
+    }
+
+    public String getChosenKeyDerivation()
+    {
+        return keyDerivation;
+    }
+
+    public boolean isMemoryMappedChosen()
+    {
+        return memoryMapped;
+    }
+
     public String getChosenDigestAlgorithm()
     {
         return digestAlgorithm;
@@ -71,11 +97,18 @@ public class PreferencesDialog extends JDialog
         digestMD5Option = new JRadioButton("MD5 Fingerprints");
         ButtonGroup bg = new ButtonGroup();
         opacity = new JSpinner();
+        memoryMappedOption = new JCheckBox("Memory-mapped file I/O");
+        pbkdf2Option = new JRadioButton("PBKDF2 (HMAC-SHA256)");
+        scryptOption = new JRadioButton("scrypt (memory hard)");
+        ButtonGroup kdfGroup = new ButtonGroup();
         JButton cancelOption = new JButton("Cancel");
         JButton okOption = new JButton("OK");
         JPanel bottomPanel = new JPanel();
         JPanel centerPanel = new JPanel();
         JPanel opacityPanel = new JPanel();
+        JPanel filePanel = new JPanel();
+        JPanel kdfPanel = new JPanel();
+        JPanel northPanel = new JPanel();
 
         okOption.addActionListener(new ActionListener()
         {
@@ -91,6 +124,13 @@ public class PreferencesDialog extends JDialog
                 hideOpacity = (Integer) opacity.getValue();
                 hideOpacity /= 100;
 
+                memoryMapped = memoryMappedOption.isSelected();
+
+                if (scryptOption.isSelected())
+                    keyDerivation = ScryptKeyDerivation.NAME;
+                else
+                    keyDerivation = PBKDF2KeyDerivation.NAME;
+
                 setVisible(false);
             }
         });
@@ -107,6 +147,8 @@ public class PreferencesDialog extends JDialog
 
         bg.add(digestSHA1Option);
         bg.add(digestMD5Option);
+        kdfGroup.add(pbkdf2Option);
+        kdfGroup.add(scryptOption);
 
         int value = (int) (Panther.getHideOpacity() * 100);
         SpinnerModel model = new SpinnerNumberModel(value, 0, 10, 1);
@@ -118,12 +160,23 @@ public class PreferencesDialog extends JDialog
         centerPanel.setBorder(BorderFactory.createTitledBorder("Fingerprint Algorithm"));
         opacityPanel.add(opacity);
         opacityPanel.setBorder(BorderFactory.createTitledBorder("Hidden Window Opacity"));
+        filePanel.add(memoryMappedOption);
+        filePanel.setBorder(BorderFactory.createTitledBorder("File Operations"));
+        kdfPanel.setLayout(new GridLayout(2, 1));
+        kdfPanel.add(pbkdf2Option);
+        kdfPanel.add(scryptOption);
+        kdfPanel.setBorder(BorderFactory.createTitledBorder("Key Derivation"));
 
         bottomPanel.setLayout(new GridLayout(1, 2));
         bottomPanel.add(okOption);
         bottomPanel.add(cancelOption);
 
-        this.add(centerPanel, BorderLayout.NORTH);
+        northPanel.setLayout(new BorderLayout());
+        northPanel.add(centerPanel, BorderLayout.NORTH);
+        northPanel.add(kdfPanel, BorderLayout.CENTER);
+        northPanel.add(filePanel, BorderLayout.SOUTH);
+
+        this.add(northPanel, BorderLayout.NORTH);
         this.add(opacityPanel, BorderLayout.CENTER);
         this.add(bottomPanel, BorderLayout.SOUTH);
 
@@ -132,9 +185,13 @@ public class PreferencesDialog extends JDialog
 
     private JRadioButton digestSHA1Option, digestMD5Option;
     private JSpinner opacity;
+    private JCheckBox memoryMappedOption;
+    private JRadioButton pbkdf2Option, scryptOption;
     public static final String SHA1 = "SHA-1";
     public static final String MD5 = "MD5";
     private String digestAlgorithm;
     private float hideOpacity;
+    private boolean memoryMapped;
+    private String keyDerivation;
     private boolean changeApproved = false;
 }
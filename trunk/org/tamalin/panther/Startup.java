@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther;
+
+import org.tamalin.panther.crypt.ContainerHeader;
+import org.tamalin.panther.crypt.PBKDF2KeyDerivation;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.swing.filechooser.FileSystemView;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The Startup class keeps the work of starting Panther out of the way of the first window.  The window is
+ * shown with only what can be seen in it; once it has been painted, warmUp() loads the cryptography provider,
+ * the digest, the file system view behind JFileChooser and the metrics MBean on a background thread, so that
+ * the first encryption and the first file dialog don't pay for them either.
+ * <p>
+ * The time from the launch of the JVM to the first paint is logged.  When the panther.startup.probe system
+ * property is set, it is also printed on standard output and the program exits straight away, which is how the
+ * startup benchmark measures it and how a class data sharing archive is trained.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class Startup
+{
+    private Startup()
+    {
+    }
+
+    /**
+     * Records the first paint of the main window.  Only the first call counts.
+     */
+    public static synchronized void firstPainted()
+    {
+        if (firstPaintMillis >= 0)
+            return;
+
+        firstPaintMillis = getUptimeMillis();
+        logger.log(Level.INFO, "First paint " + firstPaintMillis + " ms after launch.");
+        if (Boolean.getBoolean("panther.startup.probe"))
+        {
+            System.out.println(PROBE_PREFIX + firstPaintMillis);
+            System.out.flush();
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Returns the number of milliseconds from the launch of the JVM to the first paint of the main window.
+     *
+     * @return the time to first paint, or -1 if the window hasn't been painted
+     */
+    public static synchronized long getFirstPaintMillis()
+    {
+        return firstPaintMillis;
+    }
+
+    /**
+     * Returns the number of milliseconds since the JVM was launched, or since this class was loaded if the
+     * platform can't tell when the process started.
+     *
+     * @return the uptime
+     */
+    public static long getUptimeMillis()
+    {
+        Instant start = ProcessHandle.current().info().startInstant().orElse(null);
+        if (start != null)
+            return Duration.between(start, Instant.now()).toMillis();
+        return (System.nanoTime() - LOADED) / 1000000L;
+    }
+
+    /**
+     * Does the work put off until after the first paint, on the background executor.  Each part
+     * that fails is only logged, since the same work is done again, on demand, when it is needed.
+     *
+     * @param digestAlgorithm the digest algorithm fingerprints are made with
+     * @param then            run on the event dispatch thread once the warm up is done, or null
+     */
+    public static void warmUp(final String digestAlgorithm, final Runnable then)
+    {
+        TaskExecutor.getBackground().execute(new Runnable()
+        {
+            public void run()
+            {
+                long start = System.nanoTime();
+                warmUpCrypto(digestAlgorithm);
+
+                /* Most of the time JFileChooser takes is spent setting up the file system view. */
+                FileSystemView view = FileSystemView.getFileSystemView();
+                view.getRoots();
+                view.getHomeDirectory();
+
+                PantherMetrics.register();
+                logger.log(Level.FINE, "Warmed up in " + (System.nanoTime() - start) / 1000000L + " ms.");
+                if (then != null)
+                    java.awt.EventQueue.invokeLater(then);
+            }
+        });
+    }
+
+    /**
+     * Loads the cipher, key derivation and digest implementations by deriving a key and encrypting and decrypting
+     * one byte.  The JCA is called directly rather than through CipherEngine, so that warming up records no
+     * metrics or Flight Recorder events and leaves no key in the KeyCache.  A single iteration of key derivation
+     * is used, since only the code is being loaded, not a key that protects anything.
+     */
+    static void warmUpCrypto(String digestAlgorithm)
+    {
+        PBEKeySpec spec = new PBEKeySpec(new char[]{'w', 'a', 'r', 'm'}, new byte[SALT_LENGTH], 1, PBKDF2KeyDerivation.KEY_LENGTH * 8);
+        try
+        {
+            byte[] key = SecretKeyFactory.getInstance(PBKDF2KeyDerivation.NAME).generateSecret(spec).getEncoded();
+            SecretKeySpec secret = new SecretKeySpec(key, ALGORITHM);
+            GCMParameterSpec parameters = new GCMParameterSpec(ContainerHeader.TAG_LENGTH * 8, new byte[NONCE_LENGTH]);
+
+            Cipher cipher = Cipher.getInstance(ContainerHeader.TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, secret, parameters);
+            byte[] sealed = cipher.doFinal(new byte[1]);
+            cipher.init(Cipher.DECRYPT_MODE, secret, parameters);
+            cipher.doFinal(sealed);
+
+            if (digestAlgorithm != null)
+                MessageDigest.getInstance(digestAlgorithm).digest(sealed);
+        }
+        catch (GeneralSecurityException ex)
+        {
+            logger.log(Level.FINE, "Unable to warm up the cryptography provider.", ex);
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * What the time to first paint is printed after in probe mode.
+     */
+    public static final String PROBE_PREFIX = "panther.startup.first_paint_ms=";
+    private static final String ALGORITHM = "AES";
+    private static final int SALT_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+    private static final long LOADED = System.nanoTime();
+    private static final Logger logger = Logger.getLogger("org.tamalin.panther");
+
+    private static long firstPaintMillis = -1;
+}
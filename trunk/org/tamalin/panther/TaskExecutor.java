@@ -0,0 +1,315 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The TaskExecutor class runs Panther's background work (encryption, decryption and saving files) on a
+ * limited number of named worker threads.  Work waits in a bounded queue; when the queue is full, the
+ * submitting thread runs the task itself, which slows down whoever is submitting work too quickly.
+ * <p>
+ * On a JDK with virtual threads, each task can instead be given its own virtual thread, with the number of
+ * tasks in flight bounded the same way.  This is turned on with the panther.executor.virtual system property.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class TaskExecutor implements Executor
+{
+    /**
+     * Creates a new executor.
+     *
+     * @param name           the prefix of the worker thread names
+     * @param threads        the number of worker threads
+     * @param queueCapacity  the number of tasks that may wait for a worker
+     * @param virtualThreads true to run each task on its own virtual thread, if the JDK supports it
+     */
+    public TaskExecutor(String name, int threads, int queueCapacity, boolean virtualThreads)
+    {
+        this(name, threads, queueCapacity, virtualThreads, Thread.NORM_PRIORITY);
+    }
+
+    private TaskExecutor(String name, int threads, int queueCapacity, boolean virtualThreads, int priority)
+    {
+        if (threads < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("Threads and queue capacity must be positive.");
+
+        ExecutorService virtual = virtualThreads ? newVirtualThreadExecutor(name) : null;
+        if (virtual != null)
+        {
+            executor = virtual;
+            pool = null;
+            permits = new Semaphore(threads + queueCapacity);
+            permitCount = threads + queueCapacity;
+        }
+        else
+        {
+            pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity), new WorkerFactory(name, priority), new BackPressurePolicy());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            permits = null;
+            permitCount = 0;
+        }
+    }
+
+    /**
+     * Returns the executor shared by the whole application.  It can be configured with the
+     * panther.executor.threads, panther.executor.queue and panther.executor.virtual system properties.
+     *
+     * @return the shared executor
+     */
+    public static synchronized TaskExecutor getDefault()
+    {
+        if (defaultExecutor == null)
+        {
+            int threads = Integer.getInteger("panther.executor.threads", Runtime.getRuntime().availableProcessors());
+            int queue = Integer.getInteger("panther.executor.queue", 64);
+            boolean virtual = Boolean.getBoolean("panther.executor.virtual");
+            defaultExecutor = new TaskExecutor("panther-worker", threads, queue, virtual);
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Returns the executor for work that can wait, such as warming up or calibrating, so that it does not hold
+     * up the user's own tasks.  It runs one task at a time, on a thread of low priority.
+     *
+     * @return the background executor
+     */
+    public static synchronized TaskExecutor getBackground()
+    {
+        if (backgroundExecutor == null)
+            backgroundExecutor = new TaskExecutor("panther-background", 1, 16, false, Thread.MIN_PRIORITY);
+        return backgroundExecutor;
+    }
+
+    /**
+     * Runs a task in the background, in the same way as submit().
+     *
+     * @param task the task to run
+     * @throws RejectedExecutionException the executor has been shut down
+     */
+    public void execute(Runnable task)
+    {
+        submit(task);
+    }
+
+    /**
+     * Runs a task in the background.  If too much work is already waiting, the task is run on the calling thread.
+     *
+     * @param task the task to run
+     * @return a Future that completes when the task does
+     * @throws RejectedExecutionException the executor has been shut down
+     */
+    public Future<?> submit(Runnable task)
+    {
+        return submit(Executors.callable(task));
+    }
+
+    /**
+     * Runs a task in the background.  If too much work is already waiting, the task is run on the calling thread.
+     * The task logs in the calling thread's LogContext.
+     *
+     * @param command the task to run
+     * @param <T>     the type of the task's result
+     * @return a Future holding the task's result
+     * @throws RejectedExecutionException the executor has been shut down
+     */
+    public <T> Future<T> submit(Callable<T> command)
+    {
+        final Callable<T> task = LogContext.wrap(command);
+        if (permits == null)
+            return executor.submit(task);
+
+        /* Virtual threads are never short, so the number of tasks in flight is limited here instead. */
+        if (executor.isShutdown())
+            throw new RejectedExecutionException("The executor has been shut down.");
+        if (!permits.tryAcquire())
+        {
+            FutureTask<T> inline = new FutureTask<T>(task);
+            inline.run();
+            return inline;
+        }
+
+        try
+        {
+            return executor.submit(new Callable<T>()
+            {
+                public T call() throws Exception
+                {
+                    try
+                    {
+                        return task.call();
+                    }
+                    finally
+                    {
+                        permits.release();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException ex)
+        {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the executor service behind this executor, for APIs that need one.  Tasks submitted to it
+     * directly still use the worker threads, but skip the limit on virtual threads and do not keep the
+     * submitting thread's LogContext.
+     *
+     * @return the executor service
+     */
+    public ExecutorService getExecutorService()
+    {
+        return executor;
+    }
+
+    /**
+     * Returns the number of tasks waiting for a worker thread.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth()
+    {
+        return pool != null ? pool.getQueue().size() : 0;
+    }
+
+    /**
+     * Returns the approximate number of tasks being run.
+     *
+     * @return the number of active tasks
+     */
+    public int getActiveCount()
+    {
+        return pool != null ? pool.getActiveCount() : permitCount - permits.availablePermits();
+    }
+
+    public boolean isVirtual()
+    {
+        return pool == null;
+    }
+
+    /**
+     * Stops accepting work, and waits for the tasks already submitted to finish.  Tasks still running
+     * when the timeout runs out are interrupted.
+     *
+     * @param timeout the number of milliseconds to wait
+     * @return true if every task finished in time
+     */
+    public boolean shutdown(long timeout)
+    {
+        executor.shutdown();
+        try
+        {
+            if (executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+                return true;
+
+            logger.log(Level.WARNING, "Background tasks did not finish in time; interrupting them.");
+            executor.shutdownNow();
+            return false;
+        }
+        catch (InterruptedException ex)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread for each task, or returns null if the JDK has no virtual threads.
+     * Reflection is used so that Panther still runs on older JDKs.
+     */
+    private static ExecutorService newVirtualThreadExecutor(String name)
+    {
+        try
+        {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.INFO, "Virtual threads are not available; using platform threads.");
+            return null;
+        }
+    }
+
+    /**
+     * Runs a task on the submitting thread when the queue is full, unless the executor has been shut down.
+     */
+    private static class BackPressurePolicy implements RejectedExecutionHandler
+    {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("The executor has been shut down.");
+            r.run();
+        }
+    }
+
+    /**
+     * Names the worker threads, so they can be told apart in thread dumps, and gives them their priority.
+     */
+    private static class WorkerFactory implements ThreadFactory
+    {
+        WorkerFactory(String name, int priority)
+        {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, name + "-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        }
+
+        private final String name;
+        private final int priority;
+        private final AtomicInteger number = new AtomicInteger();
+    }
+
+    /**
+     * The number of milliseconds an idle worker thread waits for work before it stops.
+     */
+    private static final long KEEP_ALIVE = 60 * 1000L;
+
+    private static final Logger logger = Logger.getLogger("org.tamalin.panther");
+    private static TaskExecutor defaultExecutor;
+    private static TaskExecutor backgroundExecutor;
+
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final Semaphore permits;
+    private final int permitCount;
+}
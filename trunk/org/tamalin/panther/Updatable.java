@@ -25,4 +25,13 @@ package org.tamalin.panther;
 public interface Updatable
 {
     public void updateFromBytes(byte[] data);
+
+    /**
+     * Reports the progress of a long running operation, such as a streamed encryption.
+     * A total of zero signals that the operation ended before it could complete.
+     *
+     * @param processed the number of bytes processed so far
+     * @param total     the total number of bytes to process
+     */
+    public void updateProgress(long processed, long total);
 }
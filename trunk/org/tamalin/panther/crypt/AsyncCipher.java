@@ -0,0 +1,264 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import org.tamalin.panther.TaskExecutor;
+import org.tamalin.panther.Updatable;
+
+import javax.crypto.Cipher;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The AsyncCipher class runs encryption and decryption in the background, and returns a CompletableFuture
+ * for each operation, so operations can be chained and awaited.  A failed future holds a CryptoException
+ * (AuthenticationException for a wrong password, CorruptDataException for damaged data) or an IOException.
+ * <p>
+ * Every method overwrites the password array it is given, just as the cipher engines' init() methods do.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class AsyncCipher
+{
+    /**
+     * Creates an AsyncCipher that runs operations on the shared TaskExecutor.
+     */
+    public AsyncCipher()
+    {
+        this(TaskExecutor.getDefault());
+    }
+
+    /**
+     * Creates an AsyncCipher that runs operations on the given executor.
+     *
+     * @param executor the executor to run operations on
+     */
+    public AsyncCipher(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Encrypts data into a container.
+     *
+     * @param data     the data to encrypt
+     * @param password the password, which is overwritten
+     * @return a future holding the container
+     */
+    public CompletableFuture<byte[]> encrypt(byte[] data, char[] password)
+    {
+        return process(data, Cipher.ENCRYPT_MODE, password);
+    }
+
+    /**
+     * Decrypts a container, or data encrypted by an earlier version of Panther.
+     *
+     * @param data     the data to decrypt
+     * @param password the password, which is overwritten
+     * @return a future holding the decrypted data
+     */
+    public CompletableFuture<byte[]> decrypt(byte[] data, char[] password)
+    {
+        return process(data, Cipher.DECRYPT_MODE, password);
+    }
+
+    /**
+     * Encrypts or decrypts data held in memory.
+     *
+     * @param data       the data
+     * @param cipherMode either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param password   the password, which is overwritten
+     * @return a future holding the result
+     */
+    public CompletableFuture<byte[]> process(final byte[] data, final int cipherMode, char[] password)
+    {
+        final char[] copy = takePassword(password);
+        return submit(new Callable<byte[]>()
+        {
+            public byte[] call() throws Exception
+            {
+                CipherEngine engine = new CipherEngine(ALGORITHM);
+                engine.setKeyDerivation(keyDerivation);
+                engine.init(data, cipherMode, copy, null);
+                return engine.process();
+            }
+        }, copy);
+    }
+
+    /**
+     * Encrypts or decrypts everything read from a stream, writing the result to another stream as it is produced.
+     * Neither stream is closed.
+     *
+     * @param in         the stream to read
+     * @param out        the stream to write
+     * @param cipherMode either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param password   the password, which is overwritten
+     * @param progress   the Updatable to report progress to, which may be null
+     * @return a future holding the number of bytes read from the input
+     */
+    public CompletableFuture<Long> process(final InputStream in, final OutputStream out, final int cipherMode, char[] password, final Updatable progress)
+    {
+        final char[] copy = takePassword(password);
+        return submit(new Callable<Long>()
+        {
+            public Long call() throws Exception
+            {
+                final long[] processed = new long[1];
+                StreamCipherEngine engine = new StreamCipherEngine(ALGORITHM);
+                engine.setKeyDerivation(keyDerivation);
+                engine.init(cipherMode, copy, new Updatable()
+                {
+                    public void updateFromBytes(byte[] data)
+                    {
+                    }
+
+                    public void updateProgress(long done, long total)
+                    {
+                        processed[0] = done;
+                        if (progress != null)
+                            progress.updateProgress(done, total);
+                    }
+                });
+
+                try
+                {
+                    engine.process(in, out, -1);
+                    return processed[0];
+                }
+                catch (IOException ex)
+                {
+                    CryptoException translated = CryptoException.translate(ex);
+                    if (translated != null)
+                        throw translated;
+                    throw ex;
+                }
+                catch (GeneralSecurityException ex)
+                {
+                    throw CryptoException.translate(ex);
+                }
+                finally
+                {
+                    engine.clearPassword();
+                }
+            }
+        }, copy);
+    }
+
+    /**
+     * Encrypts or decrypts one file into another.  If the operation fails, the output file is left as it was.
+     *
+     * @param in         the file to read
+     * @param out        the file to write
+     * @param cipherMode either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param password   the password, which is overwritten
+     * @param progress   the Updatable to report progress to, which may be null
+     * @return a future holding the output file
+     */
+    public CompletableFuture<File> process(final File in, final File out, final int cipherMode, char[] password, final Updatable progress)
+    {
+        final char[] copy = takePassword(password);
+        return submit(new Callable<File>()
+        {
+            public File call() throws Exception
+            {
+                StreamCipherEngine engine = new StreamCipherEngine(ALGORITHM);
+                engine.setKeyDerivation(keyDerivation);
+                engine.setMemoryMapped(memoryMapped);
+                engine.init(in, out, cipherMode, copy, progress);
+                engine.processFiles();
+                return out;
+            }
+        }, copy);
+    }
+
+    /**
+     * Sets the key derivation used when encrypting.  If this is never called, KeyDerivation.getDefault() is used.
+     *
+     * @param derivation the key derivation, or null for the default
+     */
+    public void setKeyDerivation(KeyDerivation derivation)
+    {
+        keyDerivation = derivation;
+    }
+
+    /**
+     * Chooses whether file operations use memory mapped I/O.
+     *
+     * @param mapped true to map files into memory
+     */
+    public void setMemoryMapped(boolean mapped)
+    {
+        memoryMapped = mapped;
+    }
+
+    /**
+     * Runs an operation on the executor, completing the future with its result or failure.
+     */
+    private <T> CompletableFuture<T> submit(final Callable<T> operation, final char[] password)
+    {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        future.complete(operation.call());
+                    }
+                    catch (Throwable ex)
+                    {
+                        future.completeExceptionally(ex);
+                    }
+                    finally
+                    {
+                        Arrays.fill(password, '\0');
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException ex)
+        {
+            Arrays.fill(password, '\0');
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    private static char[] takePassword(char[] password)
+    {
+        char[] copy = password.clone();
+        Arrays.fill(password, '\0');
+        return copy;
+    }
+
+    private static final String ALGORITHM = "AES";
+
+    private final Executor executor;
+    private volatile KeyDerivation keyDerivation = null;
+    private volatile boolean memoryMapped = false;
+}
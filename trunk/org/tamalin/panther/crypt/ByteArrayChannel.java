@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only SeekableByteChannel over a byte array, so a container that is already in memory
+ * can be opened with ContainerReader.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+class ByteArrayChannel implements SeekableByteChannel
+{
+    ByteArrayChannel(byte[] bytes)
+    {
+        data = bytes;
+    }
+
+    public int read(ByteBuffer dst) throws ClosedChannelException
+    {
+        ensureOpen();
+        if (position >= data.length)
+            return -1;
+
+        int n = (int) Math.min(dst.remaining(), data.length - position);
+        dst.put(data, (int) position, n);
+        position += n;
+        return n;
+    }
+
+    public int write(ByteBuffer src)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    public long position() throws ClosedChannelException
+    {
+        ensureOpen();
+        return position;
+    }
+
+    public SeekableByteChannel position(long newPosition) throws ClosedChannelException
+    {
+        ensureOpen();
+        if (newPosition < 0)
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        position = newPosition;
+        return this;
+    }
+
+    public long size() throws ClosedChannelException
+    {
+        ensureOpen();
+        return data.length;
+    }
+
+    public SeekableByteChannel truncate(long size)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    public void close()
+    {
+        open = false;
+    }
+
+    private void ensureOpen() throws ClosedChannelException
+    {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+
+    private final byte[] data;
+    private long position = 0;
+    private boolean open = true;
+}
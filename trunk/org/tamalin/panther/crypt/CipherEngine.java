@@ -16,19 +16,29 @@
 
 package org.tamalin.panther.crypt;
 
+import org.tamalin.panther.PantherMetrics;
 import org.tamalin.panther.Updatable;
 
-import javax.crypto.*;
-import javax.crypto.spec.SecretKeySpec;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.JOptionPane;
-import org.tamalin.panther.Panther;
 
 /**
  * The CipherEngine class carries out all encryption and decryption operations using information passed to it by the calling method,
  * presumably through the constructor.  The CipherEngine class implements the runnable interface, so it can be run in it's own thread.
+ * Data is encrypted into the container format described by ContainerHeader.  Data encrypted by earlier versions of Panther,
+ * which lack the container header, is still decrypted with the plain cipher.
+ * <p>
+ * Each CipherEngine carries out one operation.  Ciphers are borrowed from a CipherPool rather than owned
+ * by the engine, so engines are cheap to create, and any number of them can run at the same time.
  *
  * @author Quytelda K. Gaiwin
  * @since 4.0
@@ -45,7 +55,10 @@ public class CipherEngine implements Runnable
     public CipherEngine(String alg) throws NoSuchAlgorithmException, NoSuchPaddingException
     {
         algorithm = alg;
-        cipher = Cipher.getInstance(alg);
+        legacyCiphers = CipherPool.getInstance(alg);
+
+        /* Borrow a cipher straight away, so an unknown algorithm is reported here rather than in run(). */
+        legacyCiphers.release(legacyCiphers.borrow());
     }
 
     public void init(byte[] d, int m, char[] password, Updatable p) throws InvalidKeyException, NoSuchAlgorithmException, InvalidKeySpecException
@@ -55,16 +68,24 @@ public class CipherEngine implements Runnable
         mode = m;
         parent = p;
 
-        /* Create an encryption key from the given password. */
-        Key key = makeKey(password);
+        /* Keep a copy of the password; the key is derived in run(), since that may take a while. */
+        this.password = password.clone();
 
         /* For security reasons, the password array must be overwritten. */
         /* Overwrite the password array with 0s. */
         for (int i = 0; i < password.length; i++)
             password[i] = 0;
+    }
 
-        /* Initialize the Cipher object. */
-        cipher.init(mode, key);
+    /**
+     * Sets the key derivation used when encrypting.  Decryption always uses the key derivation recorded in the
+     * container header.  If this is never called, KeyDerivation.getDefault() is used.
+     *
+     * @param derivation the key derivation
+     */
+    public void setKeyDerivation(KeyDerivation derivation)
+    {
+        keyDerivation = derivation;
     }
 
     public void run()
@@ -72,32 +93,146 @@ public class CipherEngine implements Runnable
         /* Try to encrypt/decrypt the data, then update the result to the Updatable. */
         try
         {
-            byte[] result = cipher.doFinal(data);
-            parent.updateFromBytes(result);
+            parent.updateFromBytes(process());
         }
-        catch (IllegalBlockSizeException ex)
+        catch (AuthenticationException ex)
         {
-            Panther.getLogger().log(Level.SEVERE, "Data follows an illegal block pattern.", ex);
-            JOptionPane.showMessageDialog(null, "This file is invalid (Illegal Block Size)!", "Decryption Failed", JOptionPane.ERROR_MESSAGE);
+            JOptionPane.showMessageDialog(null, "Decryption failed: Access is denied.", "Decryption Failed", JOptionPane.ERROR_MESSAGE);
+            logger.log(Level.SEVERE, "Bad Padding Scheme", ex);
         }
-        catch (BadPaddingException ex)
+        catch (CorruptDataException ex)
         {
-            JOptionPane.showMessageDialog(null, "Decryption failed: Access is denied.", "Decryption Failed", JOptionPane.ERROR_MESSAGE);
-            Panther.getLogger().log(Level.SEVERE, "Bad Padding Scheme", ex);
+            logger.log(Level.SEVERE, "Data is damaged.", ex);
+            JOptionPane.showMessageDialog(null, "This file is invalid (" + ex.getMessage() + ")!", "Decryption Failed", JOptionPane.ERROR_MESSAGE);
+        }
+        catch (CryptoException ex)
+        {
+            logger.log(Level.SEVERE, "Unable to process the data.", ex);
+            JOptionPane.showMessageDialog(null, "The data could not be processed.", "Operation Failed", JOptionPane.ERROR_MESSAGE);
         }
     }
 
-    private Key makeKey(char[] password) throws NoSuchAlgorithmException, InvalidKeySpecException
+    /**
+     * Encrypts or decrypts the data given to init(), on the calling thread.  The copy of the password
+     * is overwritten afterwards, so each engine can only be used once.
+     *
+     * @return the encrypted or decrypted data
+     * @throws AuthenticationException the password is wrong, or the data has been altered
+     * @throws CorruptDataException    the data is damaged
+     * @throws CryptoException         the data could not be processed for any other reason
+     */
+    public byte[] process() throws CryptoException
     {
-        /* Digest the password into a sequence of bytes the right length. */
-        MessageDigest digest = MessageDigest.getInstance("MD5");
-        for (char character : password)
-            digest.update((byte) character);
+        CipherEvent event = new CipherEvent(mode, algorithm, CipherEvent.ARRAY);
+        event.bytes = data.length;
+        event.begin();
+        PantherMetrics.Operation operation = PantherMetrics.getDefault().begin(mode == Cipher.ENCRYPT_MODE ? PantherMetrics.ENCRYPT : PantherMetrics.DECRYPT);
+        try
+        {
+            byte[] result;
+            if (mode == Cipher.ENCRYPT_MODE)
+                result = seal(data);
+            else if (ContainerHeader.isContainer(data))
+                result = open(data);
+            else
+                result = openLegacy(data);
+            event.succeeded = true;
+            return result;
+        }
+        catch (IOException ex)
+        {
+            /* The data is all in memory, so an I/O error can only mean the container is damaged. */
+            CryptoException translated = CryptoException.translate(ex);
+            throw translated != null ? translated : new CorruptDataException("Damaged Container", ex);
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw CryptoException.translate(ex);
+        }
+        finally
+        {
+            Arrays.fill(password, '\0');
+            event.commit();
+            operation.end(data.length, event.succeeded);
+        }
+    }
 
-        byte[] passKey = digest.digest();
+    /**
+     * Encrypts data into a new container.
+     */
+    private byte[] seal(byte[] plain) throws IOException, GeneralSecurityException
+    {
+        KeyDerivation derivation = keyDerivation != null ? keyDerivation : KeyDerivation.getDefault();
+        Key key = derivation.makeKey(password, algorithm);
+        ContainerHeader header = new ContainerHeader(derivation.getId(), derivation.getParameters(), ContainerHeader.DEFAULT_CHUNK_SIZE);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length + plain.length / 1024 + 256);
+        ContainerOutputStream container = new ContainerOutputStream(bytes, key, header);
+        container.write(plain);
+        container.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decrypts a whole container held in memory.
+     */
+    private byte[] open(byte[] sealed) throws IOException, GeneralSecurityException
+    {
+        ContainerHeader header = ContainerHeader.read(new ByteArrayInputStream(sealed));
+        Key key = KeyDerivation.forHeader(header).makeKey(password, algorithm);
 
-        /* Create the key key. */
-        return new SecretKeySpec(passKey, algorithm);
+        ContainerReader reader = new ContainerReader(new ByteArrayChannel(sealed), header, key);
+        try
+        {
+            return reader.readAll();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Decrypts data written before the container format, using the plain cipher.
+     */
+    private byte[] openLegacy(byte[] encrypted) throws GeneralSecurityException
+    {
+        Cipher cipher = legacyCiphers.borrow();
+        try
+        {
+            cipher.init(Cipher.DECRYPT_MODE, makeKey(password, algorithm));
+            return cipher.doFinal(encrypted);
+        }
+        finally
+        {
+            legacyCiphers.release(cipher);
+        }
+    }
+
+    /**
+     * Digests a password into a key for the given algorithm, the way files from before the container
+     * format were encrypted.  Keys are looked up in the shared KeyCache first.
+     *
+     * @param password  the password to digest
+     * @param algorithm the algorithm the key is for
+     * @return the generated key
+     * @throws NoSuchAlgorithmException the digest algorithm is not available
+     */
+    static Key makeKey(char[] password, String algorithm) throws NoSuchAlgorithmException
+    {
+        try
+        {
+            return new LegacyKeyDerivation().makeKey(password, algorithm);
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw ex;
+        }
+        catch (GeneralSecurityException ex)
+        {
+            /* The legacy derivation only ever throws NoSuchAlgorithmException. */
+            throw new NoSuchAlgorithmException(ex);
+        }
     }
 
     public int getMode()
@@ -108,8 +243,9 @@ public class CipherEngine implements Runnable
     private byte[] data = null;
     private int mode;
     private String algorithm;
-    private Cipher cipher;
+    private CipherPool legacyCiphers;
+    private char[] password = new char[0];
+    private KeyDerivation keyDerivation = null;
     private Updatable parent;
+    private static final Logger logger = Logger.getLogger("org.tamalin.panther");
 }
-
-
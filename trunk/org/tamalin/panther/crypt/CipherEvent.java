@@ -0,0 +1,83 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import javax.crypto.Cipher;
+
+/**
+ * The CipherEvent class is the Flight Recorder event for one encryption or decryption.  It covers the whole
+ * operation, key derivation included, which is recorded on its own as a KeyDerivationEvent.  Like every
+ * Flight Recorder event, it costs next to nothing when no recording is running.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+@Name("org.tamalin.panther.Cipher")
+@Label("Cipher Operation")
+@Category({"Panther", "Crypto"})
+@Description("An encryption or decryption of an array, a stream or a file")
+class CipherEvent extends Event
+{
+    /**
+     * Creates an event for an operation that is about to start.
+     *
+     * @param mode      either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param algorithm the cipher algorithm
+     * @param source    what is processed: ARRAY, STREAM, FILE, MAPPED or PARALLEL
+     */
+    CipherEvent(int mode, String algorithm, String source)
+    {
+        operation = mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt";
+        this.algorithm = algorithm;
+        this.source = source;
+    }
+
+    @Label("Operation")
+    @Description("Either encrypt or decrypt")
+    String operation;
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Source")
+    @Description("What was processed: array, stream, file, mapped file or parallel file")
+    String source;
+
+    @Label("Path")
+    @Description("The file read, if the source was a file")
+    String path;
+
+    @Label("Bytes")
+    @Description("The size of the data processed")
+    @DataAmount
+    long bytes;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    static final String ARRAY = "array";
+    static final String STREAM = "stream";
+    static final String FILE = "file";
+    static final String MAPPED = "mapped file";
+    static final String PARALLEL = "parallel file";
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The CipherPool class keeps Cipher objects for one transformation, so that operations can borrow one
+ * instead of paying for Cipher.getInstance every time.  A Cipher is only ever used by the thread that
+ * borrowed it, so any number of operations can run at once.  Borrowers must initialize the Cipher
+ * themselves, and should give it back with release() when they are done with it.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class CipherPool
+{
+    /**
+     * Creates a new, empty pool.
+     *
+     * @param transformation the transformation of the pooled ciphers
+     * @param maxIdle        the maximum number of ciphers kept while nobody is using them
+     */
+    public CipherPool(String transformation, int maxIdle)
+    {
+        this.transformation = transformation;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Returns the shared pool for a transformation.  The number of idle ciphers each shared pool keeps
+     * can be set with the panther.cipherpool.size system property.
+     *
+     * @param transformation the transformation of the pooled ciphers
+     * @return the shared pool
+     */
+    public static CipherPool getInstance(String transformation)
+    {
+        CipherPool pool = pools.get(transformation);
+        if (pool == null)
+        {
+            CipherPool created = new CipherPool(transformation, DEFAULT_MAX_IDLE);
+            pool = pools.putIfAbsent(transformation, created);
+            if (pool == null)
+                pool = created;
+        }
+        return pool;
+    }
+
+    /**
+     * Borrows a cipher from the pool, creating one if none is idle.
+     *
+     * @return a cipher, which must be initialized before use
+     * @throws NoSuchAlgorithmException the transformation is not available
+     * @throws NoSuchPaddingException   the padding scheme is not available
+     */
+    public Cipher borrow() throws NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        Cipher cipher = idle.poll();
+        if (cipher != null)
+        {
+            idleCount.decrementAndGet();
+            return cipher;
+        }
+
+        cipher = Cipher.getInstance(transformation);
+        created.incrementAndGet();
+        return cipher;
+    }
+
+    /**
+     * Gives a borrowed cipher back to the pool.  It must not be used again afterwards.
+     *
+     * @param cipher the cipher, which may be null
+     */
+    public void release(Cipher cipher)
+    {
+        if (cipher == null)
+            return;
+
+        /* Drop the cipher if enough are already waiting. */
+        if (idleCount.incrementAndGet() > maxIdle)
+        {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(cipher);
+    }
+
+    public String getTransformation()
+    {
+        return transformation;
+    }
+
+    /**
+     * Returns the number of ciphers waiting to be borrowed.
+     *
+     * @return the number of idle ciphers
+     */
+    public int getIdleCount()
+    {
+        return idleCount.get();
+    }
+
+    /**
+     * Returns the number of ciphers this pool has had to create.
+     *
+     * @return the number of ciphers created
+     */
+    public long getCreatedCount()
+    {
+        return created.get();
+    }
+
+    private static final int DEFAULT_MAX_IDLE = Integer.getInteger("panther.cipherpool.size",
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    private static final ConcurrentMap<String, CipherPool> pools = new ConcurrentHashMap<String, CipherPool>();
+
+    private final String transformation;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<Cipher> idle = new ConcurrentLinkedQueue<Cipher>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.*;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The ContainerHeader class describes the header at the start of every Panther container file.
+ * <p>
+ * A container is laid out as follows, with all numbers stored big-endian:
+ * <pre>
+ *   header:  "PNTR" | version (1) | kdf (1) | kdf parameter length (2) | kdf parameters | chunk size (4) | nonce prefix (8)
+ *   chunks:  plaintext length (4) | AES-GCM ciphertext and tag    (repeated, the last one may be short or empty)
+ *   end:     -1 (4)
+ *   index:   length (4) | AES-GCM sealed [chunk count (4) | plaintext length (8) | chunk offsets (8 each)]
+ *   footer:  index offset (8) | "PNTX"
+ * </pre>
+ * Every chunk is sealed with its own nonce, made from the nonce prefix and the chunk number, and the whole
+ * header is authenticated along with each chunk.  The last chunk is marked as such, so a container that has
+ * been cut short is detected even when it is read from start to finish without the index.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class ContainerHeader
+{
+    /**
+     * Creates a new header for a container that is about to be written, with a fresh random nonce prefix.
+     *
+     * @param kdf           the key derivation function identifier
+     * @param kdfParameters the parameters the key derivation function needs to recreate the key
+     * @param chunkSize     the number of plaintext bytes in each chunk, no more than MAXIMUM_CHUNK_SIZE
+     */
+    public ContainerHeader(int kdf, byte[] kdfParameters, int chunkSize)
+    {
+        if (chunkSize <= 0 || chunkSize > MAXIMUM_CHUNK_SIZE)
+            throw new IllegalArgumentException("Chunk size out of range: " + chunkSize);
+        if (kdfParameters.length > 0xFFFF)
+            throw new IllegalArgumentException("Key derivation parameters are too long.");
+
+        this.version = VERSION;
+        this.kdf = kdf;
+        this.kdfParameters = kdfParameters.clone();
+        this.chunkSize = chunkSize;
+        this.noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        new SecureRandom().nextBytes(noncePrefix);
+    }
+
+    private ContainerHeader(int version, int kdf, byte[] kdfParameters, int chunkSize, byte[] noncePrefix)
+    {
+        this.version = version;
+        this.kdf = kdf;
+        this.kdfParameters = kdfParameters;
+        this.chunkSize = chunkSize;
+        this.noncePrefix = noncePrefix;
+    }
+
+    /**
+     * Reads a header from the start of a container.
+     *
+     * @param in the stream to read from, positioned at the start of the container
+     * @return the header
+     * @throws IOException the stream could not be read, or does not start with a supported container header
+     */
+    public static ContainerHeader read(InputStream in) throws IOException
+    {
+        DataInputStream data = new DataInputStream(in);
+
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("Not a Panther container.");
+
+        int version = data.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported container version: " + version);
+
+        int kdf = data.readUnsignedByte();
+        byte[] kdfParameters = new byte[data.readUnsignedShort()];
+        data.readFully(kdfParameters);
+
+        /* Readers allocate a chunk before anything is authenticated, so the size must be sane. */
+        int chunkSize = data.readInt();
+        if (chunkSize <= 0 || chunkSize > MAXIMUM_CHUNK_SIZE)
+            throw new IOException("Invalid chunk size: " + chunkSize);
+
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        data.readFully(noncePrefix);
+
+        return new ContainerHeader(version, kdf, kdfParameters, chunkSize, noncePrefix);
+    }
+
+    /**
+     * Checks whether some data starts with the container magic number.
+     *
+     * @param data the data to check
+     * @return true if the data looks like a container
+     */
+    public static boolean isContainer(byte[] data)
+    {
+        if (data == null || data.length < MAGIC.length)
+            return false;
+
+        for (int i = 0; i < MAGIC.length; i++)
+        {
+            if (data[i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a file starts with the container magic number.
+     *
+     * @param file the file to check
+     * @return true if the file looks like a container
+     * @throws IOException the file could not be read
+     */
+    public static boolean isContainer(File file) throws IOException
+    {
+        byte[] magic = new byte[MAGIC.length];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(magic);
+        }
+        catch (EOFException ex)
+        {
+            return false;
+        }
+        finally
+        {
+            in.close();
+        }
+        return isContainer(magic);
+    }
+
+    /**
+     * Encodes the header the way it is stored at the start of a container.
+     *
+     * @return the encoded header
+     */
+    public byte[] getEncoded()
+    {
+        if (encoded != null)
+            return encoded.clone();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        try
+        {
+            data.write(MAGIC);
+            data.writeByte(version);
+            data.writeByte(kdf);
+            data.writeShort(kdfParameters.length);
+            data.write(kdfParameters);
+            data.writeInt(chunkSize);
+            data.write(noncePrefix);
+        }
+        catch (IOException ex)
+        {
+            /* Writing to memory never fails. */
+            throw new IllegalStateException(ex);
+        }
+        encoded = bytes.toByteArray();
+        return encoded.clone();
+    }
+
+    /**
+     * Builds the GCM parameters used to seal a chunk, or the index.
+     *
+     * @param chunk the chunk number, or INDEX_CHUNK for the index
+     * @return the GCM parameters for the chunk
+     */
+    GCMParameterSpec parametersFor(int chunk)
+    {
+        byte[] nonce = Arrays.copyOf(noncePrefix, NONCE_PREFIX_LENGTH + 4);
+        nonce[NONCE_PREFIX_LENGTH] = (byte) (chunk >>> 24);
+        nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (chunk >>> 16);
+        nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (chunk >>> 8);
+        nonce[NONCE_PREFIX_LENGTH + 3] = (byte) chunk;
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+
+    /**
+     * Builds the additional authenticated data for a chunk: the encoded header followed by the kind of chunk.
+     *
+     * @param kind one of CHUNK, FINAL_CHUNK or INDEX
+     * @return the additional authenticated data
+     */
+    byte[] additionalData(byte kind)
+    {
+        byte[] header = getEncoded();
+        byte[] aad = Arrays.copyOf(header, header.length + 1);
+        aad[header.length] = kind;
+        return aad;
+    }
+
+    /**
+     * Works out how many chunks hold the given number of plaintext bytes.  Even an empty container has one chunk.
+     *
+     * @param length the number of plaintext bytes
+     * @return the number of chunks
+     * @throws IllegalArgumentException the length needs more chunks than can be numbered
+     */
+    int chunkCount(long length)
+    {
+        long chunks = Math.max(1, (length + chunkSize - 1) / chunkSize);
+        if (chunks > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many chunks: " + chunks);
+        return (int) chunks;
+    }
+
+    public int getVersion()
+    {
+        return version;
+    }
+
+    public int getKdf()
+    {
+        return kdf;
+    }
+
+    public byte[] getKdfParameters()
+    {
+        return kdfParameters.clone();
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * The bytes every container starts with.
+     */
+    public static final byte[] MAGIC = {'P', 'N', 'T', 'R'};
+
+    /**
+     * The bytes every container ends with.
+     */
+    public static final byte[] FOOTER_MAGIC = {'P', 'N', 'T', 'X'};
+
+    /**
+     * The container format version written by this class.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Returns the shared pool of AES-GCM ciphers used to seal and open containers.
+     *
+     * @return the cipher pool
+     */
+    static CipherPool getCipherPool()
+    {
+        return CipherPool.getInstance(TRANSFORMATION);
+    }
+
+    /**
+     * Key derivation identifier for the single pass MD5 digest used before key derivation became configurable.
+     * The other identifiers are defined by the KeyDerivation subclasses.
+     */
+    public static final int KDF_LEGACY = 0;
+
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The largest chunk a container may be written or read with.
+     */
+    public static final int MAXIMUM_CHUNK_SIZE = 16 * 1024 * 1024;
+    public static final int TAG_LENGTH = 16;
+    public static final int FOOTER_LENGTH = 8 + 4;
+
+    /**
+     * The chunk length written after the last chunk.
+     */
+    static final int END_OF_CHUNKS = -1;
+
+    /**
+     * The chunk number used to seal the index.
+     */
+    static final int INDEX_CHUNK = -1;
+
+    static final byte CHUNK = 0;
+    static final byte FINAL_CHUNK = 1;
+    static final byte INDEX = 2;
+
+    private static final int NONCE_PREFIX_LENGTH = 8;
+
+    private final int version;
+    private final int kdf;
+    private final byte[] kdfParameters;
+    private final int chunkSize;
+    private final byte[] noncePrefix;
+    private byte[] encoded;
+}
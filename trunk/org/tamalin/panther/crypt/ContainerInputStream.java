@@ -0,0 +1,178 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+/**
+ * The ContainerInputStream class decrypts a Panther container from start to finish, one chunk at a time.
+ * It does not need the chunk index, so it can read a container from a pipe or socket.  Use ContainerReader
+ * to decrypt only part of a container.
+ *
+ * @author Quytelda K. Gaiwin
+ * @see ContainerHeader
+ * @since 4.1
+ */
+public class ContainerInputStream extends InputStream
+{
+    /**
+     * Opens a container, reading its header from the stream.
+     *
+     * @param in  the stream to read the container from
+     * @param key the AES key
+     * @throws IOException              the stream does not start with a container header
+     * @throws GeneralSecurityException AES-GCM is not available
+     */
+    public ContainerInputStream(InputStream in, Key key) throws IOException, GeneralSecurityException
+    {
+        this(in, ContainerHeader.read(in), key);
+    }
+
+    /**
+     * Opens a container whose header has already been read from the stream.
+     *
+     * @param in     the stream to read the chunks from
+     * @param header the container header
+     * @param key    the AES key, derived as described by the header
+     * @throws IOException              the stream could not be read
+     * @throws GeneralSecurityException AES-GCM is not available
+     */
+    public ContainerInputStream(InputStream in, ContainerHeader header, Key key) throws IOException, GeneralSecurityException
+    {
+        data = new DataInputStream(in);
+        this.header = header;
+        this.key = key;
+        sealed = new byte[header.getChunkSize() + ContainerHeader.TAG_LENGTH];
+        buffer = new byte[header.getChunkSize()];
+
+        nextLength = data.readInt();
+        cipher = ContainerHeader.getCipherPool().borrow();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return (n == -1) ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+
+        while (position == count)
+        {
+            if (!nextChunk())
+                return -1;
+        }
+
+        int n = Math.min(len, count - position);
+        System.arraycopy(buffer, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available()
+    {
+        return count - position;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        releaseCipher();
+        data.close();
+    }
+
+    /**
+     * Gives the cipher back to the pool, which is done as soon as the last chunk has been read,
+     * since callers often leave the underlying stream open.
+     */
+    private void releaseCipher()
+    {
+        ContainerHeader.getCipherPool().release(cipher);
+        cipher = null;
+    }
+
+    /**
+     * Decrypts the next chunk into the buffer.
+     *
+     * @return false if the last chunk has already been read
+     * @throws IOException the chunk could not be read, or failed authentication
+     */
+    private boolean nextChunk() throws IOException
+    {
+        if (finished)
+            return false;
+
+        int length = nextLength;
+        if (length == ContainerHeader.END_OF_CHUNKS)
+            throw new EOFException("The container ended without a final chunk.");
+        if (length < 0 || length > header.getChunkSize())
+            throw new IOException("Invalid chunk length: " + length);
+
+        data.readFully(sealed, 0, length + ContainerHeader.TAG_LENGTH);
+
+        /* Look ahead at the next length to find out whether this is the last chunk. */
+        nextLength = data.readInt();
+        boolean last = nextLength == ContainerHeader.END_OF_CHUNKS;
+        if (!last && length != header.getChunkSize())
+            throw new IOException("Only the last chunk may be short.");
+
+        try
+        {
+            cipher.init(Cipher.DECRYPT_MODE, key, header.parametersFor(chunk));
+            cipher.updateAAD(header.additionalData(last ? ContainerHeader.FINAL_CHUNK : ContainerHeader.CHUNK));
+            count = cipher.doFinal(sealed, 0, length + ContainerHeader.TAG_LENGTH, buffer, 0);
+        }
+        catch (ShortBufferException ex)
+        {
+            throw new IllegalStateException("Chunk buffer too small.", ex);
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IOException("Chunk " + chunk + " failed authentication.", ex);
+        }
+
+        position = 0;
+        chunk++;
+        finished = last;
+        if (finished)
+            releaseCipher();
+        return true;
+    }
+
+    private final DataInputStream data;
+    private final ContainerHeader header;
+    private final Key key;
+    private Cipher cipher;
+    private final byte[] sealed;
+    private final byte[] buffer;
+    private int nextLength;
+    private int chunk = 0;
+    private int count = 0;
+    private int position = 0;
+    private boolean finished = false;
+}
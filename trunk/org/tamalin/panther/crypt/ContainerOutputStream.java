@@ -0,0 +1,283 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+/**
+ * The ContainerOutputStream class encrypts everything written to it into the Panther container format.
+ * Data is sealed one chunk at a time as it is written, and the chunk index is written when the
+ * stream is closed, so the stream must always be closed for the container to be readable.
+ *
+ * @author Quytelda K. Gaiwin
+ * @see ContainerHeader
+ * @since 4.1
+ */
+public class ContainerOutputStream extends FilterOutputStream
+{
+    /**
+     * Creates a container with the default chunk size, using a key made by CipherEngine.
+     *
+     * @param out the stream to write the container to
+     * @param key the AES key
+     * @throws IOException              the header could not be written
+     * @throws GeneralSecurityException AES-GCM is not available
+     */
+    public ContainerOutputStream(OutputStream out, Key key) throws IOException, GeneralSecurityException
+    {
+        this(out, key, new ContainerHeader(ContainerHeader.KDF_LEGACY, new byte[0], ContainerHeader.DEFAULT_CHUNK_SIZE));
+    }
+
+    /**
+     * Creates a container described by the given header.
+     *
+     * @param out    the stream to write the container to
+     * @param key    the AES key, derived as described by the header
+     * @param header the header to write
+     * @throws IOException              the header could not be written
+     * @throws GeneralSecurityException AES-GCM is not available
+     */
+    public ContainerOutputStream(OutputStream out, Key key, ContainerHeader header) throws IOException, GeneralSecurityException
+    {
+        super(new DataOutputStream(out));
+        data = (DataOutputStream) this.out;
+        this.key = key;
+        this.header = header;
+        buffer = new byte[header.getChunkSize()];
+        sealed = new byte[header.getChunkSize() + ContainerHeader.TAG_LENGTH];
+
+        byte[] encoded = header.getEncoded();
+        data.write(encoded);
+        position = encoded.length;
+
+        /* Borrow the cipher last, so it is given back by close() whatever happens. */
+        cipher = ContainerHeader.getCipherPool().borrow();
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (closed)
+            throw new IOException("Stream closed.");
+
+        while (len > 0)
+        {
+            /* A full chunk is only sealed once more data arrives, since the last chunk is sealed differently. */
+            if (count == buffer.length)
+                sealChunk(false);
+
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Flushes the chunks sealed so far.  The chunk being filled is not written until it is full or the stream is closed.
+     *
+     * @throws IOException the underlying stream could not be flushed
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        data.flush();
+    }
+
+    /**
+     * Seals the last chunk, writes the index and footer, and closes the underlying stream.
+     *
+     * @throws IOException the container could not be finished
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+
+        try
+        {
+            sealChunk(true);
+            data.writeInt(ContainerHeader.END_OF_CHUNKS);
+            position += 4;
+            writeIndex();
+            data.flush();
+        }
+        finally
+        {
+            closed = true;
+            ContainerHeader.getCipherPool().release(cipher);
+            data.close();
+        }
+    }
+
+    /**
+     * Returns the number of plaintext bytes written so far.
+     *
+     * @return the plaintext length
+     */
+    public long getLength()
+    {
+        return length + count;
+    }
+
+    private void sealChunk(boolean last) throws IOException
+    {
+        try
+        {
+            cipher.init(Cipher.ENCRYPT_MODE, key, header.parametersFor(chunks));
+            cipher.updateAAD(header.additionalData(last ? ContainerHeader.FINAL_CHUNK : ContainerHeader.CHUNK));
+            int produced = cipher.doFinal(buffer, 0, count, sealed, 0);
+
+            index.writeLong(position);
+            data.writeInt(count);
+            data.write(sealed, 0, produced);
+            position += 4 + produced;
+        }
+        catch (ShortBufferException ex)
+        {
+            throw new IllegalStateException("Chunk buffer too small.", ex);
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IOException("Unable to seal chunk " + chunks, ex);
+        }
+
+        chunks++;
+        length += count;
+        count = 0;
+    }
+
+    private void writeIndex() throws IOException
+    {
+        byte[] sealedIndex = sealIndex(cipher, key, header, chunks, length, offsets.toByteArray());
+
+        long indexOffset = position;
+        data.writeInt(sealedIndex.length);
+        data.write(sealedIndex);
+        data.writeLong(indexOffset);
+        data.write(ContainerHeader.FOOTER_MAGIC);
+    }
+
+    /**
+     * Seals the chunk index of a container.
+     *
+     * @param cipher  an AES-GCM cipher
+     * @param key     the AES key
+     * @param header  the container header
+     * @param chunks  the number of chunks in the container
+     * @param length  the number of plaintext bytes in the container
+     * @param offsets the offset of each chunk, as consecutive big-endian longs
+     * @return the sealed index
+     * @throws IOException the index could not be sealed
+     */
+    static byte[] sealIndex(Cipher cipher, Key key, ContainerHeader header, int chunks, long length, byte[] offsets) throws IOException
+    {
+        ByteArrayOutputStream plainIndex = new ByteArrayOutputStream(12 + offsets.length);
+        DataOutputStream indexData = new DataOutputStream(plainIndex);
+        indexData.writeInt(chunks);
+        indexData.writeLong(length);
+        indexData.write(offsets);
+
+        try
+        {
+            cipher.init(Cipher.ENCRYPT_MODE, key, header.parametersFor(ContainerHeader.INDEX_CHUNK));
+            cipher.updateAAD(header.additionalData(ContainerHeader.INDEX));
+            return cipher.doFinal(plainIndex.toByteArray());
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IOException("Unable to seal the chunk index.", ex);
+        }
+    }
+
+    /**
+     * Writes the end marker, index and footer of a container whose header and chunks have been written
+     * straight to a file channel.  Every chunk but the last must be full, which places each one.
+     *
+     * @param channel the channel holding the container
+     * @param cipher  an AES-GCM cipher
+     * @param key     the AES key
+     * @param header  the container header
+     * @param length  the number of plaintext bytes in the container
+     * @throws IOException the trailer could not be written
+     */
+    static void writeTrailer(FileChannel channel, Cipher cipher, Key key, ContainerHeader header, long length) throws IOException
+    {
+        int chunkSize = header.getChunkSize();
+        int chunks = header.chunkCount(length);
+        long start = header.getEncoded().length;
+        long recordSize = 4L + chunkSize + ContainerHeader.TAG_LENGTH;
+
+        ByteArrayOutputStream offsets = new ByteArrayOutputStream(chunks * 8);
+        DataOutputStream index = new DataOutputStream(offsets);
+        for (int chunk = 0; chunk < chunks; chunk++)
+            index.writeLong(start + chunk * recordSize);
+        long position = start + (chunks - 1) * recordSize + 4 + (length - (long) (chunks - 1) * chunkSize) + ContainerHeader.TAG_LENGTH;
+        byte[] sealedIndex = sealIndex(cipher, key, header, chunks, length, offsets.toByteArray());
+
+        ByteBuffer trailer = ByteBuffer.allocate(4 + 4 + sealedIndex.length + ContainerHeader.FOOTER_LENGTH);
+        trailer.putInt(ContainerHeader.END_OF_CHUNKS);
+        trailer.putInt(sealedIndex.length);
+        trailer.put(sealedIndex);
+        trailer.putLong(position + 4);
+        trailer.put(ContainerHeader.FOOTER_MAGIC);
+        trailer.flip();
+        writeFully(channel, trailer, position);
+    }
+
+    /**
+     * Writes the whole of a buffer to a channel at the given position.
+     *
+     * @param channel  the channel
+     * @param buffer   the bytes to write
+     * @param position the position in the channel to write them at
+     * @throws IOException the bytes could not be written
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private final DataOutputStream data;
+    private final ByteArrayOutputStream offsets = new ByteArrayOutputStream();
+    private final DataOutputStream index = new DataOutputStream(offsets);
+    private final Key key;
+    private final ContainerHeader header;
+    private final Cipher cipher;
+    private final byte[] buffer;
+    private final byte[] sealed;
+    private int count = 0;
+    private int chunks = 0;
+    private long length = 0;
+    private long position;
+    private boolean closed = false;
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import javax.crypto.Cipher;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+
+/**
+ * The ContainerReader class gives random access to the plaintext of a Panther container.  It uses the
+ * chunk index at the end of the container to find the chunks covering a requested range of bytes, and
+ * only decrypts those chunks.
+ *
+ * @author Quytelda K. Gaiwin
+ * @see ContainerHeader
+ * @since 4.1
+ */
+public class ContainerReader implements Closeable
+{
+    /**
+     * Opens a container, reading its header from the start of the channel.
+     *
+     * @param channel the channel holding the container
+     * @param key     the AES key
+     * @throws IOException              the channel does not hold a valid container
+     * @throws GeneralSecurityException the index could not be decrypted, usually because the key is wrong
+     */
+    public ContainerReader(SeekableByteChannel channel, Key key) throws IOException, GeneralSecurityException
+    {
+        this(channel, readHeader(channel), key);
+    }
+
+    /**
+     * Opens a container whose header has already been read.
+     *
+     * @param channel the channel holding the container
+     * @param header  the container header
+     * @param key     the AES key, derived as described by the header
+     * @throws IOException              the channel does not hold a valid container
+     * @throws GeneralSecurityException the index could not be decrypted, usually because the key is wrong
+     */
+    public ContainerReader(SeekableByteChannel channel, ContainerHeader header, Key key) throws IOException, GeneralSecurityException
+    {
+        this.channel = channel;
+        this.header = header;
+        this.key = key;
+        chunkSize = header.getChunkSize();
+        cipher = ContainerHeader.getCipherPool().borrow();
+        boolean opened = false;
+        try
+        {
+            /* Find the index through the footer. */
+            long size = channel.size();
+            if (size < ContainerHeader.FOOTER_LENGTH)
+                throw new EOFException("The container is too short.");
+
+            ByteBuffer footer = ByteBuffer.allocate(ContainerHeader.FOOTER_LENGTH);
+            readFully(footer, size - ContainerHeader.FOOTER_LENGTH);
+            footer.flip();
+            long indexOffset = footer.getLong();
+            byte[] magic = new byte[ContainerHeader.FOOTER_MAGIC.length];
+            footer.get(magic);
+            if (!Arrays.equals(magic, ContainerHeader.FOOTER_MAGIC))
+                throw new IOException("The container has no index.");
+            if (indexOffset < 0 || indexOffset > size - ContainerHeader.FOOTER_LENGTH - 4)
+                throw new IOException("Invalid index offset: " + indexOffset);
+
+            /* Decrypt and parse the index. */
+            int indexLength = readInt(indexOffset);
+            if (indexLength < ContainerHeader.TAG_LENGTH || indexOffset + 4 + indexLength > size - ContainerHeader.FOOTER_LENGTH)
+                throw new IOException("Invalid index length: " + indexLength);
+
+            ByteBuffer sealedIndex = ByteBuffer.allocate(indexLength);
+            readFully(sealedIndex, indexOffset + 4);
+
+            cipher.init(Cipher.DECRYPT_MODE, key, header.parametersFor(ContainerHeader.INDEX_CHUNK));
+            cipher.updateAAD(header.additionalData(ContainerHeader.INDEX));
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(cipher.doFinal(sealedIndex.array())));
+
+            int chunks = index.readInt();
+            length = index.readLong();
+            if (chunks < 1 || length < (long) (chunks - 1) * chunkSize || length > (long) chunks * chunkSize)
+                throw new IOException("The index does not match the container.");
+
+            offsets = new long[chunks];
+            for (int i = 0; i < chunks; i++)
+                offsets[i] = index.readLong();
+
+            opened = true;
+        }
+        finally
+        {
+            if (!opened)
+                ContainerHeader.getCipherPool().release(cipher);
+        }
+
+        sealed = new byte[chunkSize + ContainerHeader.TAG_LENGTH];
+        buffer = new byte[chunkSize];
+    }
+
+    /**
+     * Returns the number of plaintext bytes in the container.
+     *
+     * @return the plaintext length
+     */
+    public long length()
+    {
+        return length;
+    }
+
+    public int getChunkCount()
+    {
+        return offsets.length;
+    }
+
+    public ContainerHeader getHeader()
+    {
+        return header;
+    }
+
+    Key getKey()
+    {
+        return key;
+    }
+
+    /**
+     * Returns the position of a chunk record in the container.
+     */
+    long getChunkOffset(int chunk)
+    {
+        return offsets[chunk];
+    }
+
+    /**
+     * Decrypts plaintext bytes starting at a given position, decrypting only the chunks that cover them.
+     *
+     * @param position the position in the plaintext to start reading at
+     * @param b        the array to read into
+     * @param off      the offset in the array to start writing at
+     * @param len      the maximum number of bytes to read
+     * @return the number of bytes read, or -1 if the position is at or past the end of the plaintext
+     * @throws IOException              the container could not be read
+     * @throws GeneralSecurityException a chunk failed authentication
+     */
+    public synchronized int read(long position, byte[] b, int off, int len) throws IOException, GeneralSecurityException
+    {
+        if (position < 0)
+            throw new IllegalArgumentException("Negative position: " + position);
+        if (position >= length)
+            return -1;
+
+        int total = 0;
+        while (len > 0 && position < length)
+        {
+            int chunk = (int) (position / chunkSize);
+            int start = (int) (position % chunkSize);
+            int count = loadChunk(chunk);
+
+            int n = Math.min(len, count - start);
+            System.arraycopy(buffer, start, b, off, n);
+            position += n;
+            off += n;
+            len -= n;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Decrypts a range of plaintext bytes.
+     *
+     * @param position the position in the plaintext to start at
+     * @param len      the number of bytes to decrypt, which is cut short at the end of the plaintext
+     * @return the decrypted bytes
+     * @throws IOException              the container could not be read
+     * @throws GeneralSecurityException a chunk failed authentication
+     */
+    public byte[] read(long position, int len) throws IOException, GeneralSecurityException
+    {
+        int available = (int) Math.max(0, Math.min(len, length - position));
+        byte[] result = new byte[available];
+        if (available > 0)
+            read(position, result, 0, available);
+        return result;
+    }
+
+    /**
+     * Decrypts the whole container into one array.
+     *
+     * @return the plaintext
+     * @throws IOException              the container could not be read, or its plaintext is too large for an array
+     * @throws GeneralSecurityException a chunk failed authentication
+     */
+    public byte[] readAll() throws IOException, GeneralSecurityException
+    {
+        if (length > Integer.MAX_VALUE - 8)
+            throw new IOException("The container is too large to decrypt into memory.");
+        return read(0, (int) length);
+    }
+
+    /**
+     * Decrypts the whole container, writing the plaintext to a stream a chunk at a time.
+     *
+     * @param out the stream to write the plaintext to
+     * @throws IOException              the container could not be read, or the stream written
+     * @throws GeneralSecurityException a chunk failed authentication
+     */
+    public synchronized void writeTo(OutputStream out) throws IOException, GeneralSecurityException
+    {
+        for (int chunk = 0; chunk < offsets.length; chunk++)
+        {
+            int count = loadChunk(chunk);
+            out.write(buffer, 0, count);
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        ContainerHeader.getCipherPool().release(cipher);
+        cipher = null;
+        channel.close();
+    }
+
+    /**
+     * Makes sure a chunk is decrypted into the buffer.
+     *
+     * @return the number of plaintext bytes in the chunk
+     */
+    private int loadChunk(int chunk) throws IOException, GeneralSecurityException
+    {
+        if (chunk == loadedChunk)
+            return loadedCount;
+        if (cipher == null)
+            throw new IOException("The container has been closed.");
+
+        boolean last = chunk == offsets.length - 1;
+        int expected = last ? (int) (length - (long) chunk * chunkSize) : chunkSize;
+        int stored = readInt(offsets[chunk]);
+        if (stored != expected)
+            throw new IOException("Chunk " + chunk + " does not match the index.");
+
+        ByteBuffer in = ByteBuffer.wrap(sealed, 0, stored + ContainerHeader.TAG_LENGTH);
+        readFully(in, offsets[chunk] + 4);
+
+        /* Forget the loaded chunk first, so a failure can't leave stale plaintext behind. */
+        loadedChunk = -1;
+        cipher.init(Cipher.DECRYPT_MODE, key, header.parametersFor(chunk));
+        cipher.updateAAD(header.additionalData(last ? ContainerHeader.FINAL_CHUNK : ContainerHeader.CHUNK));
+        loadedCount = cipher.doFinal(sealed, 0, stored + ContainerHeader.TAG_LENGTH, buffer, 0);
+        loadedChunk = chunk;
+        return loadedCount;
+    }
+
+    private int readInt(long position) throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate(4);
+        readFully(b, position);
+        b.flip();
+        return b.getInt();
+    }
+
+    private void readFully(ByteBuffer b, long position) throws IOException
+    {
+        channel.position(position);
+        while (b.hasRemaining())
+        {
+            if (channel.read(b) < 0)
+                throw new EOFException("Unexpected end of container.");
+        }
+    }
+
+    /**
+     * Reads the header at the start of a channel.
+     */
+    static ContainerHeader readHeader(SeekableByteChannel channel) throws IOException
+    {
+        channel.position(0);
+        return ContainerHeader.read(new BufferedInputStream(Channels.newInputStream(channel), 512));
+    }
+
+    private final SeekableByteChannel channel;
+    private final ContainerHeader header;
+    private final Key key;
+    private Cipher cipher;
+    private final int chunkSize;
+    private final long length;
+    private final long[] offsets;
+    private final byte[] sealed;
+    private final byte[] buffer;
+    private int loadedChunk = -1;
+    private int loadedCount;
+}
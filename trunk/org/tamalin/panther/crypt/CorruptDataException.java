@@ -0,0 +1,31 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+/**
+ * Thrown when encrypted data is damaged or truncated, so it can't be decrypted whatever the password.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class CorruptDataException extends CryptoException
+{
+    public CorruptDataException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
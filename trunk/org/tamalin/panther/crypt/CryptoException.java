@@ -0,0 +1,75 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The CryptoException class is the superclass of the failures reported by the cipher engines and AsyncCipher,
+ * so callers can tell a wrong password from damaged data without looking at the underlying JCE exceptions.
+ *
+ * @author Quytelda K. Gaiwin
+ * @see AuthenticationException
+ * @see CorruptDataException
+ * @see UnsupportedFormatException
+ * @since 4.1
+ */
+public class CryptoException extends Exception
+{
+    public CryptoException(String message)
+    {
+        super(message);
+    }
+
+    public CryptoException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+
+    /**
+     * Translates an exception from the JCE or the container classes into a CryptoException.
+     * Other I/O errors are left alone, since they have nothing to do with the data itself.
+     *
+     * @param ex the exception
+     * @return the translated exception, or null if the exception is an unrelated I/O error
+     */
+    static CryptoException translate(Exception ex)
+    {
+        /* The container streams report failed chunks as IOExceptions caused by the JCE exception. */
+        Throwable cause = ex;
+        if (ex instanceof IOException && ex.getCause() instanceof GeneralSecurityException)
+            cause = ex.getCause();
+
+        if (cause instanceof AEADBadTagException || cause instanceof BadPaddingException)
+            return new AuthenticationException("Access is denied: the password is wrong, or the data has been altered.", ex);
+        if (cause instanceof IllegalBlockSizeException)
+            return new CorruptDataException("Illegal Block Size", ex);
+        if (cause instanceof NoSuchAlgorithmException)
+            return new UnsupportedFormatException(cause.getMessage(), ex);
+        if (cause instanceof EOFException)
+            return new CorruptDataException("Unexpected end of data", ex);
+        if (cause instanceof GeneralSecurityException)
+            return new CryptoException("The data could not be processed.", ex);
+        return null;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The DigestEvent class is the Flight Recorder event for computing a fingerprint.  Every fingerprint Panther
+ * makes, of the text, a file or a tree, is computed by FileDigester or TreeDigester, which record it.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+@Name("org.tamalin.panther.Digest")
+@Label("Digest")
+@Category({"Panther", "Crypto"})
+@Description("A fingerprint of a stream, a file or a tree")
+class DigestEvent extends Event
+{
+    /**
+     * Creates an event for the digests of some data.
+     *
+     * @param algorithm the digest algorithms, separated by commas if there are several
+     * @param source    what is digested: STREAM, FILE or TREE
+     */
+    DigestEvent(String algorithm, String source)
+    {
+        this.algorithm = algorithm;
+        this.source = source;
+    }
+
+    /**
+     * Records the number of bytes digested.
+     *
+     * @param bytes the number of bytes
+     */
+    public void setBytes(long bytes)
+    {
+        this.bytes = bytes;
+    }
+
+    public void setPath(String path)
+    {
+        this.path = path;
+    }
+
+    public void setSucceeded(boolean succeeded)
+    {
+        this.succeeded = succeeded;
+    }
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Source")
+    @Description("What was digested: stream, file or tree")
+    String source;
+
+    @Label("Path")
+    @Description("The file digested, if the source was a file")
+    String path;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    static final String STREAM = "stream";
+    static final String FILE = "file";
+    static final String TREE = "tree";
+}
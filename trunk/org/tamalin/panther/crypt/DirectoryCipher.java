@@ -0,0 +1,331 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import org.tamalin.panther.file.SyncGroup;
+
+import javax.crypto.Cipher;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The DirectoryCipher class encrypts or decrypts every file in a directory tree into a second tree with the
+ * same layout.  The tree is walked by a work-stealing ForkJoinPool: each directory becomes a task that forks
+ * a task for every file and subdirectory in it, so idle threads pick up work from busy ones whatever the
+ * shape of the tree.  Each file is processed by its own StreamCipherEngine.
+ * <p>
+ * A file that can't be processed doesn't stop the others; it is recorded, and can be listed with getFailures()
+ * afterwards.  Symbolic links to directories are not followed.
+ * <p>
+ * When encrypting, every file is encrypted with the same key derivation parameters, so the key is only derived
+ * once, and then found in the KeyCache.  Every container still gets its own random nonces.
+ * <p>
+ * Each output file is written to a temporary file and renamed into place.  The files are committed through a
+ * SyncGroup, so they are forced to disk in batches rather than one sync at a time; every file has been committed
+ * by the time process() returns.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class DirectoryCipher
+{
+    /**
+     * Creates a new DirectoryCipher.
+     *
+     * @param source   the directory to read
+     * @param target   the directory to write, which is created if necessary
+     * @param mode     either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param password the password, which is overwritten
+     * @throws IOException the source is not a directory, or the target is inside it
+     */
+    public DirectoryCipher(File source, File target, int mode, char[] password) throws IOException
+    {
+        if (!source.isDirectory())
+            throw new IOException(source + " is not a directory.");
+
+        /* Writing into the tree being walked would never finish. */
+        String sourcePath = source.getCanonicalPath() + File.separator;
+        String targetPath = target.getCanonicalPath() + File.separator;
+        if (targetPath.startsWith(sourcePath))
+            throw new IOException("The output directory can't be inside " + source);
+
+        this.source = source;
+        this.target = target;
+        this.mode = mode;
+        this.password = password.clone();
+        Arrays.fill(password, '\0');
+    }
+
+    /**
+     * Sets the key derivation used when encrypting.  If this is never called, KeyDerivation.getDefault() is used.
+     *
+     * @param derivation the key derivation
+     */
+    public void setKeyDerivation(KeyDerivation derivation)
+    {
+        keyDerivation = derivation;
+    }
+
+    /**
+     * Chooses whether files are read and written through memory mapped buffers.
+     *
+     * @param mapped true to map files into memory
+     */
+    public void setMemoryMapped(boolean mapped)
+    {
+        memoryMapped = mapped;
+    }
+
+    /**
+     * Sets the number of files processed at the same time.  The default is the number of processors.
+     *
+     * @param parallelism the number of worker threads
+     */
+    public void setParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Processes the whole tree on the calling thread and the pool's workers, and returns when every file is done.
+     * The copy of the password is overwritten afterwards, so each DirectoryCipher can only be used once.
+     *
+     * @throws GeneralSecurityException the key could not be derived
+     */
+    public void process() throws GeneralSecurityException
+    {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try
+        {
+            if (mode == Cipher.ENCRYPT_MODE)
+            {
+                /* Derive the key once up front; every file then finds it in the KeyCache. */
+                if (keyDerivation == null)
+                    keyDerivation = KeyDerivation.getDefault();
+                keyDerivation.makeKey(password, ALGORITHM);
+            }
+
+            pool.invoke(new DirectoryTask(source, target));
+        }
+        finally
+        {
+            try
+            {
+                syncGroup.flush();
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.FINE, "Unable to commit every file.", ex);
+                failures.add(ex.getMessage());
+                for (Throwable suppressed : ex.getSuppressed())
+                    failures.add(suppressed.getMessage());
+            }
+
+            /* Files are counted once they are written, so take back those that were never put in place. */
+            for (File failed : syncGroup.getFailedFiles())
+            {
+                Long length = written.remove(failed);
+                if (length != null)
+                {
+                    files.decrementAndGet();
+                    bytes.addAndGet(-length);
+                }
+            }
+            pool.shutdown();
+            Arrays.fill(password, '\0');
+            elapsed = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Returns the number of files processed successfully.
+     *
+     * @return the number of files
+     */
+    public long getFileCount()
+    {
+        return files.get();
+    }
+
+    /**
+     * Returns the number of bytes read from the files processed successfully.
+     *
+     * @return the number of bytes
+     */
+    public long getByteCount()
+    {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the time process() took.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    public long getElapsedTime()
+    {
+        return elapsed;
+    }
+
+    /**
+     * Returns the average throughput of process(), counting the bytes read from the input files.
+     *
+     * @return the number of bytes processed per second
+     */
+    public double getThroughput()
+    {
+        return elapsed > 0 ? bytes.get() * 1e9 / elapsed : 0;
+    }
+
+    /**
+     * Returns a description of each file or directory that could not be processed.
+     *
+     * @return the failures, each naming the file and the reason
+     */
+    public List<String> getFailures()
+    {
+        return new ArrayList<String>(failures);
+    }
+
+    private void fail(File file, Exception ex)
+    {
+        logger.log(Level.FINE, "Unable to process " + file, ex);
+        failures.add(file + ": " + ex.getMessage());
+    }
+
+    /**
+     * Processes one directory, forking a task for every entry in it.
+     */
+    private class DirectoryTask extends RecursiveAction
+    {
+        DirectoryTask(File dir, File out)
+        {
+            this.dir = dir;
+            this.out = out;
+        }
+
+        protected void compute()
+        {
+            File[] entries = dir.listFiles();
+            if (entries == null)
+            {
+                fail(dir, new IOException("Unable to list the directory."));
+                return;
+            }
+            if (!out.isDirectory() && !out.mkdirs())
+            {
+                fail(out, new IOException("Unable to create the directory."));
+                return;
+            }
+
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(entries.length);
+            for (File entry : entries)
+            {
+                File result = new File(out, entry.getName());
+                if (entry.isDirectory())
+                {
+                    if (!Files.isSymbolicLink(entry.toPath()))
+                        tasks.add(new DirectoryTask(entry, result));
+                }
+                else if (entry.isFile())
+                    tasks.add(new FileTask(entry, result));
+            }
+            invokeAll(tasks);
+        }
+
+        private final File dir;
+        private final File out;
+    }
+
+    /**
+     * Encrypts or decrypts one file.
+     */
+    private class FileTask extends RecursiveAction
+    {
+        FileTask(File in, File out)
+        {
+            this.in = in;
+            this.out = out;
+        }
+
+        protected void compute()
+        {
+            try
+            {
+                long length = in.length();
+                StreamCipherEngine engine = new StreamCipherEngine(ALGORITHM);
+                engine.setKeyDerivation(keyDerivation);
+                engine.setMemoryMapped(memoryMapped);
+                engine.setParallel(false);
+                engine.setSyncGroup(syncGroup);
+                engine.init(in, out, mode, password.clone(), null);
+                engine.processFiles();
+
+                written.put(out.getAbsoluteFile(), length);
+                files.incrementAndGet();
+                bytes.addAndGet(length);
+            }
+            catch (CryptoException ex)
+            {
+                fail(in, ex);
+            }
+            catch (IOException ex)
+            {
+                fail(in, ex);
+            }
+            catch (GeneralSecurityException ex)
+            {
+                fail(in, ex);
+            }
+        }
+
+        private final File in;
+        private final File out;
+    }
+
+    private static final String ALGORITHM = "AES";
+    private static final Logger logger = Logger.getLogger("org.tamalin.panther");
+
+    private final File source;
+    private final File target;
+    private final int mode;
+    private final char[] password;
+    private KeyDerivation keyDerivation = null;
+    private boolean memoryMapped = false;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ConcurrentHashMap<File, Long> written = new ConcurrentHashMap<File, Long>();
+    private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+    private final SyncGroup syncGroup = new SyncGroup();
+    private volatile long elapsed;
+}
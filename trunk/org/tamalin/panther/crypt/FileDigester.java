@@ -0,0 +1,386 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import org.tamalin.panther.PantherMetrics;
+import org.tamalin.panther.Updatable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The FileDigester class computes the message digest, or "fingerprint", of a file by streaming it from disk,
+ * so the file never has to be loaded into memory.  The file is read into a direct buffer, which is reused
+ * for every read and every file, so the memory used is the same whatever the size of the file.
+ * <p>
+ * Several digests can be computed at once: each block read is passed to every digest, so the file is only
+ * read once however many algorithms are asked for.  In parallel mode each digest is updated on its own pool
+ * thread while the next block is being read, so computing three digests takes little longer than computing
+ * the slowest one.
+ * <p>
+ * A FileDigester is not thread safe; each thread should use its own.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class FileDigester
+{
+    /**
+     * Creates a new FileDigester.
+     *
+     * @param algorithm the digest algorithm, such as SHA-256
+     * @throws NoSuchAlgorithmException the algorithm is not available
+     */
+    public FileDigester(String algorithm) throws NoSuchAlgorithmException
+    {
+        this(new String[]{algorithm}, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new FileDigester that computes several digests in one pass.
+     *
+     * @param algorithms the digest algorithms, such as SHA-1, SHA-256 and MD5
+     * @param bufferSize the number of bytes read at a time
+     * @throws NoSuchAlgorithmException one of the algorithms is not available
+     */
+    public FileDigester(String[] algorithms, int bufferSize) throws NoSuchAlgorithmException
+    {
+        if (algorithms.length == 0)
+            throw new IllegalArgumentException("At least one algorithm is needed.");
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+
+        this.algorithms = algorithms.clone();
+        digests = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++)
+            digests[i] = MessageDigest.getInstance(algorithms[i]);
+        buffers = new ByteBuffer[]{ByteBuffer.allocateDirect(bufferSize), null};
+    }
+
+    /**
+     * Computes the digest of a file, with the first algorithm.
+     *
+     * @param file the file to read
+     * @return the digest
+     * @throws IOException the file could not be read
+     */
+    public byte[] digest(File file) throws IOException
+    {
+        return digest(file, null);
+    }
+
+    /**
+     * Computes the digest of a file with the first algorithm, reporting progress as it goes.
+     *
+     * @param file     the file to read
+     * @param progress the Updatable to report progress to, which may be null
+     * @return the digest
+     * @throws IOException the file could not be read
+     */
+    public byte[] digest(File file, Updatable progress) throws IOException
+    {
+        return digestAll(file, progress).get(algorithms[0]);
+    }
+
+    /**
+     * Computes the digest of everything read from a stream, with the first algorithm.  The stream is not closed.
+     *
+     * @param in the stream to read
+     * @return the digest
+     * @throws IOException the stream could not be read
+     */
+    public byte[] digest(InputStream in) throws IOException
+    {
+        return digestAll(in).get(algorithms[0]);
+    }
+
+    /**
+     * Computes every digest of a file, reading it once.
+     *
+     * @param file     the file to read
+     * @param progress the Updatable to report progress to, which may be null
+     * @return the digests, keyed by algorithm name in the order the algorithms were given
+     * @throws IOException the file could not be read
+     */
+    public Map<String, byte[]> digestAll(File file, Updatable progress) throws IOException
+    {
+        DigestEvent event = new DigestEvent(getAlgorithmNames(), DigestEvent.FILE);
+        event.setPath(file.getPath());
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            return digestAll(in.getChannel(), file.length(), progress, event);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Computes every digest of everything read from a stream.  The stream is not closed.
+     *
+     * @param in the stream to read
+     * @return the digests, keyed by algorithm name in the order the algorithms were given
+     * @throws IOException the stream could not be read
+     */
+    public Map<String, byte[]> digestAll(InputStream in) throws IOException
+    {
+        return digestAll(Channels.newChannel(in), -1, null);
+    }
+
+    /**
+     * Computes every digest of everything read from a channel.  The channel is not closed.
+     *
+     * @param channel  the channel to read
+     * @param length   the expected number of bytes, used to report progress
+     * @param progress the Updatable to report progress to, which may be null
+     * @return the digests, keyed by algorithm name in the order the algorithms were given
+     * @throws IOException the channel could not be read
+     */
+    public Map<String, byte[]> digestAll(ReadableByteChannel channel, long length, Updatable progress) throws IOException
+    {
+        return digestAll(channel, length, progress, new DigestEvent(getAlgorithmNames(), DigestEvent.STREAM));
+    }
+
+    private Map<String, byte[]> digestAll(ReadableByteChannel channel, long length, Updatable progress, DigestEvent event) throws IOException
+    {
+        event.begin();
+        PantherMetrics.Operation operation = PantherMetrics.getDefault().begin(PantherMetrics.DIGEST);
+        for (MessageDigest digest : digests)
+            digest.reset();
+
+        long processed;
+        try
+        {
+            processed = executor != null ? readParallel(channel, length, progress) : read(channel, length, progress);
+        }
+        catch (IOException ex)
+        {
+            for (MessageDigest digest : digests)
+                digest.reset();
+            if (progress != null)
+                progress.updateProgress(0, 0);
+            event.commit();
+            operation.end(0, false);
+            throw ex;
+        }
+
+        if (progress != null)
+            progress.updateProgress(processed, processed);
+
+        Map<String, byte[]> results = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < digests.length; i++)
+            results.put(algorithms[i], digests[i].digest());
+
+        event.setBytes(processed);
+        event.setSucceeded(true);
+        event.commit();
+        operation.end(processed, true);
+        return results;
+    }
+
+    /**
+     * Returns the algorithm names separated by commas, as a DigestEvent records them.
+     */
+    private String getAlgorithmNames()
+    {
+        StringBuilder names = new StringBuilder(algorithms[0]);
+        for (int i = 1; i < algorithms.length; i++)
+            names.append(',').append(algorithms[i]);
+        return names.toString();
+    }
+
+    /**
+     * Reads the channel, updating each digest in turn on the calling thread.
+     */
+    private long read(ReadableByteChannel channel, long length, Updatable progress) throws IOException
+    {
+        ByteBuffer buffer = buffers[0];
+        long processed = 0;
+        int read;
+        buffer.clear();
+        while ((read = channel.read(buffer)) != -1)
+        {
+            buffer.flip();
+            for (MessageDigest digest : digests)
+            {
+                buffer.position(0);
+                digest.update(buffer);
+            }
+            buffer.clear();
+
+            processed += read;
+            if (progress != null)
+                progress.updateProgress(processed, Math.max(length, processed));
+        }
+        return processed;
+    }
+
+    /**
+     * Reads the channel into two buffers in turn.  While the digests are updated from one buffer on the
+     * executor, the next block is read into the other.
+     */
+    private long readParallel(ReadableByteChannel channel, long length, Updatable progress) throws IOException
+    {
+        if (buffers[1] == null)
+            buffers[1] = ByteBuffer.allocateDirect(buffers[0].capacity());
+
+        long processed = 0;
+        int current = 0;
+        CountDownLatch pending = null;
+        try
+        {
+            while (true)
+            {
+                ByteBuffer buffer = buffers[current];
+                buffer.clear();
+                int read = channel.read(buffer);
+
+                /* The other buffer is free again once the digests have finished with it. */
+                await(pending);
+                pending = null;
+                if (read == -1)
+                    break;
+
+                buffer.flip();
+                pending = new CountDownLatch(digests.length);
+                for (int i = 0; i < digests.length; i++)
+                    executor.execute(new Update(digests[i], buffer.duplicate(), pending));
+
+                processed += read;
+                if (progress != null)
+                    progress.updateProgress(processed, Math.max(length, processed));
+                current ^= 1;
+            }
+        }
+        finally
+        {
+            /* Never leave an update running on a digest that is about to be reset. */
+            await(pending);
+        }
+        return processed;
+    }
+
+    /**
+     * Waits for the updates of one block to finish.  Interrupts are put off until they have, since the
+     * updates still hold the buffer and the digests.
+     */
+    private static void await(CountDownLatch pending)
+    {
+        if (pending == null)
+            return;
+
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                pending.await();
+                break;
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Chooses whether the digests are updated on separate threads of the common ForkJoinPool.  This only
+     * helps when more than one algorithm is being computed and there is more than one processor.
+     *
+     * @param parallel true to update the digests in parallel
+     */
+    public void setParallel(boolean parallel)
+    {
+        executor = parallel ? ForkJoinPool.commonPool() : null;
+    }
+
+    public boolean isParallel()
+    {
+        return executor != null;
+    }
+
+    /**
+     * Returns the digest algorithms, in the order they were given.
+     *
+     * @return the algorithm names
+     */
+    public String[] getAlgorithms()
+    {
+        return algorithms.clone();
+    }
+
+    public String getAlgorithm()
+    {
+        return algorithms[0];
+    }
+
+    /**
+     * Updates one digest with one block.
+     */
+    private static class Update implements Runnable
+    {
+        Update(MessageDigest digest, ByteBuffer block, CountDownLatch done)
+        {
+            this.digest = digest;
+            this.block = block;
+            this.done = done;
+        }
+
+        public void run()
+        {
+            try
+            {
+                digest.update(block);
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+
+        private final MessageDigest digest;
+        private final ByteBuffer block;
+        private final CountDownLatch done;
+    }
+
+    /**
+     * The default number of bytes read at a time.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private final String[] algorithms;
+    private final MessageDigest[] digests;
+    private final ByteBuffer[] buffers;
+    private Executor executor = null;
+}
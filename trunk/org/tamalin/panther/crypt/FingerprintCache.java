@@ -0,0 +1,308 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import org.tamalin.panther.Updatable;
+import org.tamalin.panther.file.AtomicFile;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The FingerprintCache class remembers the fingerprints of files, so an unchanged file doesn't have to be
+ * read again to be fingerprinted.  Each fingerprint is stored under the file's canonical path and the name of
+ * the algorithm, along with the file's length and modification time when it was read; if either has changed
+ * since, the fingerprint is thrown away.
+ * <p>
+ * The cache holds a limited number of fingerprints, forgetting the least recently used first, and is kept in
+ * a file between runs.  A file modified within the last few seconds is not cached, since a change made within
+ * the resolution of the file system clock might not change its modification time.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class FingerprintCache
+{
+    /**
+     * Creates a cache kept in the given file.  The file is read the first time the cache is used.
+     *
+     * @param file     the file to keep the cache in
+     * @param capacity the maximum number of fingerprints kept
+     */
+    public FingerprintCache(File file, final int capacity)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+
+        this.file = file;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns a cached fingerprint, if the file hasn't changed since it was computed.
+     *
+     * @param f         the file
+     * @param algorithm the name of the algorithm
+     * @return the fingerprint, or null if it is not cached
+     * @throws IOException the file's canonical path could not be found
+     */
+    public byte[] get(File f, String algorithm) throws IOException
+    {
+        String key = key(f, algorithm);
+        long length = f.length();
+        long modified = f.lastModified();
+
+        synchronized (this)
+        {
+            load();
+            Entry entry = entries.get(key);
+            if (entry == null)
+            {
+                misses++;
+                return null;
+            }
+            if (entry.length != length || entry.modified != modified)
+            {
+                entries.remove(key);
+                dirty = true;
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry.fingerprint.clone();
+        }
+    }
+
+    /**
+     * Stores a fingerprint.  The length and modification time must be read before the file is, so that a
+     * change made while it was being read is noticed.
+     *
+     * @param f           the file
+     * @param algorithm   the name of the algorithm
+     * @param length      the length of the file before it was read
+     * @param modified    the modification time of the file before it was read
+     * @param fingerprint the fingerprint
+     * @throws IOException the file's canonical path could not be found
+     */
+    public void put(File f, String algorithm, long length, long modified, byte[] fingerprint) throws IOException
+    {
+        /* Don't trust the stamp of a file that changed since it was read, or may still be changing. */
+        if (f.length() != length || f.lastModified() != modified || modified == 0)
+            return;
+        if (System.currentTimeMillis() - modified < RACY_INTERVAL)
+            return;
+
+        String key = key(f, algorithm);
+        synchronized (this)
+        {
+            load();
+            entries.put(key, new Entry(length, modified, fingerprint.clone()));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Returns every fingerprint a FileDigester computes for a file, reading the file only if one of them
+     * isn't cached.
+     *
+     * @param f        the file
+     * @param digester the digester
+     * @param progress the Updatable to report progress to, which may be null
+     * @return the fingerprints, keyed by algorithm name
+     * @throws IOException the file could not be read
+     */
+    public Map<String, byte[]> digestAll(File f, FileDigester digester, Updatable progress) throws IOException
+    {
+        String[] algorithms = digester.getAlgorithms();
+        Map<String, byte[]> results = new LinkedHashMap<String, byte[]>();
+        for (String algorithm : algorithms)
+        {
+            byte[] fingerprint = get(f, algorithm);
+            if (fingerprint == null)
+                break;
+            results.put(algorithm, fingerprint);
+        }
+        if (results.size() == algorithms.length)
+            return results;
+
+        long length = f.length();
+        long modified = f.lastModified();
+        results = digester.digestAll(f, progress);
+        for (Map.Entry<String, byte[]> result : results.entrySet())
+            put(f, result.getKey(), length, modified, result.getValue());
+        return results;
+    }
+
+    /**
+     * Writes the cache to its file, if anything has changed.  The file is replaced in one step, so it is
+     * never left half written.
+     *
+     * @throws IOException the file could not be written
+     */
+    public synchronized void save() throws IOException
+    {
+        if (!dirty)
+            return;
+
+        AtomicFile target = new AtomicFile(file);
+        try
+        {
+            DataOutputStream out = new DataOutputStream(target.openStream());
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+
+            /* Least recently used first, so the order survives a reload. */
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+            {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.length);
+                out.writeLong(entry.modified);
+                out.writeShort(entry.fingerprint.length);
+                out.write(entry.fingerprint);
+            }
+            out.close();
+            target.commit();
+        }
+        finally
+        {
+            target.abort();
+        }
+        dirty = false;
+    }
+
+    /**
+     * Forgets every fingerprint.  The file is emptied the next time the cache is saved.
+     */
+    public synchronized void clear()
+    {
+        load();
+        dirty = dirty || !entries.isEmpty();
+        entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        load();
+        return entries.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Reads the cache file the first time the cache is used.  A missing or damaged file leaves the cache empty.
+     */
+    private void load()
+    {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!file.exists())
+            return;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("Not a fingerprint cache.");
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    String key = in.readUTF();
+                    long length = in.readLong();
+                    long modified = in.readLong();
+                    byte[] fingerprint = new byte[in.readUnsignedShort()];
+                    in.readFully(fingerprint);
+                    entries.put(key, new Entry(length, modified, fingerprint));
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.WARNING, "The fingerprint cache " + file + " is unreadable; starting again.", ex);
+            entries.clear();
+            dirty = true;
+        }
+    }
+
+    private static String key(File f, String algorithm) throws IOException
+    {
+        return algorithm + '\0' + f.getCanonicalPath();
+    }
+
+    private static class Entry
+    {
+        Entry(long length, long modified, byte[] fingerprint)
+        {
+            this.length = length;
+            this.modified = modified;
+            this.fingerprint = fingerprint;
+        }
+
+        final long length;
+        final long modified;
+        final byte[] fingerprint;
+    }
+
+    /**
+     * The default maximum number of fingerprints kept, which can be set with the panther.fingerprintcache.size
+     * system property.
+     */
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("panther.fingerprintcache.size", 10000);
+
+    /**
+     * Files modified less than this many milliseconds ago are not cached.
+     */
+    private static final long RACY_INTERVAL = 2000;
+    /**
+     * "PFC" followed by the format version.
+     */
+    private static final int MAGIC = 0x50464301;
+    private static final Logger logger = Logger.getLogger("org.tamalin.panther");
+
+    private final File file;
+    private final LinkedHashMap<String, Entry> entries;
+    private boolean loaded = false;
+    private boolean dirty = false;
+    private long hits;
+    private long misses;
+}
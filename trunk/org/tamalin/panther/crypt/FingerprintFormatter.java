@@ -0,0 +1,175 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+/**
+ * The FingerprintFormatter class turns fingerprints into text.  There are three layouts: plain hexadecimal
+ * (3fa01c...), hexadecimal with the bytes separated by colons (3F:A0:1C:...), and base64.
+ * <p>
+ * Formatting writes straight into a char array through precomputed lookup tables, so a caller that reuses its
+ * array can format any number of fingerprints without creating garbage.  A FingerprintFormatter holds no
+ * state besides its settings, so one can be shared between threads.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class FingerprintFormatter
+{
+    /**
+     * Creates a new FingerprintFormatter.
+     *
+     * @param layout    one of PLAIN, COLON or BASE64
+     * @param upperCase true to write hexadecimal digits in upper case; ignored for base64
+     */
+    public FingerprintFormatter(int layout, boolean upperCase)
+    {
+        if (layout != PLAIN && layout != COLON && layout != BASE64)
+            throw new IllegalArgumentException("Unknown layout: " + layout);
+
+        this.layout = layout;
+        hex = upperCase ? UPPER_HEX : LOWER_HEX;
+    }
+
+    /**
+     * Returns the number of characters a fingerprint of the given length is formatted into.
+     *
+     * @param bytes the number of bytes in the fingerprint
+     * @return the number of characters
+     */
+    public int length(int bytes)
+    {
+        switch (layout)
+        {
+            case COLON:
+                return bytes == 0 ? 0 : bytes * 3 - 1;
+            case BASE64:
+                return (bytes + 2) / 3 * 4;
+            default:
+                return bytes * 2;
+        }
+    }
+
+    /**
+     * Formats a fingerprint into a char array.
+     *
+     * @param fingerprint the fingerprint
+     * @param out         the array to write to, which must have room for length(fingerprint.length) characters
+     * @param off         the position in the array to start writing at
+     * @return the number of characters written
+     */
+    public int format(byte[] fingerprint, char[] out, int off)
+    {
+        int length = length(fingerprint.length);
+        if (off < 0 || out.length - off < length)
+            throw new IndexOutOfBoundsException("No room for " + length + " characters at " + off);
+
+        if (layout == BASE64)
+            return base64(fingerprint, out, off);
+
+        int pos = off;
+        for (int i = 0; i < fingerprint.length; i++)
+        {
+            if (layout == COLON && i > 0)
+                out[pos++] = ':';
+
+            int b = (fingerprint[i] & 0xFF) << 1;
+            out[pos++] = hex[b];
+            out[pos++] = hex[b + 1];
+        }
+        return pos - off;
+    }
+
+    /**
+     * Formats a fingerprint into a new string.
+     *
+     * @param fingerprint the fingerprint
+     * @return the formatted fingerprint
+     */
+    public String format(byte[] fingerprint)
+    {
+        char[] out = new char[length(fingerprint.length)];
+        format(fingerprint, out, 0);
+        return new String(out);
+    }
+
+    public int getLayout()
+    {
+        return layout;
+    }
+
+    /**
+     * Encodes bytes as base64, with padding.
+     */
+    private static int base64(byte[] data, char[] out, int off)
+    {
+        int pos = off;
+        int i = 0;
+        for (; i + 2 < data.length; i += 3)
+        {
+            int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            out[pos++] = BASE64_DIGITS[bits >>> 18];
+            out[pos++] = BASE64_DIGITS[(bits >>> 12) & 0x3F];
+            out[pos++] = BASE64_DIGITS[(bits >>> 6) & 0x3F];
+            out[pos++] = BASE64_DIGITS[bits & 0x3F];
+        }
+
+        int remaining = data.length - i;
+        if (remaining > 0)
+        {
+            int bits = (data[i] & 0xFF) << 16 | (remaining == 2 ? (data[i + 1] & 0xFF) << 8 : 0);
+            out[pos++] = BASE64_DIGITS[bits >>> 18];
+            out[pos++] = BASE64_DIGITS[(bits >>> 12) & 0x3F];
+            out[pos++] = remaining == 2 ? BASE64_DIGITS[(bits >>> 6) & 0x3F] : '=';
+            out[pos++] = '=';
+        }
+        return pos - off;
+    }
+
+    /**
+     * Builds a table holding the two hexadecimal digits of every byte value, one after the other.
+     */
+    private static char[] hexTable(String digits)
+    {
+        char[] table = new char[512];
+        for (int b = 0; b < 256; b++)
+        {
+            table[b << 1] = digits.charAt(b >>> 4);
+            table[(b << 1) + 1] = digits.charAt(b & 0xF);
+        }
+        return table;
+    }
+
+    /**
+     * Hexadecimal without separators, as printed by the sha*sum tools.
+     */
+    public static final int PLAIN = 0;
+    /**
+     * Hexadecimal with the bytes separated by colons, as shown in the fingerprint dialog.
+     */
+    public static final int COLON = 1;
+    /**
+     * Base64, with padding.
+     */
+    public static final int BASE64 = 2;
+
+    private static final char[] LOWER_HEX = hexTable("0123456789abcdef");
+    private static final char[] UPPER_HEX = hexTable("0123456789ABCDEF");
+    private static final char[] BASE64_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final int layout;
+    private final char[] hex;
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The KeyCache class remembers recently derived keys, so that repeated operations with the same password
+ * don't have to derive the key again.  Entries are found by a salted hash of the password and the key
+ * derivation parameters; the password itself is never stored.  The cache holds a limited number of keys,
+ * each for a limited time, and overwrites the key material of every entry it drops.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class KeyCache
+{
+    /**
+     * Creates a new, empty key cache.
+     *
+     * @param capacity the maximum number of keys to hold
+     * @param lifetime the number of milliseconds a key is held for after it is derived
+     */
+    public KeyCache(int capacity, long lifetime)
+    {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+
+        this.capacity = capacity;
+        this.lifetime = lifetime;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * Returns the key cache shared by the cipher engines.  Its size and lifetime can be set with the
+     * panther.keycache.size and panther.keycache.lifetime (milliseconds) system properties.
+     *
+     * @return the shared key cache
+     */
+    public static KeyCache getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Looks up a key.
+     *
+     * @param password   the password the key was derived from
+     * @param parameters a description of the key derivation function and all of its parameters
+     * @return a copy of the key, which the caller should overwrite when done with it, or null if it is not cached
+     */
+    public synchronized byte[] get(char[] password, String parameters)
+    {
+        Entry entry = entries.get(lookupKey(password, parameters));
+        if (entry == null || entry.isExpired())
+        {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.key.clone();
+    }
+
+    /**
+     * Stores a key.  The cache keeps its own copy, so the caller may overwrite the array afterwards.
+     *
+     * @param password   the password the key was derived from
+     * @param parameters a description of the key derivation function and all of its parameters
+     * @param key        the derived key
+     */
+    public synchronized void put(char[] password, String parameters, byte[] key)
+    {
+        if (capacity == 0)
+            return;
+
+        purgeExpired();
+        Entry previous = entries.put(lookupKey(password, parameters), new Entry(key.clone(), System.currentTimeMillis() + lifetime));
+        if (previous != null)
+            previous.wipe();
+    }
+
+    /**
+     * Removes and overwrites every key in the cache.
+     */
+    public synchronized void clear()
+    {
+        for (Entry entry : entries.values())
+            entry.wipe();
+        entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    private void purgeExpired()
+    {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext())
+        {
+            Entry entry = it.next();
+            if (entry.isExpired())
+            {
+                entry.wipe();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Hashes the password and parameters with the cache's secret salt.
+     */
+    private ByteBuffer lookupKey(char[] password, String parameters)
+    {
+        byte[] passwordBytes = new byte[password.length * 2];
+        for (int i = 0; i < password.length; i++)
+        {
+            passwordBytes[2 * i] = (byte) (password[i] >>> 8);
+            passwordBytes[2 * i + 1] = (byte) password[i];
+        }
+
+        try
+        {
+            Mac mac = Mac.getInstance(HASH_ALGORITHM);
+            mac.init(new SecretKeySpec(salt, HASH_ALGORITHM));
+            mac.update(passwordBytes);
+            mac.update((byte) 0);
+            mac.update(parameters.getBytes(Charset.forName("UTF-8")));
+            return ByteBuffer.wrap(mac.doFinal());
+        }
+        catch (GeneralSecurityException ex)
+        {
+            /* Every Java platform is required to support HmacSHA256. */
+            throw new IllegalStateException(HASH_ALGORITHM + " is not available.", ex);
+        }
+        finally
+        {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    private class Entry
+    {
+        Entry(byte[] key, long expires)
+        {
+            this.key = key;
+            this.expires = expires;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() >= expires;
+        }
+
+        void wipe()
+        {
+            Arrays.fill(key, (byte) 0);
+        }
+
+        final byte[] key;
+        final long expires;
+    }
+
+    private static final String HASH_ALGORITHM = "HmacSHA256";
+    private static final KeyCache DEFAULT = new KeyCache(Integer.getInteger("panther.keycache.size", 16),
+            Long.getLong("panther.keycache.lifetime", 5 * 60 * 1000L));
+
+    private final byte[] salt = new byte[32];
+    private final int capacity;
+    private final long lifetime;
+    private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest)
+        {
+            if (size() <= capacity)
+                return false;
+
+            eldest.getValue().wipe();
+            return true;
+        }
+    };
+    private long hits = 0;
+    private long misses = 0;
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import org.tamalin.panther.PantherMetrics;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The KeyDerivation class turns a password into an encryption key.  Each subclass is one key derivation
+ * function, along with the salt and cost parameters it was configured with.  The identifier and parameters
+ * are stored in the container header, so the same key can be derived again when the container is decrypted.
+ * <p>
+ * The salt is chosen when a key derivation is configured rather than for every file, so every file encrypted
+ * with one configuration shares a key, and the KeyCache can spare repeated operations the cost of deriving it.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public abstract class KeyDerivation
+{
+    protected KeyDerivation(int id, String name)
+    {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * Derives a key from a password, using the shared KeyCache if the key has been derived before.
+     *
+     * @param password  the password, which is left untouched
+     * @param algorithm the algorithm the key is for
+     * @return the key
+     * @throws GeneralSecurityException the key could not be derived
+     */
+    public Key makeKey(char[] password, String algorithm) throws GeneralSecurityException
+    {
+        KeyDerivationEvent event = new KeyDerivationEvent();
+        event.begin();
+
+        KeyCache cache = KeyCache.getDefault();
+        String description = toString();
+
+        byte[] keyBytes = cache.get(password, description);
+        event.cached = keyBytes != null;
+        if (keyBytes == null)
+        {
+            /* Only a real derivation is timed; a key from the cache takes no time worth recording. */
+            PantherMetrics.Operation operation = PantherMetrics.getDefault().begin(PantherMetrics.KEY_DERIVATION);
+            keyBytes = deriveKey(password);
+            operation.end(0, true);
+            cache.put(password, description, keyBytes);
+        }
+
+        event.function = name;
+        event.cost = getCost();
+        event.algorithm = algorithm;
+        event.commit();
+
+        /* Create the key, then overwrite our copy of the key material. */
+        Key key = new SecretKeySpec(keyBytes, algorithm);
+        Arrays.fill(keyBytes, (byte) 0);
+        return key;
+    }
+
+    /**
+     * Derives key bytes from a password, without looking in the cache.
+     *
+     * @param password the password, which is left untouched
+     * @return the key bytes
+     * @throws GeneralSecurityException the key could not be derived
+     */
+    public abstract byte[] deriveKey(char[] password) throws GeneralSecurityException;
+
+    /**
+     * Encodes the salt and cost parameters, for storage in a container header.
+     *
+     * @return the encoded parameters
+     */
+    public abstract byte[] getParameters();
+
+    /**
+     * Creates a key derivation with the same cost, but a new random salt.
+     *
+     * @return the new key derivation
+     */
+    public abstract KeyDerivation withNewSalt();
+
+    /**
+     * Returns the cost parameter: an iteration count, or a power of two for memory hard functions.
+     *
+     * @return the cost
+     */
+    public abstract int getCost();
+
+    /**
+     * Returns the container header identifier of this key derivation function.
+     *
+     * @return the identifier
+     */
+    public int getId()
+    {
+        return id;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Describes the function and all of its parameters, including the salt.
+     *
+     * @return the description
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(name).append('/');
+        for (byte b : getParameters())
+            sb.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Recreates the key derivation described by a container header.
+     *
+     * @param header the container header
+     * @return the key derivation
+     * @throws NoSuchAlgorithmException the header names an unknown key derivation function
+     */
+    public static KeyDerivation forHeader(ContainerHeader header) throws NoSuchAlgorithmException
+    {
+        byte[] parameters = header.getKdfParameters();
+        switch (header.getKdf())
+        {
+            case ContainerHeader.KDF_LEGACY:
+                return new LegacyKeyDerivation();
+            case PBKDF2KeyDerivation.ID:
+                return PBKDF2KeyDerivation.decode(parameters);
+            case ScryptKeyDerivation.ID:
+                return ScryptKeyDerivation.decode(parameters);
+            default:
+                throw new NoSuchAlgorithmException("Unknown key derivation function: " + header.getKdf());
+        }
+    }
+
+    /**
+     * Creates a key derivation function by name, with a new random salt.
+     *
+     * @param name the name of the function
+     * @param cost the cost parameter
+     * @return the key derivation
+     * @throws NoSuchAlgorithmException the name is not known
+     */
+    public static KeyDerivation getInstance(String name, int cost) throws NoSuchAlgorithmException
+    {
+        if (PBKDF2KeyDerivation.NAME.equals(name))
+            return new PBKDF2KeyDerivation(cost);
+        if (ScryptKeyDerivation.NAME.equals(name))
+            return new ScryptKeyDerivation(cost);
+        throw new NoSuchAlgorithmException("Unknown key derivation function: " + name);
+    }
+
+    /**
+     * Benchmarks a key derivation function on this machine, and picks the cost that takes about the target time.
+     *
+     * @param name         the name of the function
+     * @param targetMillis the number of milliseconds one derivation should take
+     * @return a key derivation with the calibrated cost, and a new random salt
+     * @throws GeneralSecurityException the function is not known, or could not be run
+     */
+    public static KeyDerivation calibrate(String name, long targetMillis) throws GeneralSecurityException
+    {
+        if (PBKDF2KeyDerivation.NAME.equals(name))
+            return new PBKDF2KeyDerivation(PBKDF2KeyDerivation.calibrate(targetMillis));
+        if (ScryptKeyDerivation.NAME.equals(name))
+            return new ScryptKeyDerivation(ScryptKeyDerivation.calibrate(targetMillis));
+        throw new NoSuchAlgorithmException("Unknown key derivation function: " + name);
+    }
+
+    /**
+     * Returns the key derivation used to encrypt new containers.
+     *
+     * @return the default key derivation
+     */
+    public static synchronized KeyDerivation getDefault()
+    {
+        if (defaultDerivation == null)
+            defaultDerivation = new PBKDF2KeyDerivation(PBKDF2KeyDerivation.DEFAULT_ITERATIONS);
+        return defaultDerivation;
+    }
+
+    /**
+     * Sets the key derivation used to encrypt new containers, for example after calibration.
+     *
+     * @param derivation the new default key derivation
+     */
+    public static synchronized void setDefault(KeyDerivation derivation)
+    {
+        defaultDerivation = derivation;
+    }
+
+    /**
+     * Creates a random salt.
+     *
+     * @return the salt
+     */
+    static byte[] newSalt()
+    {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Encodes a password as UTF-8 without creating a String that can't be overwritten.
+     *
+     * @param password the password
+     * @return the encoded password, which the caller should overwrite when done with it
+     */
+    static byte[] encodePassword(char[] password)
+    {
+        ByteBuffer encoded = Charset.forName("UTF-8").encode(CharBuffer.wrap(password));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+
+        /* Overwrite the encoder's buffer as well. */
+        encoded.clear();
+        while (encoded.hasRemaining())
+            encoded.put((byte) 0);
+        return bytes;
+    }
+
+    /**
+     * The number of bytes of salt used by the key derivation functions.
+     */
+    public static final int SALT_LENGTH = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static KeyDerivation defaultDerivation;
+
+    private final int id;
+    private final String name;
+}
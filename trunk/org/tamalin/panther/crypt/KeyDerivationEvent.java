@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The KeyDerivationEvent class is the Flight Recorder event for making a key from a password.  A key found in
+ * the KeyCache is recorded too, so a recording shows how often the slow derivation was avoided.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+@Name("org.tamalin.panther.KeyDerivation")
+@Label("Key Derivation")
+@Category({"Panther", "Crypto"})
+@Description("A key made from a password")
+class KeyDerivationEvent extends Event
+{
+    @Label("Function")
+    String function;
+
+    @Label("Cost")
+    @Description("The iteration count or cost parameter of the function")
+    int cost;
+
+    @Label("Algorithm")
+    @Description("The cipher algorithm the key is for")
+    String algorithm;
+
+    @Label("Cached")
+    @Description("Whether the key was found in the key cache rather than derived")
+    boolean cached;
+}
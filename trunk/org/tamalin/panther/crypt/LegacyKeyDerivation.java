@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The LegacyKeyDerivation class digests a password with a single pass of MD5, the way Panther did before
+ * key derivation became configurable.  It has no salt and no cost, and is only kept so that files written
+ * by earlier versions can still be decrypted.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class LegacyKeyDerivation extends KeyDerivation
+{
+    public LegacyKeyDerivation()
+    {
+        super(ContainerHeader.KDF_LEGACY, NAME);
+    }
+
+    public byte[] deriveKey(char[] password) throws NoSuchAlgorithmException
+    {
+        /* Digest the password into a sequence of bytes the right length. */
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        for (char character : password)
+            digest.update((byte) character);
+
+        return digest.digest();
+    }
+
+    public byte[] getParameters()
+    {
+        return new byte[0];
+    }
+
+    public KeyDerivation withNewSalt()
+    {
+        return this;
+    }
+
+    public int getCost()
+    {
+        return 1;
+    }
+
+    public static final String NAME = "MD5";
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import org.tamalin.panther.Updatable;
+
+import javax.crypto.Cipher;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+/**
+ * The MappedFileCipher class encrypts or decrypts one file into another by mapping both files into memory
+ * and passing the mapped buffers straight to the Cipher, so the data is never copied onto the heap.
+ * The files are mapped a window at a time, since a single mapping is limited to 2 GB.
+ * It is used by StreamCipherEngine when memory mapped I/O is turned on.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+class MappedFileCipher
+{
+    MappedFileCipher(char[] password, KeyDerivation keyDerivation, String algorithm, int chunkSize, Updatable parent)
+    {
+        this.password = password;
+        this.keyDerivation = keyDerivation;
+        this.algorithm = algorithm;
+        this.chunkSize = chunkSize;
+        this.parent = parent;
+    }
+
+    /**
+     * Encrypts a file into a container, or decrypts a container or an older file.
+     *
+     * @param in   the file to read
+     * @param out  the file to write
+     * @param mode either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @throws IOException              the files could not be read or written
+     * @throws GeneralSecurityException the input could not be decrypted with the given password
+     */
+    void process(File in, File out, int mode) throws IOException, GeneralSecurityException
+    {
+        boolean legacy = mode == Cipher.DECRYPT_MODE && !ContainerHeader.isContainer(in);
+        CipherPool pool = legacy ? CipherPool.getInstance(algorithm) : ContainerHeader.getCipherPool();
+        Cipher cipher = pool.borrow();
+        RandomAccessFile input = null;
+        RandomAccessFile output = null;
+
+        try
+        {
+            input = new RandomAccessFile(in, "r");
+            output = new RandomAccessFile(out, "rw");
+            output.setLength(0);
+
+            if (mode == Cipher.ENCRYPT_MODE)
+                encrypt(cipher, input.getChannel(), output.getChannel());
+            else if (!legacy)
+                decrypt(cipher, input.getChannel(), output.getChannel());
+            else
+                decryptLegacy(cipher, input.getChannel(), output);
+        }
+        finally
+        {
+            pool.release(cipher);
+            if (input != null)
+                input.close();
+            if (output != null)
+                output.close();
+        }
+    }
+
+    private void encrypt(Cipher cipher, FileChannel in, FileChannel out) throws IOException, GeneralSecurityException
+    {
+        Key key = keyDerivation.makeKey(password, algorithm);
+        ContainerHeader header = new ContainerHeader(keyDerivation.getId(), keyDerivation.getParameters(), chunkSize);
+        byte[] encoded = header.getEncoded();
+        ContainerOutputStream.writeFully(out, ByteBuffer.wrap(encoded), 0);
+
+        long length = in.size();
+        int chunks = header.chunkCount(length);
+        long recordSize = 4L + chunkSize + ContainerHeader.TAG_LENGTH;
+
+        int windowChunks = windowChunks(chunkSize);
+        for (int first = 0; first < chunks; first += windowChunks)
+        {
+            int count = Math.min(windowChunks, chunks - first);
+            long inputStart = (long) first * chunkSize;
+            long inputLength = Math.min(length - inputStart, (long) count * chunkSize);
+            long outputStart = encoded.length + first * recordSize;
+            long outputLength = count * (4L + ContainerHeader.TAG_LENGTH) + inputLength;
+
+            ByteBuffer source = map(in, FileChannel.MapMode.READ_ONLY, inputStart, inputLength);
+            MappedByteBuffer sink = out.map(FileChannel.MapMode.READ_WRITE, outputStart, outputLength);
+
+            for (int chunk = first; chunk < first + count; chunk++)
+            {
+                boolean last = chunk == chunks - 1;
+                int plainLength = (int) Math.min(chunkSize, length - (long) chunk * chunkSize);
+
+                sink.putInt(plainLength);
+                source.limit(source.position() + plainLength);
+
+                cipher.init(Cipher.ENCRYPT_MODE, key, header.parametersFor(chunk));
+                cipher.updateAAD(header.additionalData(last ? ContainerHeader.FINAL_CHUNK : ContainerHeader.CHUNK));
+                cipher.doFinal(source, sink);
+            }
+
+            report(inputStart + inputLength, length);
+        }
+
+        /* Write the end marker, index and footer after the last chunk. */
+        ContainerOutputStream.writeTrailer(out, cipher, key, header, length);
+    }
+
+    private void decrypt(Cipher cipher, FileChannel in, FileChannel out) throws IOException, GeneralSecurityException
+    {
+        /* The reader checks the header, footer and index; the chunks themselves are decrypted here. */
+        ContainerHeader header = ContainerReader.readHeader(in);
+        Key key = KeyDerivation.forHeader(header).makeKey(password, algorithm);
+        ContainerReader reader = new ContainerReader(in, header, key);
+        try
+        {
+            decryptChunks(cipher, reader, in, out);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private void decryptChunks(Cipher cipher, ContainerReader reader, FileChannel in, FileChannel out) throws IOException, GeneralSecurityException
+    {
+        ContainerHeader header = reader.getHeader();
+        Key key = reader.getKey();
+        int size = header.getChunkSize();
+        long length = reader.length();
+        int chunks = reader.getChunkCount();
+
+        int windowChunks = windowChunks(size);
+        for (int first = 0; first < chunks; first += windowChunks)
+        {
+            int count = Math.min(windowChunks, chunks - first);
+            long outputStart = (long) first * size;
+            long outputLength = Math.min(length - outputStart, (long) count * size);
+            long inputStart = reader.getChunkOffset(first);
+            long inputLength = count * (4L + ContainerHeader.TAG_LENGTH) + outputLength;
+
+            if (inputStart + inputLength > in.size())
+                throw new EOFException("Unexpected end of container.");
+
+            MappedByteBuffer source = in.map(FileChannel.MapMode.READ_ONLY, inputStart, inputLength);
+            ByteBuffer sink = map(out, FileChannel.MapMode.READ_WRITE, outputStart, outputLength);
+
+            for (int chunk = first; chunk < first + count; chunk++)
+            {
+                boolean last = chunk == chunks - 1;
+                int expected = (int) Math.min(size, length - (long) chunk * size);
+
+                if (inputStart + source.position() != reader.getChunkOffset(chunk) || source.getInt() != expected)
+                    throw new IOException("Chunk " + chunk + " does not match the index.");
+                source.limit(source.position() + expected + ContainerHeader.TAG_LENGTH);
+
+                cipher.init(Cipher.DECRYPT_MODE, key, header.parametersFor(chunk));
+                cipher.updateAAD(header.additionalData(last ? ContainerHeader.FINAL_CHUNK : ContainerHeader.CHUNK));
+                cipher.doFinal(source, sink);
+                source.limit(source.capacity());
+            }
+
+            report(outputStart + outputLength, length);
+        }
+    }
+
+    private void decryptLegacy(Cipher legacyCipher, FileChannel in, RandomAccessFile output) throws IOException, GeneralSecurityException
+    {
+        /* The plaintext is never longer than the ciphertext, so map that much and trim the file afterwards. */
+        FileChannel out = output.getChannel();
+        legacyCipher.init(Cipher.DECRYPT_MODE, CipherEngine.makeKey(password, algorithm));
+        long length = in.size();
+        long written = 0;
+        long window = (long) windowChunks(chunkSize) * chunkSize;
+
+        for (long start = 0; start < length; start += window)
+        {
+            long count = Math.min(window, length - start);
+            MappedByteBuffer source = in.map(FileChannel.MapMode.READ_ONLY, start, count);
+            MappedByteBuffer sink = out.map(FileChannel.MapMode.READ_WRITE, written, count + legacyCipher.getBlockSize());
+
+            written += legacyCipher.update(source, sink);
+            report(start + count, length);
+        }
+
+        MappedByteBuffer sink = out.map(FileChannel.MapMode.READ_WRITE, written, legacyCipher.getBlockSize() * 2);
+        written += legacyCipher.doFinal(ByteBuffer.allocate(0), sink);
+        output.setLength(written);
+    }
+
+    /**
+     * Works out how many chunks of the given size fit in one mapped window.
+     */
+    private static int windowChunks(int size)
+    {
+        return Math.max(1, WINDOW_SIZE / size);
+    }
+
+    private void report(long processed, long total)
+    {
+        if (parent != null)
+            parent.updateProgress(processed, total);
+    }
+
+    /**
+     * Maps a region of a file, or returns an empty buffer for an empty region.
+     */
+    private static ByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long size) throws IOException
+    {
+        if (size == 0)
+            return ByteBuffer.allocate(0);
+        return channel.map(mode, position, size);
+    }
+
+    /**
+     * The number of bytes mapped at a time, rounded down to a whole number of chunks.
+     */
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final char[] password;
+    private final KeyDerivation keyDerivation;
+    private final String algorithm;
+    private final int chunkSize;
+    private final Updatable parent;
+}
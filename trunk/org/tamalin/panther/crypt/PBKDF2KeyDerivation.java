@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The PBKDF2KeyDerivation class derives keys with PBKDF2 using HMAC-SHA256, with a configurable
+ * number of iterations.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class PBKDF2KeyDerivation extends KeyDerivation
+{
+    /**
+     * Creates a PBKDF2 key derivation with a new random salt.
+     *
+     * @param iterations the number of iterations
+     */
+    public PBKDF2KeyDerivation(int iterations)
+    {
+        this(iterations, newSalt());
+    }
+
+    private PBKDF2KeyDerivation(int iterations, byte[] salt)
+    {
+        super(ID, NAME);
+        if (iterations < 1 || iterations > MAXIMUM_ITERATIONS)
+            throw new IllegalArgumentException("Iterations out of range: " + iterations);
+
+        this.iterations = iterations;
+        this.salt = salt;
+    }
+
+    static PBKDF2KeyDerivation decode(byte[] parameters) throws NoSuchAlgorithmException
+    {
+        if (parameters.length != 4 + SALT_LENGTH)
+            throw new NoSuchAlgorithmException("Invalid " + NAME + " parameters.");
+
+        ByteBuffer buffer = ByteBuffer.wrap(parameters);
+        int iterations = buffer.getInt();
+        byte[] salt = new byte[SALT_LENGTH];
+        buffer.get(salt);
+
+        /* The count comes from the file, so refuse one that would keep the CPU busy for hours. */
+        if (iterations < 1 || iterations > MAXIMUM_ITERATIONS)
+            throw new NoSuchAlgorithmException("Invalid " + NAME + " iteration count: " + iterations);
+        return new PBKDF2KeyDerivation(iterations, salt);
+    }
+
+    public byte[] deriveKey(char[] password) throws GeneralSecurityException
+    {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_LENGTH * 8);
+        try
+        {
+            return SecretKeyFactory.getInstance(NAME).generateSecret(spec).getEncoded();
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+
+    public byte[] getParameters()
+    {
+        return ByteBuffer.allocate(4 + SALT_LENGTH).putInt(iterations).put(salt).array();
+    }
+
+    public KeyDerivation withNewSalt()
+    {
+        return new PBKDF2KeyDerivation(iterations);
+    }
+
+    public int getCost()
+    {
+        return iterations;
+    }
+
+    /**
+     * Times PBKDF2 on this machine, and works out the number of iterations that take about the target time.
+     *
+     * @param targetMillis the number of milliseconds one derivation should take
+     * @return the number of iterations, never less than MINIMUM_ITERATIONS
+     * @throws GeneralSecurityException PBKDF2 is not available
+     */
+    public static int calibrate(long targetMillis) throws GeneralSecurityException
+    {
+        char[] password = "calibration".toCharArray();
+        PBKDF2KeyDerivation probe = new PBKDF2KeyDerivation(CALIBRATION_ITERATIONS);
+
+        /* Warm up first, so the measurement isn't thrown off by the JIT compiler. */
+        probe.deriveKey(password);
+
+        long start = System.nanoTime();
+        probe.deriveKey(password);
+        long elapsed = Math.max(1, System.nanoTime() - start);
+
+        long iterations = CALIBRATION_ITERATIONS * (targetMillis * 1000000L) / elapsed;
+        iterations = Math.max(MINIMUM_ITERATIONS, Math.min(MAXIMUM_ITERATIONS, iterations));
+        return (int) (iterations / 1000 * 1000);
+    }
+
+    public static final int ID = 1;
+    public static final String NAME = "PBKDF2WithHmacSHA256";
+
+    /**
+     * The number of iterations used before calibration has been done.
+     */
+    public static final int DEFAULT_ITERATIONS = 310000;
+    public static final int MINIMUM_ITERATIONS = 100000;
+    public static final int MAXIMUM_ITERATIONS = 100000000;
+
+    /**
+     * The length of the derived keys in bytes, for AES-256.
+     */
+    public static final int KEY_LENGTH = 32;
+
+    private static final int CALIBRATION_ITERATIONS = 50000;
+
+    private final int iterations;
+    private final byte[] salt;
+}
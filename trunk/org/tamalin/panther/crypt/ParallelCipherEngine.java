@@ -0,0 +1,335 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import org.tamalin.panther.Updatable;
+
+import javax.crypto.Cipher;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ParallelCipherEngine class encrypts a file into a container, or decrypts a container into a file, with
+ * the chunks processed at the same time on a ForkJoinPool.  Every chunk of a container is sealed with AES-GCM
+ * under its own nonce, and the position of every chunk follows from the chunk size when encrypting and from
+ * the index when decrypting, so the chunks are completely independent of each other.  The result is exactly
+ * the container StreamCipherEngine writes, and a wrong password or an altered chunk is detected just the same.
+ * <p>
+ * The chunks are handed out in segments of about a megabyte, each read, sealed or opened, and written with
+ * one positional read and one positional write.  It is used by StreamCipherEngine for large files.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+class ParallelCipherEngine
+{
+    ParallelCipherEngine(char[] password, KeyDerivation keyDerivation, String algorithm, int chunkSize, Updatable parent)
+    {
+        this(password, keyDerivation, algorithm, chunkSize, parent, ForkJoinPool.commonPool());
+    }
+
+    ParallelCipherEngine(char[] password, KeyDerivation keyDerivation, String algorithm, int chunkSize, Updatable parent, ForkJoinPool pool)
+    {
+        this.password = password;
+        this.keyDerivation = keyDerivation;
+        this.algorithm = algorithm;
+        this.chunkSize = chunkSize;
+        this.parent = parent;
+        this.pool = pool;
+    }
+
+    /**
+     * Encrypts a file into a container, or decrypts a container.  Files in the format used before containers
+     * can't be split into chunks, so they must be decrypted by StreamCipherEngine.
+     *
+     * @param in   the file to read
+     * @param out  the file to write
+     * @param mode either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @throws IOException              the files could not be read or written
+     * @throws GeneralSecurityException the input could not be decrypted with the given password
+     */
+    void process(File in, File out, int mode) throws IOException, GeneralSecurityException
+    {
+        RandomAccessFile input = null;
+        RandomAccessFile output = null;
+
+        try
+        {
+            input = new RandomAccessFile(in, "r");
+            output = new RandomAccessFile(out, "rw");
+            output.setLength(0);
+
+            if (mode == Cipher.ENCRYPT_MODE)
+                encrypt(input.getChannel(), output.getChannel());
+            else
+                decrypt(input.getChannel(), output.getChannel());
+        }
+        finally
+        {
+            if (input != null)
+                input.close();
+            if (output != null)
+                output.close();
+        }
+    }
+
+    private void encrypt(final FileChannel in, final FileChannel out) throws IOException, GeneralSecurityException
+    {
+        final Key key = keyDerivation.makeKey(password, algorithm);
+        final ContainerHeader header = new ContainerHeader(keyDerivation.getId(), keyDerivation.getParameters(), chunkSize);
+        final byte[] encoded = header.getEncoded();
+        ContainerOutputStream.writeFully(out, ByteBuffer.wrap(encoded), 0);
+
+        final long length = in.size();
+        final int chunks = header.chunkCount(length);
+        final long recordSize = 4L + chunkSize + ContainerHeader.TAG_LENGTH;
+
+        /* Every chunk but the last is full, so each one's place in the container is known in advance. */
+        Segment segment = new Segment()
+        {
+            public void process(Cipher cipher, int first, int count) throws GeneralSecurityException, IOException
+            {
+                long inputStart = (long) first * chunkSize;
+                int inputLength = (int) Math.min(length - inputStart, (long) count * chunkSize);
+                ByteBuffer source = ByteBuffer.allocate(inputLength);
+                ByteBuffer sink = ByteBuffer.allocate(count * (4 + ContainerHeader.TAG_LENGTH) + inputLength);
+                readFully(in, source, inputStart);
+                source.flip();
+
+                for (int chunk = first; chunk < first + count; chunk++)
+                {
+                    boolean last = chunk == chunks - 1;
+                    int plainLength = (int) Math.min(chunkSize, length - (long) chunk * chunkSize);
+                    sink.putInt(plainLength);
+                    source.limit(source.position() + plainLength);
+
+                    cipher.init(Cipher.ENCRYPT_MODE, key, header.parametersFor(chunk));
+                    cipher.updateAAD(header.additionalData(last ? ContainerHeader.FINAL_CHUNK : ContainerHeader.CHUNK));
+                    cipher.doFinal(source, sink);
+                }
+
+                sink.flip();
+                ContainerOutputStream.writeFully(out, sink, encoded.length + first * recordSize);
+                report(inputLength, length);
+            }
+        };
+        invoke(segment, chunks, chunkSize);
+
+        /* Write the end marker, index and footer after the last chunk. */
+        CipherPool ciphers = ContainerHeader.getCipherPool();
+        Cipher cipher = ciphers.borrow();
+        try
+        {
+            ContainerOutputStream.writeTrailer(out, cipher, key, header, length);
+        }
+        finally
+        {
+            ciphers.release(cipher);
+        }
+    }
+
+    private void decrypt(final FileChannel in, final FileChannel out) throws IOException, GeneralSecurityException
+    {
+        /* The reader checks the header, footer and index; the chunks themselves are decrypted here. */
+        final ContainerHeader header = ContainerReader.readHeader(in);
+        final Key key = KeyDerivation.forHeader(header).makeKey(password, algorithm);
+        final ContainerReader reader = new ContainerReader(in, header, key);
+        try
+        {
+            final int size = header.getChunkSize();
+            final long length = reader.length();
+            final int chunks = reader.getChunkCount();
+            final long containerSize = in.size();
+
+            Segment segment = new Segment()
+            {
+                public void process(Cipher cipher, int first, int count) throws GeneralSecurityException, IOException
+                {
+                    long outputStart = (long) first * size;
+                    int outputLength = (int) Math.min(length - outputStart, (long) count * size);
+                    long inputStart = reader.getChunkOffset(first);
+                    long inputLength = (long) count * (4 + ContainerHeader.TAG_LENGTH) + outputLength;
+                    if (inputStart < 0 || inputStart + inputLength > containerSize)
+                        throw new EOFException("Unexpected end of container.");
+                    if (inputLength > Integer.MAX_VALUE)
+                        throw new IOException("Chunk size is too large: " + size);
+
+                    ByteBuffer source = ByteBuffer.allocate((int) inputLength);
+                    ByteBuffer sink = ByteBuffer.allocate(outputLength);
+                    readFully(in, source, inputStart);
+                    source.flip();
+
+                    for (int chunk = first; chunk < first + count; chunk++)
+                    {
+                        boolean last = chunk == chunks - 1;
+                        int expected = (int) Math.min(size, length - (long) chunk * size);
+                        if (inputStart + source.position() != reader.getChunkOffset(chunk) || source.getInt() != expected)
+                            throw new IOException("Chunk " + chunk + " does not match the index.");
+                        source.limit(source.position() + expected + ContainerHeader.TAG_LENGTH);
+
+                        cipher.init(Cipher.DECRYPT_MODE, key, header.parametersFor(chunk));
+                        cipher.updateAAD(header.additionalData(last ? ContainerHeader.FINAL_CHUNK : ContainerHeader.CHUNK));
+                        cipher.doFinal(source, sink);
+                        source.limit(source.capacity());
+                    }
+
+                    sink.flip();
+                    ContainerOutputStream.writeFully(out, sink, outputStart);
+                    report(outputLength, length);
+                }
+            };
+            invoke(segment, chunks, size);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Runs a segment over every chunk on the pool, and unwraps any exception it threw.
+     */
+    private void invoke(Segment segment, int chunks, int size) throws GeneralSecurityException, IOException
+    {
+        processed.set(0);
+        int chunksPerTask = Math.max(1, SEGMENT_SIZE / size);
+        try
+        {
+            pool.invoke(new SegmentTask(segment, chunksPerTask, 0, chunks));
+        }
+        catch (SegmentException ex)
+        {
+            if (ex.getCause() instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) ex.getCause();
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw ex;
+        }
+    }
+
+    private void report(long count, long total)
+    {
+        long done = processed.addAndGet(count);
+        if (parent != null)
+            parent.updateProgress(done, total);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of file.");
+            position += read;
+        }
+    }
+
+    /**
+     * Encrypts or decrypts a run of chunks, with a cipher borrowed for the whole run.
+     */
+    private interface Segment
+    {
+        public void process(Cipher cipher, int first, int count) throws GeneralSecurityException, IOException;
+    }
+
+    /**
+     * A task that processes a range of chunks, splitting itself in half until it holds no more than one segment.
+     */
+    private static class SegmentTask extends RecursiveAction
+    {
+        SegmentTask(Segment segment, int chunksPerTask, int from, int to)
+        {
+            this.segment = segment;
+            this.chunksPerTask = chunksPerTask;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute()
+        {
+            if (to - from > chunksPerTask)
+            {
+                /* Split on a segment boundary, so every task but the last is a whole segment. */
+                int middle = from + ((to - from) / chunksPerTask / 2) * chunksPerTask;
+                if (middle == from)
+                    middle += chunksPerTask;
+                invokeAll(new SegmentTask(segment, chunksPerTask, from, middle), new SegmentTask(segment, chunksPerTask, middle, to));
+                return;
+            }
+
+            CipherPool ciphers = ContainerHeader.getCipherPool();
+            try
+            {
+                Cipher cipher = ciphers.borrow();
+                try
+                {
+                    segment.process(cipher, from, to - from);
+                }
+                finally
+                {
+                    ciphers.release(cipher);
+                }
+            }
+            catch (GeneralSecurityException ex)
+            {
+                throw new SegmentException(ex);
+            }
+            catch (IOException ex)
+            {
+                throw new SegmentException(ex);
+            }
+        }
+
+        final Segment segment;
+        final int chunksPerTask;
+        final int from, to;
+    }
+
+    /**
+     * Carries checked exceptions out of the ForkJoinPool.
+     */
+    private static class SegmentException extends RuntimeException
+    {
+        SegmentException(Throwable cause)
+        {
+            super(cause);
+        }
+    }
+
+    /**
+     * The number of plaintext bytes each task processes, rounded down to a whole number of chunks.
+     */
+    static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private final char[] password;
+    private final KeyDerivation keyDerivation;
+    private final String algorithm;
+    private final int chunkSize;
+    private final Updatable parent;
+    private final ForkJoinPool pool;
+    private final AtomicLong processed = new AtomicLong();
+}
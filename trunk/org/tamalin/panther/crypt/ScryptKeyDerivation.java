@@ -0,0 +1,313 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The ScryptKeyDerivation class derives keys with scrypt (RFC 7914), a memory hard function that needs
+ * 128 * r * N bytes of memory for each derivation.  The cost is the base two logarithm of N; r is fixed at 8
+ * and p at 1.  The Java platform does not provide scrypt, so it is implemented here.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class ScryptKeyDerivation extends KeyDerivation
+{
+    /**
+     * Creates a scrypt key derivation with a new random salt.
+     *
+     * @param logN the base two logarithm of the CPU and memory cost N
+     */
+    public ScryptKeyDerivation(int logN)
+    {
+        this(logN, BLOCK_FACTOR, PARALLELISM, newSalt());
+    }
+
+    private ScryptKeyDerivation(int logN, int r, int p, byte[] salt)
+    {
+        super(ID, NAME);
+        if (logN < 1 || logN > MAXIMUM_LOG_N)
+            throw new IllegalArgumentException("Cost out of range: " + logN);
+
+        this.logN = logN;
+        this.r = r;
+        this.p = p;
+        this.salt = salt;
+    }
+
+    static ScryptKeyDerivation decode(byte[] parameters) throws NoSuchAlgorithmException
+    {
+        if (parameters.length != 3 + SALT_LENGTH)
+            throw new NoSuchAlgorithmException("Invalid " + NAME + " parameters.");
+
+        ByteBuffer buffer = ByteBuffer.wrap(parameters);
+        int logN = buffer.get() & 0xFF;
+        int r = buffer.get() & 0xFF;
+        int p = buffer.get() & 0xFF;
+        byte[] salt = new byte[SALT_LENGTH];
+        buffer.get(salt);
+
+        /* Refuse parameters that would need more than a gigabyte, or repeat the work too many times. */
+        if (logN < 1 || logN > MAXIMUM_LOG_N || r < 1 || p < 1 || p > MAXIMUM_PARALLELISM || (128L * r << logN) > (1L << 30))
+            throw new NoSuchAlgorithmException("Invalid " + NAME + " parameters.");
+        return new ScryptKeyDerivation(logN, r, p, salt);
+    }
+
+    public byte[] deriveKey(char[] password) throws GeneralSecurityException
+    {
+        byte[] passwordBytes = KeyDerivation.encodePassword(password);
+        byte[] blocks = null;
+        try
+        {
+            int blockLength = 128 * r;
+            blocks = pbkdf2(passwordBytes, salt, p * blockLength);
+
+            int[] x = new int[32 * r];
+            int[] v = new int[(32 * r) << logN];
+            int[] scratch = new int[32 * r];
+            int[] t = new int[16];
+            for (int i = 0; i < p; i++)
+                romix(blocks, i * blockLength, x, v, scratch, t);
+
+            Arrays.fill(x, 0);
+            Arrays.fill(v, 0);
+            Arrays.fill(scratch, 0);
+            Arrays.fill(t, 0);
+            return pbkdf2(passwordBytes, blocks, KEY_LENGTH);
+        }
+        finally
+        {
+            Arrays.fill(passwordBytes, (byte) 0);
+            if (blocks != null)
+                Arrays.fill(blocks, (byte) 0);
+        }
+    }
+
+    public byte[] getParameters()
+    {
+        return ByteBuffer.allocate(3 + SALT_LENGTH).put((byte) logN).put((byte) r).put((byte) p).put(salt).array();
+    }
+
+    public KeyDerivation withNewSalt()
+    {
+        return new ScryptKeyDerivation(logN, r, p, newSalt());
+    }
+
+    public int getCost()
+    {
+        return logN;
+    }
+
+    /**
+     * Times scrypt on this machine, and finds the largest cost that takes no longer than the target time.
+     *
+     * @param targetMillis the number of milliseconds one derivation should take
+     * @return the base two logarithm of N, never less than MINIMUM_LOG_N
+     * @throws GeneralSecurityException scrypt could not be run
+     */
+    public static int calibrate(long targetMillis) throws GeneralSecurityException
+    {
+        char[] password = "calibration".toCharArray();
+        int logN = MINIMUM_LOG_N;
+
+        /* Warm up first, so the measurement isn't thrown off by the JIT compiler. */
+        new ScryptKeyDerivation(logN).deriveKey(password);
+
+        /* Each step doubles both the time and the memory, so stop at the last step that fits. */
+        while (logN < CALIBRATION_LIMIT)
+        {
+            long start = System.nanoTime();
+            new ScryptKeyDerivation(logN + 1).deriveKey(password);
+            long elapsed = (System.nanoTime() - start) / 1000000L;
+
+            if (elapsed > targetMillis)
+                break;
+            logN++;
+        }
+
+        return logN;
+    }
+
+    /**
+     * Computes one iteration of PBKDF2-HMAC-SHA256 over raw bytes.
+     */
+    private static byte[] pbkdf2(byte[] password, byte[] salt, int length) throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance("HmacSHA256");
+
+        /* HMAC pads short keys with zeros, so a single zero byte stands in for an empty password. */
+        mac.init(new SecretKeySpec(password.length == 0 ? new byte[1] : password, "HmacSHA256"));
+
+        byte[] output = new byte[length];
+        int hashLength = mac.getMacLength();
+        for (int block = 1, offset = 0; offset < length; block++, offset += hashLength)
+        {
+            mac.update(salt);
+            mac.update(new byte[]{(byte) (block >>> 24), (byte) (block >>> 16), (byte) (block >>> 8), (byte) block});
+            byte[] u = mac.doFinal();
+            System.arraycopy(u, 0, output, offset, Math.min(hashLength, length - offset));
+            Arrays.fill(u, (byte) 0);
+        }
+
+        return output;
+    }
+
+    /**
+     * Mixes one block of 128 * r bytes in place, using v as the large memory area.
+     */
+    private void romix(byte[] b, int offset, int[] x, int[] v, int[] scratch, int[] t)
+    {
+        int words = 32 * r;
+        int n = 1 << logN;
+
+        for (int i = 0; i < words; i++)
+        {
+            int j = offset + i * 4;
+            x[i] = (b[j] & 0xFF) | (b[j + 1] & 0xFF) << 8 | (b[j + 2] & 0xFF) << 16 | (b[j + 3] & 0xFF) << 24;
+        }
+
+        for (int i = 0; i < n; i++)
+        {
+            System.arraycopy(x, 0, v, i * words, words);
+            blockMix(x, scratch, t);
+        }
+
+        for (int i = 0; i < n; i++)
+        {
+            int j = x[(2 * r - 1) * 16] & (n - 1);
+            for (int k = 0; k < words; k++)
+                x[k] ^= v[j * words + k];
+            blockMix(x, scratch, t);
+        }
+
+        for (int i = 0; i < words; i++)
+        {
+            int j = offset + i * 4;
+            b[j] = (byte) x[i];
+            b[j + 1] = (byte) (x[i] >>> 8);
+            b[j + 2] = (byte) (x[i] >>> 16);
+            b[j + 3] = (byte) (x[i] >>> 24);
+        }
+    }
+
+    /**
+     * Runs Salsa20/8 over each 64 byte block, writing the even blocks before the odd ones.
+     */
+    private void blockMix(int[] b, int[] y, int[] t)
+    {
+        System.arraycopy(b, (2 * r - 1) * 16, t, 0, 16);
+
+        for (int i = 0; i < 2 * r; i++)
+        {
+            for (int k = 0; k < 16; k++)
+                t[k] ^= b[i * 16 + k];
+            salsa208(t);
+
+            /* Even blocks go in the first half of the output, odd blocks in the second. */
+            System.arraycopy(t, 0, y, ((i & 1) * r + (i >> 1)) * 16, 16);
+        }
+
+        System.arraycopy(y, 0, b, 0, 32 * r);
+    }
+
+    private static void salsa208(int[] b)
+    {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+
+        for (int i = 0; i < 8; i += 2)
+        {
+            /* Columns. */
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+
+            /* Rows. */
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3; b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11; b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+
+    public static final int ID = 2;
+    public static final String NAME = "scrypt";
+
+    /**
+     * The cost used before calibration has been done, needing 16 MB per derivation.
+     */
+    public static final int DEFAULT_LOG_N = 14;
+    public static final int MINIMUM_LOG_N = 14;
+    public static final int MAXIMUM_LOG_N = 22;
+
+    /**
+     * The length of the derived keys in bytes, for AES-256.
+     */
+    public static final int KEY_LENGTH = 32;
+
+    private static final int BLOCK_FACTOR = 8;
+    private static final int PARALLELISM = 1;
+
+    /**
+     * The most times a file may ask for the whole derivation to be repeated.
+     */
+    private static final int MAXIMUM_PARALLELISM = 16;
+
+    /**
+     * Calibration stops at 128 MB per derivation, whatever the target time.
+     */
+    private static final int CALIBRATION_LIMIT = 17;
+
+    private final int logN;
+    private final int r;
+    private final int p;
+    private final byte[] salt;
+}
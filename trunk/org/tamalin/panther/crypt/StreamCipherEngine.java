@@ -0,0 +1,496 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import org.tamalin.panther.PantherMetrics;
+import org.tamalin.panther.Updatable;
+import org.tamalin.panther.file.AtomicFile;
+import org.tamalin.panther.file.SyncGroup;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.swing.JOptionPane;
+import java.io.*;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The StreamCipherEngine class encrypts or decrypts a file into another file a chunk at a time,
+ * so the memory used stays the same no matter how large the file is.  It reads and writes the
+ * same formats as CipherEngine, so files can be moved freely between the two engines.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class StreamCipherEngine implements Runnable
+{
+    /**
+     * Creates a new instance of StreamCipherEngine from the given algorithm.
+     *
+     * @param alg The Cipher Algorithm
+     * @throws NoSuchAlgorithmException the cipher algorithm is invalid
+     * @throws NoSuchPaddingException   There was an error with the padding.
+     */
+    public StreamCipherEngine(String alg) throws NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        this(alg, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a new instance of StreamCipherEngine that reads its input in chunks of the given size.
+     *
+     * @param alg       The Cipher Algorithm
+     * @param chunkSize the number of bytes read from the input at a time, no more than ContainerHeader.MAXIMUM_CHUNK_SIZE
+     * @throws NoSuchAlgorithmException the cipher algorithm is invalid
+     * @throws NoSuchPaddingException   There was an error with the padding.
+     */
+    public StreamCipherEngine(String alg, int chunkSize) throws NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        if (chunkSize <= 0 || chunkSize > ContainerHeader.MAXIMUM_CHUNK_SIZE)
+            throw new IllegalArgumentException("Chunk size out of range: " + chunkSize);
+
+        algorithm = alg;
+        legacyCiphers = CipherPool.getInstance(alg);
+
+        /* Borrow a cipher straight away, so an unknown algorithm is reported here rather than in run(). */
+        legacyCiphers.release(legacyCiphers.borrow());
+        inputBuffer = new byte[chunkSize];
+    }
+
+    public void init(File in, File out, int m, char[] password, Updatable p) throws InvalidKeyException, NoSuchAlgorithmException, InvalidKeySpecException
+    {
+        /* Store the files. */
+        input = in;
+        output = out;
+        init(m, password, p);
+    }
+
+    /**
+     * Prepares the engine for use with the stream based process() method, which has no files to name in advance.
+     *
+     * @param m        either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param password the password, which is overwritten
+     * @param p        the Updatable to report progress to, which may be null
+     */
+    public void init(int m, char[] password, Updatable p)
+    {
+        /* Set the mode. */
+        mode = m;
+        parent = p;
+
+        /* Keep a copy of the password; the key is derived in run(), since that may take a while. */
+        this.password = password.clone();
+
+        /* For security reasons, the password array must be overwritten. */
+        for (int i = 0; i < password.length; i++)
+            password[i] = 0;
+    }
+
+    /**
+     * Sets the key derivation used when encrypting.  Decryption always uses the key derivation recorded in the
+     * container header.  If this is never called, KeyDerivation.getDefault() is used.
+     *
+     * @param derivation the key derivation
+     */
+    public void setKeyDerivation(KeyDerivation derivation)
+    {
+        keyDerivation = derivation;
+    }
+
+    /**
+     * Overwrites the copy of the password kept since init().  This is done automatically at the end of run(),
+     * but must be called by anyone using the process() methods directly.
+     */
+    public void clearPassword()
+    {
+        Arrays.fill(password, '\0');
+    }
+
+    public void run()
+    {
+        /* Try to encrypt/decrypt the file, reporting progress to the Updatable as it goes. */
+        try
+        {
+            processFiles();
+        }
+        catch (AuthenticationException ex)
+        {
+            logger.log(Level.SEVERE, "Container failed authentication.", ex);
+            JOptionPane.showMessageDialog(null, "Decryption failed: Access is denied.", "Decryption Failed", JOptionPane.ERROR_MESSAGE);
+        }
+        catch (CorruptDataException ex)
+        {
+            logger.log(Level.SEVERE, "Data is damaged.", ex);
+            JOptionPane.showMessageDialog(null, "This file is invalid (" + ex.getMessage() + ")!", "Decryption Failed", JOptionPane.ERROR_MESSAGE);
+        }
+        catch (CryptoException ex)
+        {
+            logger.log(Level.SEVERE, "Unable to process the data.", ex);
+            JOptionPane.showMessageDialog(null, "The data could not be processed.", "Operation Failed", JOptionPane.ERROR_MESSAGE);
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.SEVERE, "I/O error while processing " + input, ex);
+            JOptionPane.showMessageDialog(null, "Unable to process the file.  Make sure that you have permission to read and write the files.", "I/O Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Encrypts or decrypts the files given to init(), on the calling thread.  If this fails, the output file is
+     * left as it was.  The copy of the password is overwritten afterwards.
+     *
+     * @throws AuthenticationException the password is wrong, or the file has been altered
+     * @throws CorruptDataException    the file is damaged
+     * @throws CryptoException         the file could not be processed for any other reason
+     * @throws IOException             the files could not be read or written
+     */
+    public void processFiles() throws CryptoException, IOException
+    {
+        boolean completed = false;
+        try
+        {
+            process(input, output);
+            completed = true;
+        }
+        catch (IOException ex)
+        {
+            CryptoException translated = CryptoException.translate(ex);
+            if (translated != null)
+                throw translated;
+            throw ex;
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw CryptoException.translate(ex);
+        }
+        finally
+        {
+            clearPassword();
+            if (!completed && parent != null)
+                parent.updateProgress(0, 0);
+        }
+    }
+
+    /**
+     * Encrypts or decrypts one file into another.  The result is written to a temporary file, which only
+     * replaces the output file once it is complete and on disk, so a failure or a crash never destroys an
+     * existing output file.  Large files are split between several threads unless that is turned off with
+     * setParallel.
+     *
+     * @param in  the file to read
+     * @param out the file to write
+     * @throws IOException              the files could not be read or written
+     * @throws GeneralSecurityException the input could not be decrypted with the given key
+     */
+    public void process(File in, File out) throws IOException, GeneralSecurityException
+    {
+        boolean split = !memoryMapped && isSplittable(in);
+        CipherEvent event = new CipherEvent(mode, algorithm, memoryMapped ? CipherEvent.MAPPED : split ? CipherEvent.PARALLEL : CipherEvent.FILE);
+        event.path = in.getPath();
+        event.begin();
+        PantherMetrics.Operation operation = PantherMetrics.getDefault().begin(mode == Cipher.ENCRYPT_MODE ? PantherMetrics.ENCRYPT : PantherMetrics.DECRYPT);
+
+        AtomicFile target = new AtomicFile(out, syncGroup);
+        try
+        {
+            if (memoryMapped)
+            {
+                new MappedFileCipher(password, getKeyDerivation(), algorithm, inputBuffer.length, parent).process(in, target.getTempFile(), mode);
+                event.bytes = in.length();
+            }
+            else if (split)
+            {
+                new ParallelCipherEngine(password, getKeyDerivation(), algorithm, inputBuffer.length, parent).process(in, target.getTempFile(), mode);
+                event.bytes = in.length();
+            }
+            else
+            {
+                FileInputStream fis = new FileInputStream(in);
+                try
+                {
+                    OutputStream fos = target.openStream();
+                    event.bytes = transform(fis, fos, in.length());
+                    fos.close();
+                }
+                finally
+                {
+                    fis.close();
+                }
+            }
+            target.commit();
+            event.succeeded = true;
+        }
+        finally
+        {
+            target.abort();
+            event.commit();
+            operation.end(event.bytes, event.succeeded);
+        }
+    }
+
+    /**
+     * Encrypts or decrypts everything read from a stream, writing the result as it is produced.
+     * Only one chunk of input and one chunk of output are held in memory at any time.  Neither
+     * stream is closed.
+     *
+     * @param in     the stream to read
+     * @param out    the stream to write
+     * @param length the expected number of bytes in the input, used to report progress
+     * @throws IOException              the streams could not be read or written
+     * @throws GeneralSecurityException the input could not be decrypted with the given key
+     */
+    public void process(InputStream in, OutputStream out, long length) throws IOException, GeneralSecurityException
+    {
+        CipherEvent event = new CipherEvent(mode, algorithm, CipherEvent.STREAM);
+        event.begin();
+        PantherMetrics.Operation operation = PantherMetrics.getDefault().begin(mode == Cipher.ENCRYPT_MODE ? PantherMetrics.ENCRYPT : PantherMetrics.DECRYPT);
+        try
+        {
+            event.bytes = transform(in, out, length);
+            event.succeeded = true;
+        }
+        finally
+        {
+            event.commit();
+            operation.end(event.bytes, event.succeeded);
+        }
+    }
+
+    /**
+     * Does the work of process(), returning the number of bytes read.
+     */
+    private long transform(InputStream in, OutputStream out, long length) throws IOException, GeneralSecurityException
+    {
+        if (mode == Cipher.ENCRYPT_MODE)
+        {
+            /* Finishing the container must not close the caller's stream. */
+            OutputStream unclosable = new FilterOutputStream(out)
+            {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException
+                {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    flush();
+                }
+            };
+
+            KeyDerivation derivation = getKeyDerivation();
+            Key key = derivation.makeKey(password, algorithm);
+            ContainerHeader header = new ContainerHeader(derivation.getId(), derivation.getParameters(), inputBuffer.length);
+
+            ContainerOutputStream container = new ContainerOutputStream(unclosable, key, header);
+            long processed = copy(in, container, length);
+            container.close();
+            return processed;
+        }
+
+        /* Peek at the start of the input to tell a container from an older file. */
+        BufferedInputStream input = new BufferedInputStream(in, inputBuffer.length);
+        input.mark(ContainerHeader.MAGIC.length);
+        byte[] magic = new byte[ContainerHeader.MAGIC.length];
+        int peeked = 0;
+        int read;
+        while (peeked < magic.length && (read = input.read(magic, peeked, magic.length - peeked)) != -1)
+            peeked += read;
+        input.reset();
+
+        if (peeked == magic.length && ContainerHeader.isContainer(magic))
+        {
+            /* The header says how to derive the key. */
+            ContainerHeader header = ContainerHeader.read(input);
+            Key key = KeyDerivation.forHeader(header).makeKey(password, algorithm);
+
+            /* Closing the container gives its cipher back to the pool, but must not close the caller's stream. */
+            InputStream unclosable = new FilterInputStream(input)
+            {
+                @Override
+                public void close()
+                {
+                }
+            };
+            ContainerInputStream container = new ContainerInputStream(unclosable, header, key);
+            try
+            {
+                return copy(container, out, length);
+            }
+            finally
+            {
+                container.close();
+            }
+        }
+        else
+            return processLegacy(input, out, length);
+    }
+
+    /**
+     * Copies one stream to another, reporting progress as it goes, and returns the number of bytes copied.
+     */
+    private long copy(InputStream in, OutputStream out, long length) throws IOException
+    {
+        long processed = 0;
+        int read;
+        while ((read = in.read(inputBuffer)) != -1)
+        {
+            out.write(inputBuffer, 0, read);
+
+            processed += read;
+            if (parent != null)
+                parent.updateProgress(processed, Math.max(length, processed));
+        }
+        out.flush();
+
+        if (parent != null)
+            parent.updateProgress(processed, processed);
+        return processed;
+    }
+
+    /**
+     * Decrypts a file written before the container format, feeding it through the plain cipher, and returns the
+     * number of bytes read.
+     */
+    private long processLegacy(InputStream in, OutputStream out, long length) throws IOException, GeneralSecurityException
+    {
+        Cipher cipher = legacyCiphers.borrow();
+        try
+        {
+            cipher.init(Cipher.DECRYPT_MODE, CipherEngine.makeKey(password, algorithm));
+
+            long processed = 0;
+            byte[] outputBuffer = new byte[cipher.getOutputSize(inputBuffer.length)];
+
+            int read;
+            while ((read = in.read(inputBuffer)) != -1)
+            {
+                int produced = cipher.update(inputBuffer, 0, read, outputBuffer);
+                out.write(outputBuffer, 0, produced);
+
+                processed += read;
+                if (parent != null)
+                    parent.updateProgress(processed, Math.max(length, processed));
+            }
+
+            int produced = cipher.doFinal(outputBuffer, 0);
+            out.write(outputBuffer, 0, produced);
+            out.flush();
+
+            if (parent != null)
+                parent.updateProgress(processed, processed);
+            return processed;
+        }
+        finally
+        {
+            legacyCiphers.release(cipher);
+        }
+    }
+
+    private KeyDerivation getKeyDerivation()
+    {
+        return keyDerivation != null ? keyDerivation : KeyDerivation.getDefault();
+    }
+
+    public int getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Chooses whether files are read and written through memory mapped buffers instead of streams.
+     * Mapped files are passed straight to the cipher without being copied onto the heap, which eases
+     * the load on the garbage collector when processing large files.
+     *
+     * @param mapped true to map files into memory
+     */
+    public void setMemoryMapped(boolean mapped)
+    {
+        memoryMapped = mapped;
+    }
+
+    /**
+     * Sets the SyncGroup output files are committed through.  Without one, each output file is forced to disk
+     * on its own as soon as it is written.
+     *
+     * @param group the SyncGroup, or null to commit each file straight away
+     */
+    public void setSyncGroup(SyncGroup group)
+    {
+        syncGroup = group;
+    }
+
+    public boolean isMemoryMapped()
+    {
+        return memoryMapped;
+    }
+
+    /**
+     * Chooses whether large files are encrypted or decrypted by several threads at once.  It is on by default
+     * when there is more than one processor.  Files in the format used before containers are always decrypted
+     * by one thread.
+     *
+     * @param parallel true to split large files between threads
+     */
+    public void setParallel(boolean parallel)
+    {
+        this.parallel = parallel;
+    }
+
+    public boolean isParallel()
+    {
+        return parallel;
+    }
+
+    /**
+     * Checks whether a file is worth splitting between threads, and can be.
+     */
+    private boolean isSplittable(File in) throws IOException
+    {
+        if (!parallel || in.length() < PARALLEL_THRESHOLD)
+            return false;
+        return mode == Cipher.ENCRYPT_MODE || ContainerHeader.isContainer(in);
+    }
+
+    /**
+     * The default number of bytes read from the input at a time.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The smallest file split between threads by process(File, File).
+     */
+    static final long PARALLEL_THRESHOLD = 8L * 1024 * 1024;
+
+    private File input;
+    private File output;
+    private int mode;
+    private String algorithm;
+    private CipherPool legacyCiphers;
+    private char[] password = new char[0];
+    private KeyDerivation keyDerivation = null;
+    private byte[] inputBuffer;
+    private boolean memoryMapped = false;
+    private boolean parallel = Runtime.getRuntime().availableProcessors() > 1;
+    private SyncGroup syncGroup = null;
+    private Updatable parent;
+    private static final Logger logger = Logger.getLogger("org.tamalin.panther");
+}
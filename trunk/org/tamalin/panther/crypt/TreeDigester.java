@@ -0,0 +1,296 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.crypt;
+
+import org.tamalin.panther.PantherMetrics;
+import org.tamalin.panther.Updatable;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TreeDigester class computes a two level Merkle tree hash of a file, so that a large file can be
+ * fingerprinted by every processor at once.  The file is cut into leaves of a fixed size, the leaves are
+ * hashed in parallel, and the root is the hash of the leaf hashes in order:
+ * <pre>
+ *   leaf[i] = H(0x00 | bytes of leaf i)
+ *   root    = H(0x01 | leaf[0] | leaf[1] | ... | leaf[n-1])
+ * </pre>
+ * The prefix bytes keep a leaf from ever being mistaken for a root.  An empty file has one empty leaf.
+ * <p>
+ * <b>A tree hash is not the same as the plain digest of the file</b>, and depends on the leaf size, so it
+ * must always be shown with the name returned by getName(), such as SHA-256-TREE-1M, and only compared
+ * with tree hashes of the same name.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class TreeDigester
+{
+    /**
+     * Creates a new TreeDigester with the default leaf size.
+     *
+     * @param algorithm the digest algorithm, such as SHA-256
+     * @throws NoSuchAlgorithmException the algorithm is not available
+     */
+    public TreeDigester(String algorithm) throws NoSuchAlgorithmException
+    {
+        this(algorithm, DEFAULT_LEAF_SIZE);
+    }
+
+    /**
+     * Creates a new TreeDigester.
+     *
+     * @param algorithm the digest algorithm, such as SHA-256
+     * @param leafSize  the number of bytes in each leaf
+     * @throws NoSuchAlgorithmException the algorithm is not available
+     */
+    public TreeDigester(String algorithm, int leafSize) throws NoSuchAlgorithmException
+    {
+        if (leafSize <= 0)
+            throw new IllegalArgumentException("Leaf size must be positive: " + leafSize);
+
+        /* Fail here rather than on a worker thread. */
+        MessageDigest.getInstance(algorithm);
+        this.algorithm = algorithm;
+        this.leafSize = leafSize;
+    }
+
+    /**
+     * Computes the tree hash of a file.
+     *
+     * @param file     the file to read
+     * @param progress the Updatable to report progress to, which may be null
+     * @return the root hash
+     * @throws IOException the file could not be read
+     */
+    public byte[] digest(File file, Updatable progress) throws IOException
+    {
+        DigestEvent event = new DigestEvent(getName(), DigestEvent.TREE);
+        event.setPath(file.getPath());
+        event.begin();
+        PantherMetrics.Operation operation = PantherMetrics.getDefault().begin(PantherMetrics.DIGEST);
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try
+        {
+            long length = channel.size();
+            long leafCount = Math.max(1, (length + leafSize - 1) / leafSize);
+            if (leafCount > Integer.MAX_VALUE)
+                throw new IOException("The file has too many leaves; use a larger leaf size.");
+
+            LeafTask task = new LeafTask(channel, length, progress, new byte[(int) leafCount][]);
+            pool.invoke(task);
+
+            MessageDigest root = newDigest();
+            root.update(NODE);
+            for (byte[] leaf : task.leaves)
+                root.update(leaf);
+
+            if (progress != null)
+                progress.updateProgress(length, length);
+            event.setBytes(length);
+            event.setSucceeded(true);
+            operation.end(length, true);
+            return root.digest();
+        }
+        catch (UncheckedIOException ex)
+        {
+            if (progress != null)
+                progress.updateProgress(0, 0);
+            throw ex.getCause();
+        }
+        finally
+        {
+            pool.shutdown();
+            channel.close();
+            event.commit();
+            operation.end(0, false);
+        }
+    }
+
+    /**
+     * Returns the name of this tree hash, made from the algorithm and the leaf size, such as SHA-256-TREE-1M.
+     * This is the name a tree hash should always be shown with.
+     *
+     * @return the name
+     */
+    public String getName()
+    {
+        String size;
+        if (leafSize % (1024 * 1024) == 0)
+            size = (leafSize / (1024 * 1024)) + "M";
+        else if (leafSize % 1024 == 0)
+            size = (leafSize / 1024) + "K";
+        else
+            size = String.valueOf(leafSize);
+        return algorithm + "-TREE-" + size;
+    }
+
+    public String getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    public int getLeafSize()
+    {
+        return leafSize;
+    }
+
+    /**
+     * Sets the number of leaves hashed at the same time.  The default is the number of processors.
+     *
+     * @param parallelism the number of worker threads
+     */
+    public void setParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    private MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            /* Checked in the constructor. */
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Hashes a range of leaves, splitting the range in half until each task holds one leaf.
+     */
+    private class LeafTask extends RecursiveAction
+    {
+        LeafTask(FileChannel channel, long length, Updatable progress, byte[][] leaves)
+        {
+            this(channel, length, progress, leaves, 0, leaves.length, new AtomicLong(), new ConcurrentLinkedQueue<Worker>());
+        }
+
+        private LeafTask(FileChannel channel, long length, Updatable progress, byte[][] leaves, int from, int to,
+                         AtomicLong processed, ConcurrentLinkedQueue<Worker> workers)
+        {
+            this.channel = channel;
+            this.length = length;
+            this.progress = progress;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+            this.processed = processed;
+            this.workers = workers;
+        }
+
+        protected void compute()
+        {
+            if (to - from > 1)
+            {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LeafTask(channel, length, progress, leaves, from, middle, processed, workers),
+                        new LeafTask(channel, length, progress, leaves, middle, to, processed, workers));
+                return;
+            }
+
+            /* Each thread reuses a buffer and a digest, rather than allocating them per leaf. */
+            Worker worker = workers.poll();
+            if (worker == null)
+                worker = new Worker();
+            try
+            {
+                leaves[from] = hashLeaf(worker, from);
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+            finally
+            {
+                workers.offer(worker);
+            }
+        }
+
+        private byte[] hashLeaf(Worker worker, int leaf) throws IOException
+        {
+            long position = (long) leaf * leafSize;
+            int count = (int) Math.min(leafSize, length - position);
+            ByteBuffer buffer = worker.buffer;
+            buffer.clear();
+            buffer.limit(count);
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new EOFException("The file was shortened while it was being read.");
+            }
+            buffer.flip();
+
+            MessageDigest digest = worker.digest;
+            digest.update(LEAF);
+            digest.update(buffer);
+
+            long done = processed.addAndGet(count);
+            if (progress != null)
+                progress.updateProgress(done, length);
+            return digest.digest();
+        }
+
+        private final FileChannel channel;
+        private final long length;
+        private final Updatable progress;
+        private final byte[][] leaves;
+        private final int from;
+        private final int to;
+        private final AtomicLong processed;
+        private final ConcurrentLinkedQueue<Worker> workers;
+    }
+
+    /**
+     * The buffer and digest used to hash one leaf at a time.
+     */
+    private class Worker
+    {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(leafSize);
+        final MessageDigest digest = newDigest();
+    }
+
+    /**
+     * The default number of bytes in each leaf.
+     */
+    public static final int DEFAULT_LEAF_SIZE = 1024 * 1024;
+
+    private static final byte[] LEAF = {0};
+    private static final byte[] NODE = {1};
+
+    private final String algorithm;
+    private final int leafSize;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+}
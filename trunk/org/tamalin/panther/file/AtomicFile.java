@@ -0,0 +1,350 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The AtomicFile class replaces a file without ever leaving it half written.  Everything is written to a
+ * temporary file next to the target; commit() then forces the temporary file to disk and renames it over
+ * the target in one step.  If anything fails before then, abort() throws the temporary file away and the
+ * target is left as it was, so a crash in the middle of a save can't destroy the only copy of a file.
+ * <p>
+ * When a SyncGroup is given, commit() leaves the forcing and renaming to the group, which does it for many
+ * files at once; the target is only replaced when the group is flushed.
+ * <p>
+ * The temporary file is only readable by its owner until it replaces the target, when it is given the
+ * target's permissions.  If the target is a symbolic link, the file it points to is replaced, not the link.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class AtomicFile
+{
+    /**
+     * Creates an AtomicFile that commits each file on its own.
+     *
+     * @param target the file to replace
+     */
+    public AtomicFile(File target)
+    {
+        this(target, null);
+    }
+
+    /**
+     * Creates an AtomicFile.
+     *
+     * @param target the file to replace
+     * @param group  the SyncGroup to leave committing to, or null to commit straight away
+     */
+    public AtomicFile(File target, SyncGroup group)
+    {
+        this.target = target.getAbsoluteFile();
+        this.group = group;
+    }
+
+    /**
+     * Writes a whole file in one go.
+     *
+     * @param target the file to replace
+     * @param data   the new contents
+     * @throws IOException the file could not be written
+     */
+    public static void write(File target, byte[] data) throws IOException
+    {
+        AtomicFile file = new AtomicFile(target);
+        try
+        {
+            file.write(data, 0, data.length);
+            file.commit();
+        }
+        finally
+        {
+            file.abort();
+        }
+    }
+
+    /**
+     * Returns the temporary file, creating it if necessary, for code that writes it by name.  It must be closed
+     * again before commit() is called.
+     *
+     * @return the temporary file
+     * @throws IOException the temporary file could not be created
+     */
+    public File getTempFile() throws IOException
+    {
+        if (temp == null)
+        {
+            Path path = getDestination().toPath();
+            temp = Files.createTempFile(path.getParent(), "." + path.getFileName() + ".", ".tmp").toFile();
+        }
+        return temp;
+    }
+
+    /**
+     * Writes bytes to the end of the temporary file.  A large array is written a slice at a time, since
+     * the channel would otherwise copy all of it into a temporary direct buffer.
+     *
+     * @param data the bytes to write
+     * @param off  the position of the first byte
+     * @param len  the number of bytes
+     * @throws IOException the bytes could not be written
+     */
+    public void write(byte[] data, int off, int len) throws IOException
+    {
+        FileChannel channel = getChannel();
+        while (len > 0)
+        {
+            ByteBuffer slice = ByteBuffer.wrap(data, off, Math.min(len, BUFFER_SIZE));
+            int n = slice.remaining();
+            while (slice.hasRemaining())
+                channel.write(slice);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Opens a stream that writes to the temporary file through a large buffer.  Closing the stream only flushes
+     * it; commit() must still be called.
+     *
+     * @return the stream
+     * @throws IOException the temporary file could not be opened
+     */
+    public OutputStream openStream() throws IOException
+    {
+        final FileChannel channel = getChannel();
+        return new OutputStream()
+        {
+            public void write(int b) throws IOException
+            {
+                if (!buffer.hasRemaining())
+                    flush();
+                buffer.put((byte) b);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                while (len > 0)
+                {
+                    if (!buffer.hasRemaining())
+                        flush();
+                    int n = Math.min(len, buffer.remaining());
+                    buffer.put(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            public void flush() throws IOException
+            {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                buffer.clear();
+            }
+
+            public void close() throws IOException
+            {
+                flush();
+            }
+
+            private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        };
+    }
+
+    /**
+     * Puts the temporary file in place of the target.  Unless a SyncGroup was given, the data is forced to disk
+     * first, and the directory afterwards, so the new file survives a crash once this returns.
+     *
+     * @throws IOException the file could not be forced or renamed
+     */
+    public void commit() throws IOException
+    {
+        if (committed)
+            throw new IllegalStateException(target + " has already been committed.");
+
+        FileChannel channel = getChannel();
+        if (group != null)
+        {
+            /* The group forces the file later, so it keeps the channel open until then. */
+            this.channel = null;
+            committed = true;
+            group.add(this, channel);
+            return;
+        }
+
+        try
+        {
+            channel.force(true);
+        }
+        finally
+        {
+            this.channel = null;
+            channel.close();
+        }
+        rename();
+        syncDirectory(getDestination().getParentFile());
+        committed = true;
+    }
+
+    /**
+     * Throws away the temporary file, unless the target has already been committed.  This may always be called,
+     * so it belongs in a finally block.
+     */
+    public void abort()
+    {
+        if (committed)
+            return;
+
+        try
+        {
+            if (channel != null)
+                channel.close();
+        }
+        catch (IOException ex)
+        {
+            /* The file is being thrown away anyway. */
+        }
+        channel = null;
+        if (temp != null)
+            temp.delete();
+        temp = null;
+    }
+
+    public File getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Returns the file that is actually replaced: the target, or the file it links to if it is a symbolic link.
+     *
+     * @return the file replaced
+     * @throws IOException the link could not be read
+     */
+    File getDestination() throws IOException
+    {
+        if (destination == null)
+        {
+            Path path = target.toPath();
+            if (Files.isSymbolicLink(path))
+            {
+                /* A dangling link is followed by hand, so the file it names is created. */
+                if (Files.exists(path))
+                    path = path.toRealPath();
+                else
+                    path = path.resolveSibling(Files.readSymbolicLink(path)).toAbsolutePath().normalize();
+            }
+            destination = path.toFile();
+        }
+        return destination;
+    }
+
+    /**
+     * Renames the temporary file over the destination, atomically if the file system can.  An existing file's
+     * permissions are copied to the temporary file first, so replacing a file never makes it more readable.
+     */
+    void rename() throws IOException
+    {
+        Path from = temp.toPath();
+        Path to = getDestination().toPath();
+        if (Files.exists(to))
+        {
+            try
+            {
+                Files.setPosixFilePermissions(from, Files.getPosixFilePermissions(to));
+            }
+            catch (UnsupportedOperationException ex)
+            {
+                /* Not a POSIX file system; the new file gets the directory's default permissions. */
+            }
+        }
+
+        try
+        {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException ex)
+        {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes the temporary file of a file whose commit failed in its SyncGroup.
+     */
+    void discard()
+    {
+        if (temp != null)
+            temp.delete();
+    }
+
+    /**
+     * Forces a directory to disk, so that a rename in it survives a crash.  Not every platform can open a
+     * directory, so this does nothing where that fails.
+     *
+     * @param dir the directory
+     */
+    static void syncDirectory(File dir)
+    {
+        try
+        {
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try
+            {
+                channel.force(true);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            /* Windows can't open a directory; renames there are made durable by the file system. */
+        }
+    }
+
+    private FileChannel getChannel() throws IOException
+    {
+        if (channel == null)
+            channel = FileChannel.open(getTempFile().toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return channel;
+    }
+
+    /**
+     * The number of bytes written to the channel at a time.
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final File target;
+    private final SyncGroup group;
+    private File destination = null;
+    private File temp = null;
+    private FileChannel channel = null;
+    private boolean committed = false;
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.file;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import java.io.File;
+import java.nio.charset.Charset;
+
+/**
+ * The FileEvent class is the Flight Recorder event for opening or saving a file.  FileOpener records the files
+ * opened and FileSaveRunnable the files saved, whether from the window or a benchmark.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+@Name("org.tamalin.panther.File")
+@Label("File Operation")
+@Category({"Panther", "File"})
+@Description("A file opened or saved")
+public class FileEvent extends Event
+{
+    /**
+     * Creates an event for a file.
+     *
+     * @param operation either READ or WRITE
+     * @param file      the file
+     */
+    public FileEvent(String operation, File file)
+    {
+        this.operation = operation;
+        path = file.getPath();
+    }
+
+    /**
+     * Records the number of bytes read or written.
+     *
+     * @param bytes the number of bytes
+     */
+    public void setBytes(long bytes)
+    {
+        this.bytes = bytes;
+    }
+
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset.name();
+    }
+
+    public void setSucceeded(boolean succeeded)
+    {
+        this.succeeded = succeeded;
+    }
+
+    @Label("Operation")
+    @Description("Either read or write")
+    String operation;
+
+    @Label("Path")
+    String path;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Character Set")
+    @Description("The character set text was decoded with, if it was read as text")
+    String charset;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    public static final String READ = "read";
+    public static final String WRITE = "write";
+}
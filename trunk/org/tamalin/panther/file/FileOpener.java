@@ -16,14 +16,32 @@
 
 package org.tamalin.panther.file;
 
+import org.tamalin.panther.PantherMetrics;
+import org.tamalin.panther.Updatable;
+
 import java.io.File;
 import java.io.IOException;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
 
 /**
  * This class opens the requested file.
  * The file is specified in the constructor.
+ * <p>
+ * The file is decoded a buffer at a time by a CharsetDecoder, and the text is handed on in chunks as it is
+ * decoded, so a large file never has to be held as bytes and as a String at once.  Line breaks are turned into
+ * line feeds, as a text component expects.  The character set is either given, or detected from the start of
+ * the file: a byte order mark is always obeyed, text that is valid UTF-8 is read as UTF-8, and anything else
+ * is read in the fallback character set.
  *
  * @author Quytelda K. Gaiwin
  * @since 3.1.0
@@ -31,9 +49,21 @@ import java.util.Scanner;
 public class FileOpener implements Runnable
 {
     public FileOpener(File openFile)
+    {
+        this(openFile, null);
+    }
+
+    /**
+     * Creates a FileOpener that reads a file in a given character set.
+     *
+     * @param openFile the file to read
+     * @param charset  the character set, or null to detect it
+     */
+    public FileOpener(File openFile, Charset charset)
     {
         //Initialize variables.
         file = openFile;
+        this.charset = charset;
     }
 
     public void run()
@@ -52,28 +82,220 @@ public class FileOpener implements Runnable
 
     public String open() throws IOException
     {
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = new StringBuilder((int) Math.min(file.length(), Integer.MAX_VALUE - 8));
+        open(sb, null);
+        return sb.toString();
+    }
+
+    /**
+     * Decodes the file, passing the text on a chunk at a time.  The chunks passed to out are only valid until
+     * append() returns, since the buffer they are in is reused.
+     *
+     * @param out      where to put the text
+     * @param progress the Updatable to report progress to, which may be null
+     * @return the character set the file was read in
+     * @throws IOException the file could not be read
+     */
+    public Charset open(Appendable out, Updatable progress) throws IOException
+    {
+        FileEvent event = new FileEvent(FileEvent.READ, file);
+        event.begin();
+        PantherMetrics.Operation operation = PantherMetrics.getDefault().begin(PantherMetrics.OPEN);
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
         try
         {
-            Scanner in = new Scanner(file);
-            try
+            long length = channel.size();
+            ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+            fill(channel, bytes);
+            bytes.flip();
+
+            /* Skip the byte order mark, if there is one; the decoder would otherwise keep it. */
+            Charset detected = charset != null ? charset : detectCharset(bytes, Charset.defaultCharset());
+            skipByteOrderMark(bytes, detected);
+            usedCharset = detected;
+
+            CharsetDecoder decoder = detected.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+            long processed = bytes.limit();
+            boolean endOfInput = processed == length;
+            pendingReturn = false;
+
+            while (true)
             {
-                while (in.hasNextLine())
+                CoderResult result = decoder.decode(bytes, chars, endOfInput);
+                if (result.isOverflow())
                 {
-                    String line = in.nextLine();
-                    sb.append(line + "\n");
+                    emit(chars, out);
+                    continue;
                 }
+                if (endOfInput)
+                {
+                    while (decoder.flush(chars).isOverflow())
+                        emit(chars, out);
+                    emit(chars, out);
+                    break;
+                }
+
+                /* The buffer has been used up; keep any half decoded character and read some more. */
+                bytes.compact();
+                int read = fill(channel, bytes);
+                bytes.flip();
+                processed += read;
+                endOfInput = read == 0 || processed >= length;
+
+                if (progress != null)
+                    progress.updateProgress(processed, Math.max(length, processed));
             }
-            finally
-            {
-                in.close();
-            }
+
+            if (pendingReturn)
+                out.append('\n');
+            if (progress != null)
+                progress.updateProgress(processed, processed);
+
+            event.setBytes(processed);
+            event.setCharset(detected);
+            event.setSucceeded(true);
+            operation.end(processed, true);
+            return detected;
         }
         catch (IOException ex)
         {
+            if (progress != null)
+                progress.updateProgress(0, 0);
             throw ex;
         }
-        return sb.toString();
+        finally
+        {
+            channel.close();
+            event.commit();
+            operation.end(0, false);
+        }
+    }
+
+    /**
+     * Works out the character set of a file from its first bytes.  A byte order mark names the character set;
+     * otherwise text that is valid UTF-8 is taken to be UTF-8, and anything else to be in the fallback.
+     *
+     * @param head     the first bytes of the file, between the buffer's position and limit, which are not consumed
+     * @param fallback the character set to use if nothing else fits
+     * @return the character set
+     */
+    public static Charset detectCharset(ByteBuffer head, Charset fallback)
+    {
+        ByteBuffer b = head.duplicate();
+        if (startsWith(b, UTF8_BOM))
+            return StandardCharsets.UTF_8;
+        if (startsWith(b, UTF16BE_BOM))
+            return StandardCharsets.UTF_16BE;
+        if (startsWith(b, UTF16LE_BOM))
+            return StandardCharsets.UTF_16LE;
+
+        /* Plain ASCII fits every likely fallback, so only trust UTF-8 if there is something beyond ASCII. */
+        boolean ascii = true;
+        for (int i = b.position(); i < b.limit() && ascii; i++)
+            ascii = b.get(i) >= 0;
+        if (ascii)
+            return fallback;
+
+        try
+        {
+            CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            CharBuffer chars = CharBuffer.allocate(b.remaining());
+
+            /* A character cut off at the end of the head is an underflow, not an error. */
+            CoderResult result = utf8.decode(b, chars, false);
+            if (result.isError())
+                result.throwException();
+            return StandardCharsets.UTF_8;
+        }
+        catch (CharacterCodingException ex)
+        {
+            return fallback;
+        }
+    }
+
+    /**
+     * Passes the decoded characters on, with every CR LF pair and lone CR turned into a LF, and empties the
+     * buffer.  A CR at the end of the buffer is held back until the next character shows which it was.
+     */
+    private void emit(CharBuffer chars, Appendable out) throws IOException
+    {
+        chars.flip();
+        char[] array = chars.array();
+        int end = chars.arrayOffset() + chars.limit();
+        int read = chars.arrayOffset();
+        int write = read;
+        if (pendingReturn && read < end)
+        {
+            pendingReturn = false;
+            out.append('\n');
+            if (array[read] == '\n')
+                read++;
+        }
+
+        /* Nothing is ever written ahead of what has been read, so the text can be rewritten in place. */
+        for (; read < end; read++)
+        {
+            char c = array[read];
+            if (c != '\r')
+                array[write++] = c;
+            else if (read + 1 == end)
+                pendingReturn = true;
+            else
+            {
+                array[write++] = '\n';
+                if (array[read + 1] == '\n')
+                    read++;
+            }
+        }
+
+        if (write > chars.arrayOffset())
+            out.append(CharBuffer.wrap(array, chars.arrayOffset(), write - chars.arrayOffset()));
+        chars.clear();
+    }
+
+    private static void skipByteOrderMark(ByteBuffer bytes, Charset charset)
+    {
+        ByteBuffer b = bytes.duplicate();
+        if ((charset.equals(StandardCharsets.UTF_8) && startsWith(b, UTF8_BOM))
+                || (charset.equals(StandardCharsets.UTF_16BE) && startsWith(b, UTF16BE_BOM))
+                || (charset.equals(StandardCharsets.UTF_16LE) && startsWith(b, UTF16LE_BOM)))
+            bytes.position(b.position());
+    }
+
+    /**
+     * Tells whether a buffer starts with some bytes, and if so moves its position past them.
+     */
+    private static boolean startsWith(ByteBuffer b, byte[] prefix)
+    {
+        if (b.remaining() < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (b.get(b.position() + i) != prefix[i])
+                return false;
+        }
+        b.position(b.position() + prefix.length);
+        return true;
+    }
+
+    /**
+     * Reads from the channel until the buffer is full or the file ends.
+     *
+     * @return the number of bytes read
+     */
+    private static int fill(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        int total = 0;
+        int read;
+        while (buffer.hasRemaining() && (read = channel.read(buffer)) != -1)
+            total += read;
+        return total;
     }
 
     /**
@@ -86,6 +308,24 @@ public class FileOpener implements Runnable
         return finishedText;
     }
 
+    /**
+     * Returns the character set the file was last read in.
+     *
+     * @return the character set, or null if the file has not been read
+     */
+    public Charset getCharset()
+    {
+        return usedCharset;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final byte[] UTF16BE_BOM = {(byte) 0xFE, (byte) 0xFF};
+    private static final byte[] UTF16LE_BOM = {(byte) 0xFF, (byte) 0xFE};
+
     File file;
+    private final Charset charset;
+    private Charset usedCharset = null;
+    private boolean pendingReturn = false;
     private String finishedText = "Blank Defualt";
 }
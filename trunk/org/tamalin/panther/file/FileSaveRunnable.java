@@ -16,13 +16,19 @@
 
 package org.tamalin.panther.file;
 
+import org.tamalin.panther.PantherMetrics;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * This class asks the user where to save the file,
  * and saves the file when the 'Save File' button is clicked.
+ * <p>
+ * The file is written through an AtomicFile, so it is only replaced once the new contents are safely on disk;
+ * a failure or a crash part way through leaves the old file as it was.
  *
  * @author Quytelda K. Gaiwin
  * @since 3.1.0
@@ -35,56 +41,119 @@ public class FileSaveRunnable implements Runnable
      *
      * @param target   The target file to write to.
      * @param fileData A byte array that will be written to file.
-     * @throws IOException This exception is thrown when an Input/Output error occurs while reading or writing to
-     * a disk file, or if the file can't be created in the first place.
+     * @throws IOException This exception is thrown if the file's directory doesn't exist, so the file can't be
+     * created in the first place.
      */
     public FileSaveRunnable(byte[] fileData, File target) throws IOException
     {
+        this(target);
         data = fileData;
+    }
+
+    /**
+     * Constructs a new FileSaveRunnable that copies a stream to a specified file, without holding all of it
+     * in memory.  The stream is closed once it has been saved.
+     *
+     * @param source The stream that will be written to file.
+     * @param target The target file to write to.
+     * @throws IOException This exception is thrown if the file's directory doesn't exist, so the file can't be
+     * created in the first place.
+     */
+    public FileSaveRunnable(InputStream source, File target) throws IOException
+    {
+        this(target);
+        this.source = source;
+    }
+
+    private FileSaveRunnable(File target) throws IOException
+    {
         file = target;
 
-        /* Ensure that the file actually exists. */
-        /* If the file doesn't exist, create it. */
-        if (!file.exists())
+        /* Make sure the file can be created next to where it goes. */
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir == null || !dir.isDirectory())
         {
-            /* Attempt to create the file. */
-            boolean created = file.createNewFile();
-
-            /* Handle any problems. */
-            if (!created)
-            {
-                throw new IOException();
-            }
+            throw new IOException("The directory " + dir + " does not exist.");
         }
     }
 
     public void run()
     {
-        FileOutputStream fos = null;
-
         try
         {
-            fos = new FileOutputStream(file);
-            fos.write(data);
+            save();
         }
         catch (IOException ex)
         {
             ex.printStackTrace();
         }
-        finally
+    }
+
+    /**
+     * Writes the file, on the calling thread.
+     *
+     * @throws IOException the file could not be written
+     */
+    public void save() throws IOException
+    {
+        FileEvent event = new FileEvent(FileEvent.WRITE, file);
+        event.begin();
+        PantherMetrics.Operation operation = PantherMetrics.getDefault().begin(PantherMetrics.SAVE);
+        long written = 0;
+        boolean succeeded = false;
+        try
         {
-            try
+            if (source != null)
             {
-                if (fos != null)
-                    fos.close();
+                written = copy(source, file);
             }
-            catch (IOException ex)
+            else
             {
-                ex.printStackTrace();
+                AtomicFile.write(file, data);
+                written = data.length;
             }
+            succeeded = true;
+        }
+        finally
+        {
+            event.setBytes(written);
+            event.setSucceeded(succeeded);
+            event.commit();
+            operation.end(written, succeeded);
         }
     }
 
+    /**
+     * Copies a stream into a file through an AtomicFile, and closes the stream.
+     */
+    private static long copy(InputStream in, File target) throws IOException
+    {
+        AtomicFile file = new AtomicFile(target);
+        try
+        {
+            OutputStream out = file.openStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long written = 0;
+            int n;
+            while ((n = in.read(buffer)) >= 0)
+            {
+                out.write(buffer, 0, n);
+                written += n;
+            }
+            out.close();
+            file.commit();
+            return written;
+        }
+        finally
+        {
+            file.abort();
+            in.close();
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     byte[] data;
+    InputStream source;
     File file;
 }
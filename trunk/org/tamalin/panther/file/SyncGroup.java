@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The SyncGroup class commits many AtomicFiles together, so that writing a whole tree of files doesn't cost
+ * a round trip to the disk for every one of them.  Committed files wait in the group until it holds a batch;
+ * then every file in the batch is forced at once on the common ForkJoinPool, where the file system can fold
+ * the syncs into a few journal commits, the files are renamed into place, and each directory they are in is
+ * forced once for the whole batch rather than once per file.
+ * <p>
+ * A target is only replaced once its batch has been flushed, so flush() must be called when the last file has
+ * been committed.  A SyncGroup may be shared between threads.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class SyncGroup
+{
+    /**
+     * Creates a SyncGroup with the default batch size.
+     */
+    public SyncGroup()
+    {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a SyncGroup.
+     *
+     * @param batchSize the number of files that wait before they are all committed; each holds a file open
+     */
+    public SyncGroup(int batchSize)
+    {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Adds a file whose data has been written, committing the batch once it is full.  Failures are kept until
+     * flush(), so they are reported once rather than to whichever file happened to fill the batch.
+     */
+    void add(AtomicFile file, FileChannel channel)
+    {
+        List<Pending> batch = null;
+        synchronized (this)
+        {
+            pending.add(new Pending(file, channel));
+            if (pending.size() >= batchSize)
+            {
+                batch = pending;
+                pending = new ArrayList<Pending>();
+            }
+        }
+        if (batch != null)
+            commit(batch);
+    }
+
+    /**
+     * Commits every file waiting in the group.  A file that can't be forced or renamed is thrown away, leaving
+     * its target as it was; the others are still committed.
+     *
+     * @throws IOException one or more files could not be committed since the last flush; the first failure is
+     *                     thrown, with the others added as suppressed exceptions
+     */
+    public void flush() throws IOException
+    {
+        List<Pending> batch;
+        synchronized (this)
+        {
+            batch = pending;
+            pending = new ArrayList<Pending>();
+        }
+        commit(batch);
+
+        IOException failure;
+        synchronized (this)
+        {
+            failure = this.failure;
+            this.failure = null;
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Returns the number of files committed so far.
+     *
+     * @return the number of files
+     */
+    public synchronized long getCommittedCount()
+    {
+        return committedCount;
+    }
+
+    /**
+     * Returns the targets of the files that could not be committed so far, and so were left as they were.
+     *
+     * @return the targets, in the order they failed
+     */
+    public synchronized List<File> getFailedFiles()
+    {
+        return new ArrayList<File>(failedFiles);
+    }
+
+    /**
+     * Returns the number of batches flushed so far, each costing one sync per directory.
+     *
+     * @return the number of batches
+     */
+    public synchronized long getBatchCount()
+    {
+        return batchCount;
+    }
+
+    private void commit(List<Pending> batch)
+    {
+        if (batch.isEmpty())
+            return;
+
+        /* Force every file at once; the syncs then overlap instead of queueing behind one another. */
+        ForkJoinPool.commonPool().invoke(new ForceTask(batch, 0, batch.size()));
+
+        List<IOException> failures = new ArrayList<IOException>();
+        List<File> failed = new ArrayList<File>();
+        Set<File> directories = new LinkedHashSet<File>();
+        int renamed = 0;
+        for (Pending p : batch)
+        {
+            try
+            {
+                if (p.failure != null)
+                    throw p.failure;
+                p.file.rename();
+                directories.add(p.file.getDestination().getParentFile());
+                renamed++;
+            }
+            catch (IOException ex)
+            {
+                p.file.discard();
+                failed.add(p.file.getTarget());
+                failures.add(new IOException("Unable to save " + p.file.getTarget() + ": " + ex.getMessage(), ex));
+            }
+        }
+
+        for (File dir : directories)
+            AtomicFile.syncDirectory(dir);
+
+        synchronized (this)
+        {
+            committedCount += renamed;
+            batchCount++;
+            failedFiles.addAll(failed);
+            for (IOException ex : failures)
+            {
+                if (failure == null)
+                    failure = ex;
+                else
+                    failure.addSuppressed(ex);
+            }
+        }
+    }
+
+    /**
+     * Forces and closes a range of the batch, splitting it until each task holds one file.
+     */
+    private static class ForceTask extends RecursiveAction
+    {
+        ForceTask(List<Pending> batch, int from, int to)
+        {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute()
+        {
+            if (to - from > 1)
+            {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ForceTask(batch, from, middle), new ForceTask(batch, middle, to));
+                return;
+            }
+
+            Pending p = batch.get(from);
+            try
+            {
+                try
+                {
+                    p.channel.force(true);
+                }
+                finally
+                {
+                    p.channel.close();
+                }
+            }
+            catch (IOException ex)
+            {
+                p.failure = ex;
+            }
+        }
+
+        private final List<Pending> batch;
+        private final int from;
+        private final int to;
+    }
+
+    /**
+     * A file waiting to be committed.
+     */
+    private static class Pending
+    {
+        Pending(AtomicFile file, FileChannel channel)
+        {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        final AtomicFile file;
+        final FileChannel channel;
+        IOException failure;
+    }
+
+    /**
+     * The default number of files committed together.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final int batchSize;
+    private List<Pending> pending = new ArrayList<Pending>();
+    private long committedCount = 0;
+    private long batchCount = 0;
+    private final List<File> failedFiles = new ArrayList<File>();
+    private IOException failure = null;
+}
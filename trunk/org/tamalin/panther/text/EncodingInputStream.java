@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.text;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * The EncodingInputStream class encodes the characters read from a Reader into bytes as they are read, so
+ * a text can be passed to anything that takes an InputStream without being encoded all at once.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class EncodingInputStream extends InputStream
+{
+    /**
+     * Creates a new EncodingInputStream.  Characters the character set can't encode are replaced.
+     *
+     * @param reader  the reader to encode
+     * @param charset the character set
+     */
+    public EncodingInputStream(Reader reader, Charset charset)
+    {
+        this.reader = reader;
+        encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars = CharBuffer.allocate(BUFFER_SIZE);
+        chars.flip();
+        bytes = ByteBuffer.allocate(Math.max(BUFFER_SIZE, (int) Math.ceil(encoder.maxBytesPerChar()) * 2));
+        bytes.flip();
+    }
+
+    public int read() throws IOException
+    {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+
+        while (!bytes.hasRemaining())
+        {
+            if (!fill())
+                return -1;
+        }
+
+        int n = Math.min(len, bytes.remaining());
+        bytes.get(b, off, n);
+        return n;
+    }
+
+    public int available()
+    {
+        return bytes.remaining();
+    }
+
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+
+    /**
+     * Encodes the next run of characters into the byte buffer.
+     *
+     * @return false once everything has been encoded
+     */
+    private boolean fill() throws IOException
+    {
+        if (flushed)
+            return false;
+
+        bytes.clear();
+        while (bytes.position() == 0)
+        {
+            if (!endOfInput)
+            {
+                /* Keep any characters the encoder left behind, such as half a surrogate pair. */
+                chars.compact();
+                int read = reader.read(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+                if (read == -1)
+                    endOfInput = true;
+                else
+                    chars.position(chars.position() + read);
+                chars.flip();
+            }
+
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow())
+                break;
+            if (endOfInput)
+            {
+                if (encoder.flush(bytes).isOverflow())
+                    break;
+                flushed = true;
+                break;
+            }
+        }
+        bytes.flip();
+        return bytes.hasRemaining() || !flushed;
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars;
+    private final ByteBuffer bytes;
+    private boolean endOfInput = false;
+    private boolean flushed = false;
+}
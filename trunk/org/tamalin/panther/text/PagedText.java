@@ -0,0 +1,197 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.text;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The PagedText class holds encoded text as bytes, and decodes it one row at a time, only when a row is asked
+ * for.  The rows are found by scanning the bytes for line breaks, a chunk at a time, so the first rows can be
+ * shown before the rest of the text has been looked at.  A line longer than ROW_LIMIT bytes is broken into
+ * several rows, so no single row is ever expensive to decode or draw; in UTF-8 the break is always made
+ * between two characters.
+ * <p>
+ * Only character sets that encode a line feed as the single byte 0x0A, as ASCII does, can be paged this way;
+ * see supports().  The rows can be read from any thread while one other thread indexes the text.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class PagedText
+{
+    /**
+     * Creates a new PagedText.  Nothing is indexed until index() is called.
+     *
+     * @param data    the encoded text, which is not copied and must not be changed
+     * @param charset the character set the text is encoded in
+     */
+    public PagedText(byte[] data, Charset charset)
+    {
+        if (!supports(charset))
+            throw new IllegalArgumentException(charset + " can't be paged.");
+
+        this.data = data;
+        this.charset = charset;
+        utf8 = charset.name().equals("UTF-8");
+        starts = new int[1024];
+        rowCount = 1;
+    }
+
+    /**
+     * Tells whether text in a character set can be paged, which is the case when a line feed is always the
+     * single byte 0x0A.
+     *
+     * @param charset the character set
+     * @return true if the character set is supported
+     */
+    public static boolean supports(Charset charset)
+    {
+        return charset.canEncode() && Arrays.equals("\n".getBytes(charset), new byte[]{'\n'});
+    }
+
+    /**
+     * Scans the next chunk of the text for rows.
+     *
+     * @param bytes the number of bytes to scan
+     * @return true if the whole text has now been scanned
+     */
+    public boolean index(int bytes)
+    {
+        int from;
+        int rowStart;
+        synchronized (this)
+        {
+            from = scanned;
+            rowStart = starts[rowCount - 1];
+        }
+        int to = (int) Math.min(data.length, (long) from + bytes);
+
+        /* Scan without the lock, then publish the rows found. */
+        int[] found = new int[64];
+        int foundCount = 0;
+        for (int i = from; i < to; i++)
+        {
+            if (i - rowStart >= ROW_LIMIT && data[i] != '\n' && !(utf8 && (data[i] & 0xC0) == 0x80))
+            {
+                if (foundCount == found.length)
+                    found = Arrays.copyOf(found, foundCount * 2);
+                found[foundCount++] = i;
+                rowStart = i;
+            }
+            if (data[i] == '\n')
+            {
+                if (foundCount == found.length)
+                    found = Arrays.copyOf(found, foundCount * 2);
+                found[foundCount++] = i + 1;
+                rowStart = i + 1;
+            }
+        }
+
+        synchronized (this)
+        {
+            if (rowCount + foundCount > starts.length)
+                starts = Arrays.copyOf(starts, Math.max(starts.length * 2, rowCount + foundCount));
+            System.arraycopy(found, 0, starts, rowCount, foundCount);
+            rowCount += foundCount;
+            scanned = to;
+            return scanned == data.length;
+        }
+    }
+
+    /**
+     * Returns the number of rows found so far.
+     *
+     * @return the number of rows
+     */
+    public synchronized int getRowCount()
+    {
+        return rowCount;
+    }
+
+    /**
+     * Tells whether the whole text has been scanned for rows.
+     *
+     * @return true if every row has been found
+     */
+    public synchronized boolean isIndexed()
+    {
+        return scanned == data.length;
+    }
+
+    /**
+     * Returns the fraction of the text that has been scanned for rows.
+     *
+     * @return a number from 0 to 1
+     */
+    public synchronized double getIndexedFraction()
+    {
+        return data.length == 0 ? 1 : (double) scanned / data.length;
+    }
+
+    /**
+     * Decodes one row, without its line break.
+     *
+     * @param row the row, which must be less than getRowCount()
+     * @return the text of the row
+     */
+    public String getRow(int row)
+    {
+        int start;
+        int end;
+        synchronized (this)
+        {
+            if (row < 0 || row >= rowCount)
+                throw new IndexOutOfBoundsException("No row " + row + " of " + rowCount);
+            start = starts[row];
+            end = row + 1 < rowCount ? starts[row + 1] : scanned;
+        }
+
+        if (end > start && data[end - 1] == '\n')
+            end--;
+        if (end > start && data[end - 1] == '\r')
+            end--;
+        return new String(data, start, end - start, charset);
+    }
+
+    /**
+     * Returns the encoded text.  The array is not a copy, and must not be changed.
+     *
+     * @return the text as bytes
+     */
+    public byte[] getBytes()
+    {
+        return data;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    /**
+     * The most bytes a row holds before a long line is broken.
+     */
+    public static final int ROW_LIMIT = 16 * 1024;
+
+    private final byte[] data;
+    private final Charset charset;
+    private final boolean utf8;
+    private int[] starts;
+    private int rowCount;
+    private int scanned = 0;
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.text;
+
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.UIManager;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * The PagedTextView class shows a PagedText read only.  Only the rows inside the visible part of the view are
+ * decoded and drawn, so a text of any size can be shown at once, without the line structure a JTextArea
+ * builds for its whole document.  The rows are found in the background after the view is shown, and the view
+ * grows as they are.
+ * <p>
+ * The view is meant to be put in a JScrollPane, which scrolls it with the mouse wheel and the keyboard.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class PagedTextView extends JComponent implements Scrollable
+{
+    /**
+     * Creates a new PagedTextView, with the font and colours of a text area.
+     *
+     * @param text the text to show
+     */
+    public PagedTextView(PagedText text)
+    {
+        this.text = text;
+        setOpaque(true);
+        setFocusable(true);
+        setFont(UIManager.getFont("TextArea.font"));
+        setForeground(UIManager.getColor("TextArea.foreground"));
+        setBackground(UIManager.getColor("TextArea.background"));
+
+        /* Take the focus when clicked, so the keyboard scrolls the view. */
+        addMouseListener(new MouseAdapter()
+        {
+            @Override
+            public void mousePressed(MouseEvent e)
+            {
+                requestFocusInWindow();
+            }
+        });
+    }
+
+    /**
+     * Starts finding the rows of the text.  The first rows are found on the calling thread, so they can be shown
+     * straight away; the rest are found on the executor.
+     *
+     * @param executor the executor to find the rest of the rows on
+     */
+    public void startIndexing(Executor executor)
+    {
+        boolean done = text.index(FIRST_CHUNK);
+        rowsChanged();
+        if (done)
+            return;
+
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                boolean done = false;
+                while (!done && !disposed)
+                {
+                    done = text.index(CHUNK);
+                    EventQueue.invokeLater(new Runnable()
+                    {
+                        public void run()
+                        {
+                            rowsChanged();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops finding rows.  The view should not be shown again afterwards.
+     */
+    public void dispose()
+    {
+        disposed = true;
+    }
+
+    public PagedText getText()
+    {
+        return text;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g)
+    {
+        Rectangle clip = g.getClipBounds();
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        /* Draw text the way the rest of the desktop does. */
+        Map<?, ?> hints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+        if (hints != null && g instanceof Graphics2D)
+            ((Graphics2D) g).addRenderingHints(hints);
+
+        g.setColor(getForeground());
+        g.setFont(getFont());
+        FontMetrics metrics = g.getFontMetrics();
+        Insets insets = getInsets();
+        int rowHeight = metrics.getHeight();
+
+        /* Only decode the rows that are being painted. */
+        int first = Math.max(0, (clip.y - insets.top) / rowHeight);
+        int last = Math.min(text.getRowCount() - 1, (clip.y + clip.height - insets.top) / rowHeight);
+        int widest = textWidth;
+        for (int row = first; row <= last; row++)
+        {
+            String line = expandTabs(text.getRow(row));
+            g.drawString(line, insets.left, insets.top + row * rowHeight + metrics.getAscent());
+            widest = Math.max(widest, metrics.stringWidth(line));
+        }
+
+        /* The width of a row is only known once it has been decoded, so the view widens as it is scrolled. */
+        if (widest > textWidth)
+        {
+            textWidth = widest;
+            revalidate();
+        }
+    }
+
+    @Override
+    public Dimension getPreferredSize()
+    {
+        Insets insets = getInsets();
+        long height = (long) text.getRowCount() * getRowHeight() + insets.top + insets.bottom;
+        return new Dimension(textWidth + insets.left + insets.right, (int) Math.min(height, Integer.MAX_VALUE));
+    }
+
+    public Dimension getPreferredScrollableViewportSize()
+    {
+        return getPreferredSize();
+    }
+
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction)
+    {
+        if (orientation == SwingConstants.VERTICAL)
+            return getRowHeight();
+        return getFontMetrics(getFont()).charWidth('m');
+    }
+
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction)
+    {
+        if (orientation == SwingConstants.VERTICAL)
+            return Math.max(getRowHeight(), visibleRect.height - getRowHeight());
+        return visibleRect.width;
+    }
+
+    public boolean getScrollableTracksViewportWidth()
+    {
+        return getParent() instanceof JViewport && getParent().getWidth() > getPreferredSize().width;
+    }
+
+    public boolean getScrollableTracksViewportHeight()
+    {
+        return getParent() instanceof JViewport && getParent().getHeight() > getPreferredSize().height;
+    }
+
+    private int getRowHeight()
+    {
+        return getFontMetrics(getFont()).getHeight();
+    }
+
+    private void rowsChanged()
+    {
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * Replaces each tab with the spaces up to the next tab stop, as a text area would show it.
+     */
+    private static String expandTabs(String line)
+    {
+        if (line.indexOf('\t') < 0)
+            return line;
+
+        StringBuilder expanded = new StringBuilder(line.length() + TAB_SIZE);
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (c == '\t')
+            {
+                do
+                {
+                    expanded.append(' ');
+                }
+                while (expanded.length() % TAB_SIZE != 0);
+            }
+            else
+                expanded.append(c);
+        }
+        return expanded.toString();
+    }
+
+    /**
+     * The number of bytes scanned for rows before the view is first shown.
+     */
+    private static final int FIRST_CHUNK = 256 * 1024;
+    /**
+     * The number of bytes scanned for rows at a time in the background.
+     */
+    private static final int CHUNK = 8 * 1024 * 1024;
+    private static final int TAB_SIZE = 8;
+
+    private final PagedText text;
+    private int textWidth = 0;
+    private volatile boolean disposed = false;
+}
@@ -0,0 +1,774 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.text;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The PieceTable class stores the text of a document as a piece table.  Every character ever inserted is
+ * appended to one buffer, which is never changed otherwise, and the text is described by a list of pieces,
+ * each naming a range of that buffer.  An insertion appends to the buffer and splits one piece; a removal
+ * only drops or trims pieces.  Neither moves any text, so editing costs the same however large the text is,
+ * and typing at one place keeps growing the same piece rather than adding new ones.
+ * <p>
+ * Since the buffer is never overwritten, a copy of the piece list is a snapshot of the text.  getReader()
+ * takes one in time proportional to the number of pieces, and the snapshot can then be read on another
+ * thread, for example by the cipher, while editing carries on.
+ * <p>
+ * Like every AbstractDocument.Content, the text always ends with a newline that is not part of the document.
+ * As with GapContent, undoing a removal puts the positions that were in the removed text back where they were,
+ * which PlainDocument relies on to restore its lines.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class PieceTable implements AbstractDocument.Content
+{
+    /**
+     * Creates a new, empty PieceTable.
+     */
+    public PieceTable()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new, empty PieceTable.
+     *
+     * @param capacity the number of characters the buffer has room for before it has to grow
+     */
+    public PieceTable(int capacity)
+    {
+        buffer = new char[Math.max(capacity, 1)];
+        pieces = new Piece[8];
+        offsets = new int[8];
+        marks = new Mark[8];
+        try
+        {
+            insertString(0, "\n");
+        }
+        catch (BadLocationException ex)
+        {
+            /* An empty table always accepts an insertion at the start. */
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public synchronized Position createPosition(int offset) throws BadLocationException
+    {
+        if (offset < 0 || offset > length)
+            throw new BadLocationException("Invalid position", offset);
+
+        purgeMarks();
+        if (markCount == marks.length)
+        {
+            Mark[] grown = new Mark[markCount * 2];
+            System.arraycopy(marks, 0, grown, 0, markCount);
+            marks = grown;
+        }
+
+        /* Keep the marks in order; positions are mostly created near the end, where this copies little. */
+        long index = offset < gapStart ? offset : offset + gapSize;
+        int at = findMark(index);
+        System.arraycopy(marks, at, marks, at + 1, markCount - at);
+        markCount++;
+
+        StickyPosition position = new StickyPosition();
+        Mark mark = new Mark(position, index, queue);
+        position.mark = mark;
+        marks[at] = mark;
+        return position;
+    }
+
+    public synchronized int length()
+    {
+        return length;
+    }
+
+    public synchronized UndoableEdit insertString(int where, String str) throws BadLocationException
+    {
+        /* Only an empty table, while it is being created, may be inserted into at its end. */
+        if (where < 0 || where > length || (where == length && length > 0))
+            throw new BadLocationException("Invalid insert", length);
+        if (str.length() == 0)
+            return null;
+
+        Piece piece = new Piece(append(str), str.length());
+        insertPiece(where, piece);
+        length += piece.length;
+        updateMarksForInsert(where, piece.length);
+        return new InsertUndo(where, piece);
+    }
+
+    public synchronized UndoableEdit remove(int where, int nitems) throws BadLocationException
+    {
+        if (where < 0 || nitems < 0 || where + nitems >= length)
+            throw new BadLocationException("Invalid remove", length);
+        if (nitems == 0)
+            return null;
+
+        Mark[] saved = marksInRange(where, nitems);
+        int[] savedOffsets = offsetsOf(saved);
+        Piece[] removed = removePieces(where, nitems);
+        length -= nitems;
+        updateMarksForRemove(where, nitems);
+        return new RemoveUndo(where, nitems, removed, saved, savedOffsets);
+    }
+
+    public synchronized String getString(int where, int len) throws BadLocationException
+    {
+        checkRange(where, len);
+        char[] chars = new char[len];
+        copy(where, len, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Fetches a range of the text.  When the range lies in a single piece, or the segment allows a partial
+     * return, the segment is pointed straight at the buffer, and must not be written to.
+     */
+    public synchronized void getChars(int where, int len, Segment txt) throws BadLocationException
+    {
+        checkRange(where, len);
+        int index = findPiece(where);
+        Piece piece = pieces[index];
+        int inPiece = where - offsets[index];
+        int available = piece.length - inPiece;
+
+        if (len <= available || txt.isPartialReturn())
+        {
+            txt.array = buffer;
+            txt.offset = piece.start + inPiece;
+            txt.count = Math.min(len, available);
+            return;
+        }
+
+        /* The segment's own array may be the buffer, so never copy into it. */
+        char[] chars = new char[len];
+        copy(where, len, chars, 0);
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    /**
+     * Returns a Reader over a snapshot of a range of the text.  Taking the snapshot copies only the piece
+     * list; the reader can then be used on any thread, and later edits don't change what it reads.
+     *
+     * @param where the offset of the first character
+     * @param len   the number of characters
+     * @return the reader
+     * @throws BadLocationException the range is not inside the text
+     */
+    public synchronized Reader getReader(int where, int len) throws BadLocationException
+    {
+        checkRange(where, len);
+        if (len == 0)
+            return new SnapshotReader(buffer, new int[0], new int[0]);
+
+        int first = findPiece(where);
+        int last = findPiece(where + len - 1);
+        int count = last - first + 1;
+        int[] starts = new int[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            Piece piece = pieces[first + i];
+            starts[i] = piece.start;
+            lengths[i] = piece.length;
+        }
+
+        /* Trim the first and last pieces to the range. */
+        int skip = where - offsets[first];
+        starts[0] += skip;
+        lengths[0] -= skip;
+        lengths[count - 1] -= (offsets[last] + pieces[last].length) - (where + len);
+        return new SnapshotReader(buffer, starts, lengths);
+    }
+
+    /**
+     * Returns the number of pieces the text is made of.
+     *
+     * @return the number of pieces
+     */
+    public synchronized int getPieceCount()
+    {
+        return pieceCount;
+    }
+
+    private void checkRange(int where, int len) throws BadLocationException
+    {
+        if (where < 0 || len < 0 || where + len > length)
+            throw new BadLocationException("Invalid range", length);
+    }
+
+    /**
+     * Appends text to the buffer, growing it if necessary, and returns where it was put.
+     */
+    private int append(String str)
+    {
+        int needed = used + str.length();
+        if (needed < 0)
+            throw new OutOfMemoryError("The text is too large.");
+        if (needed > buffer.length)
+        {
+            /* Snapshots keep the old array, which still holds everything they refer to. */
+            char[] grown = new char[(int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) buffer.length * 2, needed))];
+            System.arraycopy(buffer, 0, grown, 0, used);
+            buffer = grown;
+        }
+
+        int start = used;
+        str.getChars(0, str.length(), buffer, start);
+        used = needed;
+        return start;
+    }
+
+    /**
+     * Returns the index of the piece holding the character at an offset, which must be inside the text.
+     */
+    private int findPiece(int offset)
+    {
+        int low = 0;
+        int high = pieceCount - 1;
+        while (low < high)
+        {
+            int middle = (low + high + 1) >>> 1;
+            if (offsets[middle] <= offset)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Copies a range of the text, which must be inside it, into an array.
+     */
+    private void copy(int where, int len, char[] out, int off)
+    {
+        int index = findPiece(where);
+        int inPiece = where - offsets[index];
+        while (len > 0)
+        {
+            Piece piece = pieces[index++];
+            int n = Math.min(len, piece.length - inPiece);
+            System.arraycopy(buffer, piece.start + inPiece, out, off, n);
+            off += n;
+            len -= n;
+            inPiece = 0;
+        }
+    }
+
+    /**
+     * Puts a piece into the text at an offset.
+     */
+    private void insertPiece(int where, Piece piece)
+    {
+        if (pieceCount == 0)
+        {
+            replacePieces(0, 0, new Piece[]{piece});
+            return;
+        }
+
+        int index = where == length ? pieceCount : findPiece(where);
+        int at = index < pieceCount ? offsets[index] : length;
+        if (where == at)
+        {
+            /* Typing straight after the previous insertion just lengthens its piece. */
+            Piece previous = index > 0 ? pieces[index - 1] : null;
+            if (previous != null && previous.start + previous.length == piece.start)
+                replacePieces(index - 1, index, new Piece[]{new Piece(previous.start, previous.length + piece.length)});
+            else
+                replacePieces(index, index, new Piece[]{piece});
+        }
+        else
+        {
+            Piece split = pieces[index];
+            int left = where - at;
+            replacePieces(index, index + 1, new Piece[]{
+                    new Piece(split.start, left),
+                    piece,
+                    new Piece(split.start + left, split.length - left)});
+        }
+    }
+
+    /**
+     * Takes a range out of the text, which must be inside it, and returns the pieces that described it.
+     */
+    private Piece[] removePieces(int where, int len)
+    {
+        int first = findPiece(where);
+        int last = findPiece(where + len - 1);
+        int head = where - offsets[first];
+        int tail = (offsets[last] + pieces[last].length) - (where + len);
+
+        Piece[] removed = new Piece[last - first + 1];
+        for (int i = first; i <= last; i++)
+            removed[i - first] = pieces[i];
+        if (removed.length == 1)
+            removed[0] = new Piece(removed[0].start + head, len);
+        else
+        {
+            Piece firstPiece = removed[0];
+            Piece lastPiece = removed[removed.length - 1];
+            removed[0] = new Piece(firstPiece.start + head, firstPiece.length - head);
+            removed[removed.length - 1] = new Piece(lastPiece.start, lastPiece.length - tail);
+        }
+
+        Piece[] kept = new Piece[(head > 0 ? 1 : 0) + (tail > 0 ? 1 : 0)];
+        int k = 0;
+        if (head > 0)
+            kept[k++] = new Piece(pieces[first].start, head);
+        if (tail > 0)
+        {
+            Piece lastPiece = pieces[last];
+            kept[k] = new Piece(lastPiece.start + lastPiece.length - tail, tail);
+        }
+        replacePieces(first, last + 1, kept);
+        return removed;
+    }
+
+    /**
+     * Puts a run of pieces back into the text at an offset, undoing a removal.
+     */
+    private void restorePieces(int where, Piece[] restored)
+    {
+        int index;
+        if (where == length)
+            index = pieceCount;
+        else
+        {
+            index = findPiece(where);
+            int at = offsets[index];
+            if (where > at)
+            {
+                /* Split the piece the removal was made in. */
+                Piece split = pieces[index];
+                int left = where - at;
+                replacePieces(index, index + 1, new Piece[]{
+                        new Piece(split.start, left),
+                        new Piece(split.start + left, split.length - left)});
+                index++;
+            }
+        }
+        replacePieces(index, index, restored);
+    }
+
+    /**
+     * Replaces the pieces from one index up to another with new ones, and brings the offsets up to date.
+     */
+    private void replacePieces(int from, int to, Piece[] replacement)
+    {
+        int newCount = pieceCount - (to - from) + replacement.length;
+        if (newCount > pieces.length)
+        {
+            int capacity = Math.max(pieces.length * 2, newCount);
+            Piece[] grownPieces = new Piece[capacity];
+            int[] grownOffsets = new int[capacity];
+            System.arraycopy(pieces, 0, grownPieces, 0, pieceCount);
+            System.arraycopy(offsets, 0, grownOffsets, 0, pieceCount);
+            pieces = grownPieces;
+            offsets = grownOffsets;
+        }
+
+        System.arraycopy(pieces, to, pieces, from + replacement.length, pieceCount - to);
+        System.arraycopy(replacement, 0, pieces, from, replacement.length);
+        for (int i = newCount; i < pieceCount; i++)
+            pieces[i] = null;
+        pieceCount = newCount;
+
+        int offset = from > 0 ? offsets[from - 1] + pieces[from - 1].length : 0;
+        for (int i = from; i < pieceCount; i++)
+        {
+            offsets[i] = offset;
+            offset += pieces[i].length;
+        }
+    }
+
+    /**
+     * Moves the marks after an insertion.  A mark at the start of the text stays there; any other mark at the
+     * insertion point moves with the text after it.
+     */
+    private void updateMarksForInsert(int offset, int len)
+    {
+        if (offset == 0)
+            offset = 1;
+
+        /* The marks after the gap move up when it shrinks. */
+        moveGap(offset);
+        gapStart += len;
+        gapSize -= len;
+    }
+
+    /**
+     * Moves the marks after a removal.  Marks inside the removed range collapse to its start.
+     */
+    private void updateMarksForRemove(int offset, int len)
+    {
+        moveGap(offset + len);
+
+        /* The removed marks join the front of the gap's far side, where they now read as offset. */
+        for (int i = findMark(offset); i < markCount && marks[i].index < gapStart; i++)
+            marks[i].index = gapStart + gapSize;
+        gapStart -= len;
+        gapSize += len;
+    }
+
+    /**
+     * Returns the marks from offset to offset + len, both included, which a removal of that range collapses.
+     */
+    private Mark[] marksInRange(int offset, int len)
+    {
+        /* With the gap at the end of the range, its marks are the near side's last and the far side's first. */
+        moveGap(offset + len);
+        int from = findMark(offset);
+        int to = findMark(gapStart);
+        long end = gapStart + gapSize;
+        while (to < markCount && marks[to].index == end)
+            to++;
+
+        Mark[] saved = new Mark[to - from];
+        System.arraycopy(marks, from, saved, 0, saved.length);
+        return saved;
+    }
+
+    private int[] offsetsOf(Mark[] saved)
+    {
+        int[] savedOffsets = new int[saved.length];
+        for (int i = 0; i < saved.length; i++)
+            savedOffsets[i] = offsetOf(saved[i].index);
+        return savedOffsets;
+    }
+
+    /**
+     * Puts marks back at the offsets they had before offset to offset + len was removed, once the text has been
+     * inserted again.  They are all at one end of the range or the other, so only the range is sorted again.
+     */
+    private void restoreMarks(int offset, int len, Mark[] saved, int[] savedOffsets)
+    {
+        int from = findMark(offset);
+        int to = findMark(gapStart + gapSize + 1);
+        for (int i = 0; i < saved.length; i++)
+            saved[i].index = savedOffsets[i] < gapStart ? savedOffsets[i] : savedOffsets[i] + gapSize;
+        Arrays.sort(marks, from, to, MARK_ORDER);
+    }
+
+    private int offsetOf(long index)
+    {
+        return (int) (index < gapStart ? index : index - gapSize);
+    }
+
+    /**
+     * Moves the gap to an offset, changing the marks between its old place and its new place.
+     */
+    private void moveGap(int offset)
+    {
+        if (offset < gapStart)
+        {
+            for (int i = findMark(offset); i < markCount && marks[i].index < gapStart; i++)
+                marks[i].index += gapSize;
+        }
+        else if (offset > gapStart)
+        {
+            long end = offset + gapSize;
+            for (int i = findMark(gapStart + gapSize); i < markCount && marks[i].index < end; i++)
+                marks[i].index -= gapSize;
+        }
+        gapStart = offset;
+    }
+
+    /**
+     * Returns the index of the first mark whose index is not less than the given one.
+     */
+    private int findMark(long index)
+    {
+        int low = 0;
+        int high = markCount;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (marks[middle].index < index)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Drops the marks of positions that are no longer used, once enough of them have built up.
+     */
+    private void purgeMarks()
+    {
+        while (queue.poll() != null)
+            unused++;
+        if (unused < Math.max(PURGE_THRESHOLD, markCount / 2))
+            return;
+
+        int kept = 0;
+        for (int i = 0; i < markCount; i++)
+        {
+            if (marks[i].get() != null)
+                marks[kept++] = marks[i];
+        }
+        for (int i = kept; i < markCount; i++)
+            marks[i] = null;
+        markCount = kept;
+        unused = 0;
+    }
+
+    /**
+     * A range of the buffer.
+     */
+    private static class Piece
+    {
+        Piece(int start, int length)
+        {
+            this.start = start;
+            this.length = length;
+        }
+
+        final int start;
+        final int length;
+    }
+
+    /**
+     * The place of a position.  Marks only refer weakly to their positions, so a position nobody holds
+     * any more can be collected, and its mark dropped.
+     */
+    private static class Mark extends WeakReference<StickyPosition>
+    {
+        Mark(StickyPosition position, long index, ReferenceQueue<StickyPosition> queue)
+        {
+            super(position, queue);
+            this.index = index;
+        }
+
+        long index;
+    }
+
+    /**
+     * A position handed out by createPosition(), which follows the text it was created at.
+     */
+    private final class StickyPosition implements Position
+    {
+        public int getOffset()
+        {
+            synchronized (PieceTable.this)
+            {
+                return offsetOf(mark.index);
+            }
+        }
+
+        public String toString()
+        {
+            return Integer.toString(getOffset());
+        }
+
+        Mark mark;
+    }
+
+    /**
+     * Reads through a copy of the piece list.
+     */
+    private static class SnapshotReader extends Reader
+    {
+        SnapshotReader(char[] buffer, int[] starts, int[] lengths)
+        {
+            this.buffer = buffer;
+            this.starts = starts;
+            this.lengths = lengths;
+        }
+
+        public int read(char[] cbuf, int off, int len) throws IOException
+        {
+            if (closed)
+                throw new IOException("The reader is closed.");
+            if (off < 0 || len < 0 || len > cbuf.length - off)
+                throw new IndexOutOfBoundsException();
+            if (len == 0)
+                return 0;
+
+            int total = 0;
+            while (total < len && piece < starts.length)
+            {
+                int n = Math.min(len - total, lengths[piece] - inPiece);
+                System.arraycopy(buffer, starts[piece] + inPiece, cbuf, off + total, n);
+                total += n;
+                inPiece += n;
+                if (inPiece == lengths[piece])
+                {
+                    piece++;
+                    inPiece = 0;
+                }
+            }
+            return total > 0 ? total : -1;
+        }
+
+        public void close()
+        {
+            closed = true;
+        }
+
+        private final char[] buffer;
+        private final int[] starts;
+        private final int[] lengths;
+        private int piece = 0;
+        private int inPiece = 0;
+        private boolean closed = false;
+    }
+
+    /**
+     * Undoes an insertion by removing the piece again; redo puts the same piece back.
+     */
+    private class InsertUndo extends AbstractUndoableEdit
+    {
+        InsertUndo(int offset, Piece piece)
+        {
+            this.offset = offset;
+            this.piece = piece;
+        }
+
+        public void undo() throws CannotUndoException
+        {
+            super.undo();
+            synchronized (PieceTable.this)
+            {
+                saved = marksInRange(offset, piece.length);
+                savedOffsets = offsetsOf(saved);
+                removePieces(offset, piece.length);
+                length -= piece.length;
+                updateMarksForRemove(offset, piece.length);
+            }
+        }
+
+        public void redo() throws CannotRedoException
+        {
+            super.redo();
+            synchronized (PieceTable.this)
+            {
+                restorePieces(offset, new Piece[]{piece});
+                length += piece.length;
+                updateMarksForInsert(offset, piece.length);
+                restoreMarks(offset, piece.length, saved, savedOffsets);
+                saved = null;
+                savedOffsets = null;
+            }
+        }
+
+        private final int offset;
+        private final Piece piece;
+        private Mark[] saved;
+        private int[] savedOffsets;
+    }
+
+    /**
+     * Undoes a removal by putting the removed pieces back; the text itself is still in the buffer.
+     */
+    private class RemoveUndo extends AbstractUndoableEdit
+    {
+        RemoveUndo(int offset, int len, Piece[] removed, Mark[] saved, int[] savedOffsets)
+        {
+            this.offset = offset;
+            this.len = len;
+            this.removed = removed;
+            this.saved = saved;
+            this.savedOffsets = savedOffsets;
+        }
+
+        public void undo() throws CannotUndoException
+        {
+            super.undo();
+            synchronized (PieceTable.this)
+            {
+                restorePieces(offset, removed);
+                length += len;
+                updateMarksForInsert(offset, len);
+                restoreMarks(offset, len, saved, savedOffsets);
+                saved = null;
+                savedOffsets = null;
+            }
+        }
+
+        public void redo() throws CannotRedoException
+        {
+            super.redo();
+            synchronized (PieceTable.this)
+            {
+                saved = marksInRange(offset, len);
+                savedOffsets = offsetsOf(saved);
+                removePieces(offset, len);
+                length -= len;
+                updateMarksForRemove(offset, len);
+            }
+        }
+
+        private final int offset;
+        private final int len;
+        private final Piece[] removed;
+        private Mark[] saved;
+        private int[] savedOffsets;
+    }
+
+    /**
+     * The default number of characters the buffer starts with room for.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The number of unused marks that may build up before they are dropped.
+     */
+    private static final int PURGE_THRESHOLD = 64;
+    /**
+     * The size the gap between the marks starts at; it shrinks by every character inserted.
+     */
+    private static final long GAP_SIZE = 1L << 48;
+    private static final Comparator<Mark> MARK_ORDER = new Comparator<Mark>()
+    {
+        public int compare(Mark a, Mark b)
+        {
+            return Long.compare(a.index, b.index);
+        }
+    };
+
+    private final ReferenceQueue<StickyPosition> queue = new ReferenceQueue<StickyPosition>();
+    private char[] buffer;
+    private int used = 0;
+    private Piece[] pieces;
+    private int[] offsets;
+    private int pieceCount = 0;
+    private int length = 0;
+    private Mark[] marks;
+    private int markCount = 0;
+    private int unused = 0;
+    private long gapStart = 0;
+    private long gapSize = GAP_SIZE;
+}
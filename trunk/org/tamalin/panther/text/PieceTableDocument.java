@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Quytelda K. Gaiwin
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.tamalin.panther.text;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.PlainDocument;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * The PieceTableDocument class is a plain text document stored in a PieceTable, so that very large texts
+ * can be edited without the whole text being moved on each change.  Its text can be read as a stream of
+ * characters or bytes without first being copied into a String.
+ * <p>
+ * A document can be filled through its Appendable methods on a background thread, as a file is read, as long
+ * as it is not yet shown in a text component.
+ *
+ * @author Quytelda K. Gaiwin
+ * @since 4.1
+ */
+public class PieceTableDocument extends PlainDocument implements Appendable
+{
+    /**
+     * Creates a new, empty PieceTableDocument.
+     */
+    public PieceTableDocument()
+    {
+        super(new PieceTable());
+    }
+
+    /**
+     * Returns a Reader over a snapshot of the text.  Edits made afterwards don't change what it reads, so it
+     * can be read on another thread.
+     *
+     * @return the reader
+     */
+    public Reader getReader()
+    {
+        readLock();
+        try
+        {
+            return ((PieceTable) getContent()).getReader(0, getLength());
+        }
+        catch (BadLocationException ex)
+        {
+            /* The whole text is always a valid range. */
+            throw new IllegalStateException(ex);
+        }
+        finally
+        {
+            readUnlock();
+        }
+    }
+
+    public PieceTableDocument append(CharSequence csq)
+    {
+        return append(csq, 0, csq.length());
+    }
+
+    public PieceTableDocument append(CharSequence csq, int start, int end)
+    {
+        try
+        {
+            insertString(getLength(), csq.subSequence(start, end).toString(), null);
+        }
+        catch (BadLocationException ex)
+        {
+            /* The end of the document is always a valid place to insert. */
+            throw new IllegalStateException(ex);
+        }
+        return this;
+    }
+
+    public PieceTableDocument append(char c)
+    {
+        return append(String.valueOf(c));
+    }
+
+    /**
+     * Returns an InputStream over a snapshot of the text, encoded with a character set.  Characters the
+     * character set can't encode are replaced, as String.getBytes() would.
+     *
+     * @param charset the character set
+     * @return the stream
+     */
+    public InputStream getInputStream(Charset charset)
+    {
+        return new EncodingInputStream(getReader(), charset);
+    }
+}